@@ -0,0 +1,32 @@
+package app.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks matching bench.include once for every thread count in bench.threads,
+ * results are written as JSON to bench.result-t{threads}.json to be compared between releases.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = System.getProperty("bench.include", ".*");
+        String result = System.getProperty("bench.result", "target/jmh-result");
+        for (String threads : System.getProperty("bench.threads", "1").split(",")) {
+            int threadsCount = Integer.parseInt(threads.trim());
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threadsCount)
+                    .forks(Integer.getInteger("bench.forks", 1))
+                    .warmupIterations(Integer.getInteger("bench.warmupIterations", 3))
+                    .measurementIterations(Integer.getInteger("bench.iterations", 5))
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(result + "-t" + threadsCount + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package app.bench;
+
+import app.Application;
+import app.model.Account;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import app.service.DAOService;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+/**
+ * Common setup of benchmarks - properties, quiet logging and accounts with plenty of money,
+ * so transfers of a cent never fail on balance.
+ */
+final class BenchmarkSupport {
+    static final Money INITIAL_BALANCE = Money.of("1000000");
+    static final Money AMOUNT = Money.ofMinor(1);
+
+    private BenchmarkSupport() {
+    }
+
+    static void initProperties() {
+        Application.initProperties();
+        Configurator.setLevel("app", Level.ERROR);
+    }
+
+    static void createAccounts(DAOService daoService, int count) {
+        for (int i = 0; i < count; i++) {
+            daoService.insertAccount(new Account(0, "bench" + i, INITIAL_BALANCE));
+        }
+    }
+
+    static ExchangeRequest exchange(int fromId, int toId) {
+        return new ExchangeRequest(new Account(fromId, null, null), new Account(toId, null, null), AMOUNT);
+    }
+}
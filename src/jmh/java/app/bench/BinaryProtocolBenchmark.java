@@ -0,0 +1,99 @@
+package app.bench;
+
+import app.Application;
+import app.Bootstrap;
+import app.binary.BinaryClient;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.service.DAOService;
+import com.google.gson.Gson;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.*;
+import spark.Spark;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers through /performExchange against the binary protocol on the same server, one request at a time
+ * and as pipelined groups of requests on one connection. Throughput is in transfers, the pipelined benchmark
+ * counts every transfer of a group as an operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(time = 1)
+@Measurement(time = 2)
+public class BinaryProtocolBenchmark {
+    private static final String BASE_URI = "http://localhost:4567";
+    private static final int PIPELINE_DEPTH = 64;
+
+    @Param({"1000"})
+    int accounts;
+
+    CloseableHttpClient httpClient;
+    BinaryClient binaryClient;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("binary.enabled", "true");
+        BenchmarkSupport.initProperties();
+        Bootstrap.main(new String[0]);
+        Spark.awaitInitialization();
+        BenchmarkSupport.initProperties();
+        DAOService daoService = Application.getContext().getDaoService();
+        BenchmarkSupport.createAccounts(daoService, accounts);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(256);
+        connectionManager.setDefaultMaxPerRoute(256);
+        httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+        binaryClient = BinaryClient.connect("localhost", Integer.getInteger("binary.port"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        binaryClient.close();
+        httpClient.close();
+        Spark.stop();
+    }
+
+    @Benchmark
+    public String httpExchange() throws IOException {
+        HttpPost request = new HttpPost(BASE_URI + "/performExchange");
+        request.setEntity(new StringEntity(new Gson().toJson(nextExchange()), ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+
+    @Benchmark
+    public CompositeResponse binaryExchange() {
+        return binaryClient.performExchange(nextExchange()).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public CompositeResponse binaryPipelinedExchanges() {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<CompositeResponse>[] answers = new CompletableFuture[PIPELINE_DEPTH];
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            answers[i] = binaryClient.performExchange(nextExchange());
+        }
+        CompletableFuture.allOf(answers).join();
+        return answers[PIPELINE_DEPTH - 1].join();
+    }
+
+    private ExchangeRequest nextExchange() {
+        int from = ThreadLocalRandom.current().nextInt(accounts) + 1;
+        return BenchmarkSupport.exchange(from, from % accounts + 1);
+    }
+}
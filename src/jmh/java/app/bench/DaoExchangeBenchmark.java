@@ -0,0 +1,74 @@
+package app.bench;
+
+import app.database.DBConnector;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.service.DAOService;
+import app.service.DAOServiceImpl;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uncontended - every thread moves money back and forth inside its own pair of accounts.
+ * Hot account - every thread moves money between account 1 and its own account.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(time = 1)
+@Measurement(time = 2)
+public class DaoExchangeBenchmark {
+
+    @Param({"1000", "10000"})
+    int accounts;
+
+    @Param({"atomic", "optimistic"})
+    String mode;
+
+    DAOService daoService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkSupport.initProperties();
+        System.setProperty("dao.exchange.mode", mode);
+        daoService = new DAOServiceImpl(new DBConnector());
+        BenchmarkSupport.createAccounts(daoService, accounts);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        daoService.drop();
+    }
+
+    @State(Scope.Thread)
+    public static class Pair {
+        ExchangeRequest forward;
+        ExchangeRequest backward;
+        ExchangeRequest hotForward;
+        ExchangeRequest hotBackward;
+        boolean flip;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threadParams) {
+            int own = 2 * threadParams.getThreadIndex() + 2;
+            forward = BenchmarkSupport.exchange(own, own + 1);
+            backward = BenchmarkSupport.exchange(own + 1, own);
+            hotForward = BenchmarkSupport.exchange(1, own);
+            hotBackward = BenchmarkSupport.exchange(own, 1);
+        }
+    }
+
+    @Benchmark
+    public CompositeResponse performExchangeUncontended(Pair pair) {
+        pair.flip = !pair.flip;
+        return daoService.performExchange(pair.flip ? pair.forward : pair.backward);
+    }
+
+    @Benchmark
+    public CompositeResponse performExchangeHotAccount(Pair pair) {
+        pair.flip = !pair.flip;
+        return daoService.performExchange(pair.flip ? pair.hotForward : pair.hotBackward);
+    }
+}
@@ -0,0 +1,40 @@
+package app.bench;
+
+import app.database.DBConnector;
+import app.model.CompositeResponse;
+import app.service.DAOService;
+import app.service.DAOServiceImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(time = 1)
+@Measurement(time = 2)
+public class DaoReadBenchmark {
+
+    @Param({"1000", "10000"})
+    int accounts;
+
+    DAOService daoService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkSupport.initProperties();
+        daoService = new DAOServiceImpl(new DBConnector());
+        BenchmarkSupport.createAccounts(daoService, accounts);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        daoService.drop();
+    }
+
+    @Benchmark
+    public CompositeResponse getAccount() {
+        return daoService.getAccount(ThreadLocalRandom.current().nextInt(accounts) + 1);
+    }
+}
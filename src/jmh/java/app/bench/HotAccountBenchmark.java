@@ -0,0 +1,83 @@
+package app.bench;
+
+import app.database.DBConnector;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.service.AccountLockManager;
+import app.service.DAOService;
+import app.service.DAOServiceImpl;
+import app.service.HotAccountCoalescer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers between accounts drawn from a Zipfian distribution, so the first few accounts are in most of them.
+ * Regular is the path of /performExchange - stripe lock of both accounts and a transfer of its own,
+ * coalesced puts transfers of hot accounts in batches first. Run with several threads, e.g. -Dbench.threads=16,
+ * a single thread never makes an account hot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(time = 1)
+@Measurement(time = 2)
+public class HotAccountBenchmark {
+
+    @Param({"1000"})
+    int accounts;
+
+    @Param({"1.1"})
+    double skew;
+
+    @Param({"atomic", "optimistic"})
+    String mode;
+
+    @Param({"regular", "coalesced"})
+    String path;
+
+    DAOService daoService;
+    AccountLockManager lockManager;
+    HotAccountCoalescer coalescer;
+    Zipf zipf;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkSupport.initProperties();
+        System.setProperty("dao.exchange.mode", mode);
+        daoService = new DAOServiceImpl(new DBConnector());
+        BenchmarkSupport.createAccounts(daoService, accounts);
+        lockManager = new AccountLockManager();
+        coalescer = new HotAccountCoalescer(daoService, lockManager, Integer.getInteger("hotAccounts.threshold"),
+                Integer.getInteger("hotAccounts.maxBatchSize"));
+        zipf = new Zipf(accounts, skew);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        daoService.drop();
+    }
+
+    @Benchmark
+    public CompositeResponse performExchange() {
+        int from = zipf.next();
+        int to = zipf.next();
+        if (to == from) {
+            to = from % accounts + 1;
+        }
+        ExchangeRequest exchangeRequest = BenchmarkSupport.exchange(from, to);
+        return "coalesced".equals(path) ? coalescer.performExchange(exchangeRequest, this::performLocked)
+                : performLocked(exchangeRequest);
+    }
+
+    private CompositeResponse performLocked(ExchangeRequest exchangeRequest) {
+        int fromId = exchangeRequest.getFrom().getId();
+        int toId = exchangeRequest.getTo().getId();
+        lockManager.lock(fromId, toId);
+        try {
+            return daoService.performExchange(exchangeRequest);
+        } finally {
+            lockManager.unlock(fromId, toId);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package app.bench;
+
+import app.journal.Journal;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.service.DAOService;
+import app.service.InMemoryLedgerService;
+import app.service.JournalingDAOService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable transfers - every call returns only after its record is forced to disk.
+ * In-memory ledger is used underneath, so the journal and its group commit window are what is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(time = 1)
+@Measurement(time = 2)
+public class JournalBenchmark {
+
+    @Param({"0", "100", "500", "2000"})
+    long groupCommitMicros;
+
+    Path path;
+    Journal journal;
+    DAOService daoService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkSupport.initProperties();
+        path = Files.createTempFile("bench", ".journal");
+        Files.delete(path);
+        journal = new Journal(path, groupCommitMicros);
+        daoService = new JournalingDAOService(new InMemoryLedgerService(Integer.getInteger("ledger.shards")), journal);
+        BenchmarkSupport.createAccounts(daoService, 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        Files.deleteIfExists(path);
+    }
+
+    @State(Scope.Thread)
+    public static class Pair {
+        ExchangeRequest forward;
+        ExchangeRequest backward;
+        boolean flip;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threadParams) {
+            int own = 2 * threadParams.getThreadIndex() + 1;
+            forward = BenchmarkSupport.exchange(own, own + 1);
+            backward = BenchmarkSupport.exchange(own + 1, own);
+        }
+    }
+
+    @Benchmark
+    public CompositeResponse performDurableExchange(Pair pair) {
+        pair.flip = !pair.flip;
+        return daoService.performExchange(pair.flip ? pair.forward : pair.backward);
+    }
+}
@@ -0,0 +1,74 @@
+package app.bench;
+
+import app.json.JsonCodec;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.Money;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Legacy is what routes did before the shared codec - new Gson per call and a JsonElement tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(time = 1)
+@Measurement(time = 2)
+public class JsonBenchmark {
+
+    @Param({"1", "100"})
+    int accounts;
+
+    JsonCodec codec;
+    CompositeResponse compositeResponse;
+    byte[] json;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codec = new JsonCodec();
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        if (accounts == 1) {
+            compositeResponseBuilder.setAccount(new Account(42, "Jon Snow", Money.of("1234.56")));
+        } else {
+            List<Account> list = new ArrayList<>(accounts);
+            for (int i = 0; i < accounts; i++) {
+                list.add(new Account(i + 1, "account" + i, Money.ofMinor(100_000L + i)));
+            }
+            compositeResponseBuilder.setAccounts(list);
+        }
+        compositeResponse = compositeResponseBuilder.createCompositeResponse();
+        json = codec.toJson(compositeResponse).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String encodeLegacy() {
+        return new Gson().toJsonTree(compositeResponse).toString();
+    }
+
+    @Benchmark
+    public int encodeCodec() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(json.length);
+        codec.write(outputStream, compositeResponse);
+        return outputStream.size();
+    }
+
+    @Benchmark
+    public CompositeResponse decodeLegacy() {
+        return new Gson().fromJson(new String(json, StandardCharsets.UTF_8), CompositeResponse.class);
+    }
+
+    @Benchmark
+    public CompositeResponse decodeCodec() {
+        return codec.read(new ByteArrayInputStream(json), CompositeResponse.class);
+    }
+}
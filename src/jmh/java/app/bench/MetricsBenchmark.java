@@ -0,0 +1,70 @@
+package app.bench;
+
+import app.metrics.Counter;
+import app.metrics.Histogram;
+import app.metrics.MetricsRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What instrumentation adds to one transfer: clock readings, stage timers and a result counter
+ * in RestService and on the optimistic path of DAOServiceImpl. Connection wait was already timed before.
+ * nanoTime alone shows how much of it is the clock, run with -prof gc to see that recording allocates nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(time = 1)
+@Measurement(time = 2)
+public class MetricsBenchmark {
+    MetricsRegistry registry;
+    Histogram transfer;
+    Histogram lockWait;
+    Histogram read;
+    Histogram update;
+    Counter succeeded;
+    long value;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        registry = new MetricsRegistry();
+        transfer = registry.histogram("transfer_seconds", "", "");
+        lockWait = registry.histogram("transfer_stage_seconds", "stage=\"lock_wait\"", "");
+        read = registry.histogram("transfer_stage_seconds", "stage=\"read\"", "");
+        update = registry.histogram("transfer_stage_seconds", "stage=\"update\"", "");
+        succeeded = registry.counter("transfers_total", "result=\"success\"", "");
+        value = 123_456;
+    }
+
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        read.record(value);
+    }
+
+    @Benchmark
+    public long transferInstrumented() {
+        // RestService
+        long start = System.nanoTime();
+        lockWait.recordSince(start);
+        // DAOServiceImpl
+        long readStart = System.nanoTime();
+        long readEnd = read.recordSince(readStart);
+        update.recordSince(readEnd);
+        succeeded.increment();
+        // RestService
+        return transfer.recordSince(start);
+    }
+
+    @Benchmark
+    public StringBuilder scrape() throws Exception {
+        StringBuilder out = new StringBuilder(4096);
+        registry.write(out);
+        return out;
+    }
+}
@@ -0,0 +1,81 @@
+package app.bench;
+
+import app.Application;
+import app.Bootstrap;
+import app.model.ExchangeRequest;
+import app.service.DAOService;
+import com.google.gson.Gson;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.*;
+import spark.Spark;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full route through a local server started the same way as Bootstrap does,
+ * JMH forks a new JVM for every benchmark so server is started once per fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(time = 1)
+@Measurement(time = 2)
+public class RestRouteBenchmark {
+    private static final String BASE_URI = "http://localhost:4567";
+
+    @Param({"1000"})
+    int accounts;
+
+    CloseableHttpClient httpClient;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkSupport.initProperties();
+        Bootstrap.main(new String[0]);
+        Spark.awaitInitialization();
+        BenchmarkSupport.initProperties();
+        DAOService daoService = Application.getContext().getDaoService();
+        BenchmarkSupport.createAccounts(daoService, accounts);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(256);
+        connectionManager.setDefaultMaxPerRoute(256);
+        httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        httpClient.close();
+        Spark.stop();
+    }
+
+    @Benchmark
+    public String getAccount() throws IOException {
+        HttpGet request = new HttpGet(BASE_URI + "/getAccount/" + (ThreadLocalRandom.current().nextInt(accounts) + 1));
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+
+    @Benchmark
+    public String performExchange() throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(accounts) + 1;
+        int to = from % accounts + 1;
+        ExchangeRequest exchangeRequest = BenchmarkSupport.exchange(from, to);
+        HttpPost request = new HttpPost(BASE_URI + "/performExchange");
+        request.setEntity(new StringEntity(new Gson().toJson(exchangeRequest), ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+}
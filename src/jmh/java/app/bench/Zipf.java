@@ -0,0 +1,29 @@
+package app.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Zipfian distribution over 1..n, rank k is drawn with probability proportional to 1 / k^skew,
+ * so with skew around 1 a handful of first ids take most of the draws.
+ */
+final class Zipf {
+    private final double[] cumulative;
+
+    Zipf(int n, double skew) {
+        cumulative = new double[n];
+        double sum = 0;
+        for (int k = 1; k <= n; k++) {
+            sum += 1 / Math.pow(k, skew);
+            cumulative[k - 1] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    int next() {
+        int index = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+        return (index >= 0 ? index : -index - 1) + 1;
+    }
+}
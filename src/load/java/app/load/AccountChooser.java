@@ -0,0 +1,61 @@
+package app.load;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Picks accounts for requests by their index 0..n-1, uniformly or Zipfian - index k with probability
+ * proportional to 1 / (k + 1)^skew, so with skew around 1 a handful of accounts get most of the requests.
+ * Not thread-safe, every thread picking accounts needs its own.
+ */
+final class AccountChooser {
+    private final SplittableRandom random;
+    private final int n;
+    // null for uniform
+    private final double[] cumulative;
+
+    private AccountChooser(SplittableRandom random, int n, double[] cumulative) {
+        this.random = random;
+        this.n = n;
+        this.cumulative = cumulative;
+    }
+
+    static AccountChooser uniform(int n, long seed) {
+        return new AccountChooser(new SplittableRandom(seed), n, null);
+    }
+
+    static AccountChooser zipf(int n, double skew, long seed) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int k = 1; k <= n; k++) {
+            sum += 1 / Math.pow(k, skew);
+            cumulative[k - 1] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= sum;
+        }
+        return new AccountChooser(new SplittableRandom(seed), n, cumulative);
+    }
+
+    int next() {
+        if (cumulative == null) {
+            return random.nextInt(n);
+        }
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, n - 1);
+    }
+
+    /**
+     * @return index other than the given one, for the other side of a transfer
+     */
+    int nextOtherThan(int index) {
+        if (n == 1) {
+            return index;
+        }
+        int other;
+        do {
+            other = next();
+        } while (other == index);
+        return other;
+    }
+}
@@ -0,0 +1,437 @@
+package app.load;
+
+import app.binary.BinaryClient;
+import app.json.JsonCodec;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open loop load generator for a running service. Requests of load.mix are started at load.rate per second
+ * on a fixed schedule whatever answers take, latency of a request is counted from the time it was scheduled for,
+ * so when the service stalls, requests queued behind it show in percentiles instead of the generator slowing down
+ * with the service (coordinated omission). Up to load.maxInFlight requests wait for answers, a request over it waits
+ * for a free slot and the wait is part of its latency.
+ * <p>
+ * Accounts for the run are created first, the run starts with load.warmupSeconds that aren't measured.
+ * At the end the total balance of all accounts has to be the total at start plus balances of accounts created
+ * during the run - transfers only move money. Percentiles of every request type are written
+ * to load.result-{type}.hgrm, interval histograms of the whole run to load.result.hlog.
+ * <p>
+ * With load.protocol=binary requests of the run go over load.connections pipelined connections of the binary protocol
+ * to load.binaryTarget, setup and the balance check still use HTTP. getAll reads the first page of accounts there,
+ * the protocol has no unpaged read of all of them.
+ *
+ * @see <a href="http://hdrhistogram.org">HdrHistogram</a>
+ */
+public class LoadGenerator {
+    private static final int PAGE_SIZE = 1000;
+    // every answer above is recorded as an hour
+    private static final long HIGHEST_LATENCY = TimeUnit.HOURS.toNanos(1);
+    private static final double NANOS_IN_MILLISECOND = 1e6;
+
+    enum Operation {
+        CREATE("create"), GET("get"), TRANSFER("transfer"), GET_ALL("getAll");
+
+        private final String key;
+
+        Operation(String key) {
+            this.key = key;
+        }
+
+        static Operation of(String key) {
+            for (Operation operation : values()) {
+                if (operation.key.equals(key)) {
+                    return operation;
+                }
+            }
+            throw new IllegalArgumentException("Unknown request type " + key + ", should be one of create, get, transfer, getAll");
+        }
+    }
+
+    private final String target = stripSlash(System.getProperty("load.target", "http://localhost:4567"));
+    private final double rate = Double.parseDouble(System.getProperty("load.rate", "1000"));
+    private final long durationSeconds = Long.getLong("load.durationSeconds", 60);
+    private final long warmupSeconds = Long.getLong("load.warmupSeconds", 10);
+    private final int accountsCount = Integer.getInteger("load.accounts", 1000);
+    private final Money initialBalance = Money.of(System.getProperty("load.initialBalance", "1000000"));
+    private final Money amount = Money.of(System.getProperty("load.amount", "0.01"));
+    private final String distribution = System.getProperty("load.distribution", "uniform");
+    private final double skew = Double.parseDouble(System.getProperty("load.zipfSkew", "0.99"));
+    private final int maxInFlight = Integer.getInteger("load.maxInFlight", 256);
+    private final long reportIntervalSeconds = Long.getLong("load.reportIntervalSeconds", 10);
+    private final Duration timeout = Duration.ofSeconds(Long.getLong("load.timeoutSeconds", 30));
+    private final String result = System.getProperty("load.result", "target/load-result");
+    private final String protocol = System.getProperty("load.protocol", "http");
+    private final String binaryTarget = System.getProperty("load.binaryTarget", "localhost:4568");
+    private final int connections = Integer.getInteger("load.connections", 4);
+
+    private final JsonCodec codec = new JsonCodec();
+    private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(timeout).build();
+    private final Semaphore inFlight = new Semaphore(maxInFlight);
+    private final Operation[] operations = Operation.values();
+    private final Stats[] stats = new Stats[operations.length];
+    private final int[] weights;
+    // balance of accounts created during the run, total at the end has to grow by it
+    private final LongAdder createdMinorUnits = new LongAdder();
+    // create requests without answer, the account may exist or not
+    private final LongAdder unansweredCreates = new LongAdder();
+    private long measureStart;
+    // null over HTTP
+    private BinaryClient[] binaryClients;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new LoadGenerator().run() ? 0 : 1);
+    }
+
+    LoadGenerator() {
+        weights = parseMix(System.getProperty("load.mix", "transfer=80,get=15,create=4,getAll=1"));
+        for (Operation operation : operations) {
+            stats[operation.ordinal()] = new Stats(operation);
+        }
+        if (rate <= 0 || maxInFlight <= 0 || durationSeconds <= 0 || connections <= 0) {
+            throw new IllegalArgumentException("load.rate, load.maxInFlight, load.durationSeconds and load.connections should be positive");
+        }
+        if (!"http".equals(protocol) && !"binary".equals(protocol)) {
+            throw new IllegalArgumentException("load.protocol should be http or binary, was " + protocol);
+        }
+    }
+
+    /**
+     * @return true when total balance is as expected
+     */
+    boolean run() throws Exception {
+        createAccounts();
+        List<Integer> ids = new ArrayList<>();
+        long totalBefore = totalBalance(ids);
+        if (ids.isEmpty()) {
+            throw new IllegalStateException("No accounts to send requests for");
+        }
+        System.out.printf(Locale.ROOT, "%d accounts, total balance %s, %.0f %s requests/s for %ds after %ds of warmup%n",
+                ids.size(), Money.ofMinor(totalBefore), rate, protocol, durationSeconds, warmupSeconds);
+        if ("binary".equals(protocol)) {
+            connectBinary();
+        }
+
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        try (PrintStream log = new PrintStream(result + ".hlog", StandardCharsets.UTF_8.name())) {
+            HistogramLogWriter logWriter = new HistogramLogWriter(log);
+            logWriter.outputLogFormatVersion();
+            logWriter.outputStartTime(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(warmupSeconds));
+            logWriter.outputLegend();
+            reporter.scheduleAtFixedRate(() -> report(logWriter, false), warmupSeconds + reportIntervalSeconds,
+                    reportIntervalSeconds, TimeUnit.SECONDS);
+            schedule(ids, start, end);
+            // every request has its answer or its timeout
+            inFlight.acquire(maxInFlight);
+            reporter.shutdown();
+            reporter.awaitTermination(1, TimeUnit.MINUTES);
+            report(logWriter, true);
+        } finally {
+            if (binaryClients != null) {
+                for (BinaryClient client : binaryClients) {
+                    client.close();
+                }
+            }
+        }
+
+        long totalAfter = totalBalance(new ArrayList<>());
+        long expected = totalBefore + createdMinorUnits.sum();
+        printSummary();
+        boolean balanced = totalAfter == expected;
+        System.out.printf(Locale.ROOT, "total balance %s, expected %s - %s%n", Money.ofMinor(totalAfter), Money.ofMinor(expected),
+                balanced ? "OK" : unansweredCreates.sum() > 0
+                        ? "differs, " + unansweredCreates.sum() + " accounts may have been created without answer"
+                        : "MONEY WAS LOST OR CREATED");
+        return balanced;
+    }
+
+    /*
+        start of request i is fixed in advance, a late start is made up for right away
+        and counted in its latency, the schedule never moves with the service
+     */
+    private void schedule(List<Integer> ids, long start, long end) throws InterruptedException {
+        SplittableRandom random = new SplittableRandom(42);
+        AccountChooser chooser = "zipf".equals(distribution) ? AccountChooser.zipf(ids.size(), skew, 7)
+                : AccountChooser.uniform(ids.size(), 7);
+        int totalWeight = weights[weights.length - 1];
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * 1e9 / rate);
+            if (intended >= end) {
+                return;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            inFlight.acquire();
+            int draw = random.nextInt(totalWeight);
+            int type = 0;
+            while (weights[type] <= draw) {
+                type++;
+            }
+            Operation operation = operations[type];
+            send(operation, binaryClients != null ? binaryCall(operation, ids, chooser, i)
+                    : httpCall(request(operation, ids, chooser, i)), intended);
+        }
+    }
+
+    private HttpRequest request(Operation operation, List<Integer> ids, AccountChooser chooser, long i) {
+        switch (operation) {
+            case CREATE:
+                return post("/createAccount", codec.toJson(new Account(0, "load" + i, initialBalance)));
+            case GET:
+                return HttpRequest.newBuilder(URI.create(target + "/getAccount/" + ids.get(chooser.next())))
+                        .timeout(timeout).GET().build();
+            case TRANSFER:
+                int from = chooser.next();
+                int to = chooser.nextOtherThan(from);
+                return post("/performExchange", codec.toJson(new ExchangeRequest(new Account(ids.get(from), null, null),
+                        new Account(ids.get(to), null, null), amount)));
+            default:
+                return HttpRequest.newBuilder(URI.create(target + "/getAllAccounts")).timeout(timeout).GET().build();
+        }
+    }
+
+    /*
+        requests of a run are spread over the connections, each of them pipelines its share
+     */
+    private CompletableFuture<CompositeResponse> binaryCall(Operation operation, List<Integer> ids, AccountChooser chooser, long i) {
+        BinaryClient client = binaryClients[(int) (i % binaryClients.length)];
+        CompletableFuture<CompositeResponse> answer;
+        switch (operation) {
+            case CREATE:
+                answer = client.insertAccount(new Account(0, "load" + i, initialBalance));
+                break;
+            case GET:
+                answer = client.getAccount(ids.get(chooser.next()));
+                break;
+            case TRANSFER:
+                int from = chooser.next();
+                int to = chooser.nextOtherThan(from);
+                answer = client.performExchange(new ExchangeRequest(new Account(ids.get(from), null, null),
+                        new Account(ids.get(to), null, null), amount));
+                break;
+            default:
+                answer = client.getAccounts(0, PAGE_SIZE);
+        }
+        return answer.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /*
+        answer other than 200 is no answer
+     */
+    private CompletableFuture<CompositeResponse> httpCall(HttpRequest request) {
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> response.statusCode() == 200
+                        ? codec.read(new ByteArrayInputStream(response.body()), CompositeResponse.class) : null);
+    }
+
+    private void send(Operation operation, CompletableFuture<CompositeResponse> answer, long intended) {
+        answer.whenComplete((compositeResponse, e) -> {
+            long latency = System.nanoTime() - intended;
+            try {
+                boolean answered = e == null && compositeResponse != null && compositeResponse.getError() != null;
+                if (operation == Operation.CREATE) {
+                    if (!answered) {
+                        unansweredCreates.increment();
+                    } else if (!compositeResponse.getError()) {
+                        createdMinorUnits.add(initialBalance.getMinorUnits());
+                    }
+                }
+                if (intended >= measureStart) {
+                    stats[operation.ordinal()].record(latency, !answered ? Outcome.ERROR
+                            : compositeResponse.getError() ? Outcome.FAILED : Outcome.OK);
+                }
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private synchronized void report(HistogramLogWriter logWriter, boolean last) {
+        double elapsed = (System.nanoTime() - measureStart) / 1e9;
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%8.0fs", elapsed));
+        for (Stats stat : stats) {
+            Histogram interval = stat.flip();
+            if (interval.getTotalCount() == 0) {
+                continue;
+            }
+            logWriter.outputIntervalHistogram(interval);
+            line.append(String.format(Locale.ROOT, "  %s %d p99 %.2fms max %.2fms", stat.operation.key,
+                    interval.getTotalCount(), interval.getValueAtPercentile(99) / NANOS_IN_MILLISECOND,
+                    interval.getMaxValue() / NANOS_IN_MILLISECOND));
+        }
+        if (!last) {
+            System.out.println(line);
+        }
+    }
+
+    private void printSummary() throws IOException {
+        System.out.printf(Locale.ROOT, "%-9s %10s %10s %8s %8s %10s %9s %9s %9s %9s %9s%n", "request", "count", "ok", "failed",
+                "errors", "per second", "p50 ms", "p99 ms", "p99.9 ms", "p99.99 ms", "max ms");
+        for (Stats stat : stats) {
+            Histogram total = stat.total;
+            if (total.getTotalCount() == 0) {
+                continue;
+            }
+            System.out.printf(Locale.ROOT, "%-9s %10d %10d %8d %8d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", stat.operation.key,
+                    total.getTotalCount(), stat.ok.sum(), stat.failed.sum(), stat.errors.sum(),
+                    total.getTotalCount() / (double) durationSeconds,
+                    total.getValueAtPercentile(50) / NANOS_IN_MILLISECOND, total.getValueAtPercentile(99) / NANOS_IN_MILLISECOND,
+                    total.getValueAtPercentile(99.9) / NANOS_IN_MILLISECOND, total.getValueAtPercentile(99.99) / NANOS_IN_MILLISECOND,
+                    total.getMaxValue() / NANOS_IN_MILLISECOND);
+            try (PrintStream out = new PrintStream(result + "-" + stat.operation.key + ".hgrm", StandardCharsets.UTF_8.name())) {
+                total.outputPercentileDistribution(out, NANOS_IN_MILLISECOND);
+            }
+        }
+    }
+
+    private void connectBinary() throws IOException {
+        int separator = binaryTarget.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("load.binaryTarget should look like host:port, was " + binaryTarget);
+        }
+        binaryClients = new BinaryClient[connections];
+        for (int i = 0; i < connections; i++) {
+            binaryClients[i] = BinaryClient.connect(binaryTarget.substring(0, separator),
+                    Integer.parseInt(binaryTarget.substring(separator + 1)));
+        }
+    }
+
+    private void createAccounts() throws IOException, InterruptedException {
+        for (int created = 0; created < accountsCount; created += PAGE_SIZE) {
+            List<Account> accounts = new ArrayList<>();
+            for (int i = created; i < Math.min(created + PAGE_SIZE, accountsCount); i++) {
+                accounts.add(new Account(0, "load" + i, initialBalance));
+            }
+            HttpResponse<String> response = httpClient.send(post("/createAccounts", codec.toJson(accounts)),
+                    HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200 || !response.body().contains("\"error\":false")) {
+                throw new IllegalStateException("Couldn't create accounts: " + response.body());
+            }
+        }
+    }
+
+    /*
+        paged, a single answer with all accounts may be too large
+     */
+    private long totalBalance(List<Integer> ids) throws IOException, InterruptedException {
+        long total = 0;
+        int afterId = 0;
+        while (true) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(target + "/getAllAccounts?afterId=" + afterId
+                    + "&limit=" + PAGE_SIZE)).timeout(timeout).GET().build();
+            HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            CompositeResponse page = response.statusCode() == 200
+                    ? codec.read(new ByteArrayInputStream(response.body()), CompositeResponse.class) : null;
+            if (page == null || page.getError() == null || page.getError()) {
+                throw new UncheckedIOException(new IOException("Couldn't read accounts after id " + afterId));
+            }
+            for (Account account : page.getAccounts()) {
+                total += account.getBalance().getMinorUnits();
+                ids.add(account.getId());
+                afterId = account.getId();
+            }
+            if (page.getAccounts().size() < PAGE_SIZE) {
+                return total;
+            }
+        }
+    }
+
+    private HttpRequest post(String path, String json) {
+        return HttpRequest.newBuilder(URI.create(target + path)).timeout(timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8)).build();
+    }
+
+    /**
+     * @param mix weights of request types like transfer=80,get=20
+     * @return cumulative weights in order of {@link Operation#values()}
+     */
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[Operation.values().length];
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("load.mix should look like transfer=80,get=20, was " + mix);
+            }
+            weights[Operation.of(pair[0].trim()).ordinal()] = Integer.parseInt(pair[1].trim());
+        }
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+        if (weights[weights.length - 1] <= 0) {
+            throw new IllegalArgumentException("load.mix should have a positive weight, was " + mix);
+        }
+        return weights;
+    }
+
+    private static String stripSlash(String uri) {
+        return uri.endsWith("/") ? uri.substring(0, uri.length() - 1) : uri;
+    }
+
+    private enum Outcome {
+        OK, FAILED, ERROR
+    }
+
+    private static class Stats {
+        private final Operation operation;
+        private final Recorder recorder = new Recorder(HIGHEST_LATENCY, 3);
+        // intervals taken from recorder so far, guarded by LoadGenerator.report
+        private final Histogram total = new Histogram(HIGHEST_LATENCY, 3);
+        private final LongAdder ok = new LongAdder();
+        // answered with error, e.g. not enough money
+        private final LongAdder failed = new LongAdder();
+        // no answer - timeout, connection or status other than 200
+        private final LongAdder errors = new LongAdder();
+        private Histogram interval;
+
+        Stats(Operation operation) {
+            this.operation = operation;
+            total.setTag(operation.key);
+        }
+
+        void record(long latency, Outcome outcome) {
+            recorder.recordValue(Math.min(latency, HIGHEST_LATENCY));
+            (outcome == Outcome.OK ? ok : outcome == Outcome.FAILED ? failed : errors).increment();
+        }
+
+        Histogram flip() {
+            interval = recorder.getIntervalHistogram(interval);
+            interval.setTag(operation.key);
+            total.add(interval);
+            return interval;
+        }
+    }
+}
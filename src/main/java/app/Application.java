@@ -1,23 +1,191 @@
 package app;
 
+import app.binary.BinaryFrontEnd;
+import app.cluster.ClusterDAOService;
+import app.cluster.HashRing;
+import app.cluster.PartitionDAOService;
+import app.cluster.RemoteDAOService;
 import app.data.Context;
 import app.database.DBConnector;
+import app.fx.FxRateTable;
+import app.http.VirtualThreadFrontEnd;
+import app.journal.Journal;
+import app.json.JsonCodec;
+import app.journal.Snapshotter;
+import app.metrics.Metrics;
+import app.service.CachingDAOService;
 import app.service.DAOServiceImpl;
 import app.service.DAOService;
+import app.service.IdempotentDAOService;
+import app.service.InMemoryLedgerService;
+import app.service.JournalingDAOService;
+import app.service.ReadModelDAOService;
 import app.service.RestService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.Properties;
 
+import static spark.Spark.port;
+
 public final class Application {
+    private static Logger LOG = LoggerFactory.getLogger(Application.class);
     private static Context context = null;
 
     static void start() {
         initProperties();
         if (context == null) {
-            DAOService daoService = new DAOServiceImpl(new DBConnector());
-            context = new Context(daoService, new RestService(daoService));
+            DAOService daoService = createDaoService();
+            if ("virtual".equals(System.getProperty("http.frontEnd"))) {
+                VirtualThreadFrontEnd frontEnd = new VirtualThreadFrontEnd(Integer.getInteger("service.port"),
+                        Integer.getInteger("http.maxConcurrentRequests"), Integer.getInteger("http.ioThreads"));
+                frontEnd.registerMetrics(Metrics.REGISTRY);
+                frontEnd.start(() -> context = new Context(daoService, new RestService(daoService)));
+            } else {
+                port(Integer.getInteger("service.port"));
+                context = new Context(daoService, new RestService(daoService));
+            }
+            if (Boolean.getBoolean("binary.enabled")) {
+                BinaryFrontEnd binaryFrontEnd = new BinaryFrontEnd(Integer.getInteger("binary.port"),
+                        Integer.getInteger("binary.maxConcurrentRequests"), Integer.getInteger("binary.ioThreads"), daoService,
+                        context.getRestService()::performExchange);
+                binaryFrontEnd.registerMetrics(Metrics.REGISTRY);
+                binaryFrontEnd.start();
+            }
+        }
+    }
+
+    private static DAOService createDaoService() {
+        String role = System.getProperty("cluster.role");
+        // a node takes exchange sides only from whoever knows the secret, sides credit money without debiting any
+        if (("router".equals(role) || "node".equals(role)) && System.getProperty("cluster.secret").isEmpty()) {
+            throw new IllegalStateException("Router and nodes of a cluster share a secret, set cluster.secret");
+        }
+        if ("router".equals(role)) {
+            return withIdempotency(createRouter());
+        }
+        if ("node".equals(role) && Boolean.getBoolean("journal.enabled")) {
+            throw new IllegalStateException("Exchange sides of a cluster node aren't journaled, disable journal.enabled");
+        }
+        // the router retries a side it got no answer for, only the key makes the node apply it once
+        if ("node".equals(role) && !Boolean.getBoolean("idempotency.enabled")) {
+            throw new IllegalStateException("Exchange sides of a cluster node are retried by the router, enable idempotency.enabled");
+        }
+        FxRateTable fxRateTable = createFxRateTable();
+        DAOService daoService;
+        if ("memory".equals(System.getProperty("dao.engine"))) {
+            daoService = new InMemoryLedgerService(Integer.getInteger("ledger.shards"), fxRateTable);
+        } else {
+            DBConnector dbConnector = new DBConnector();
+            dbConnector.registerMetrics(Metrics.REGISTRY);
+            daoService = new DAOServiceImpl(dbConnector, fxRateTable);
+        }
+        Journal journal = Boolean.getBoolean("journal.enabled") ? openJournal() : null;
+        restore(daoService, journal);
+        if (Boolean.getBoolean("snapshot.enabled")) {
+            new Snapshotter(Path.of(System.getProperty("snapshot.path")), journal, daoService)
+                    .start(Long.getLong("snapshot.intervalSeconds"));
+        }
+        if ("node".equals(role)) {
+            daoService = new PartitionDAOService(daoService, createRing(), Integer.getInteger("cluster.nodeId"), fxRateTable);
+        }
+        if (journal != null) {
+            daoService = new JournalingDAOService(daoService, journal);
+        }
+        if (Boolean.getBoolean("readModel.enabled")) {
+            ReadModelDAOService readModel = new ReadModelDAOService(daoService);
+            readModel.registerMetrics(Metrics.REGISTRY);
+            daoService = readModel;
+        } else if (Boolean.getBoolean("cache.enabled")) {
+            CachingDAOService cache = new CachingDAOService(daoService, Integer.getInteger("cache.maxSize"));
+            cache.registerMetrics(Metrics.REGISTRY);
+            daoService = cache;
+        }
+        return withIdempotency(daoService);
+    }
+
+    /*
+        without a rates file every account is in the base currency
+     */
+    private static FxRateTable createFxRateTable() {
+        FxRateTable fxRateTable = FxRateTable.baseOnly();
+        String ratesPath = System.getProperty("fx.ratesPath");
+        if (!ratesPath.isEmpty()) {
+            fxRateTable.watch(Path.of(ratesPath), Long.getLong("fx.reloadSeconds"));
+        }
+        return fxRateTable;
+    }
+
+    private static DAOService withIdempotency(DAOService daoService) {
+        if (Boolean.getBoolean("idempotency.enabled")) {
+            IdempotentDAOService idempotent = new IdempotentDAOService(daoService, Integer.getInteger("idempotency.maxKeys"),
+                    Long.getLong("idempotency.ttlSeconds"));
+            idempotent.registerMetrics(Metrics.REGISTRY);
+            return idempotent;
+        }
+        return daoService;
+    }
+
+    /*
+        router keeps no accounts and no cache of them, nodes are called through their REST routes
+     */
+    private static DAOService createRouter() {
+        Duration timeout = Duration.ofMillis(Long.getLong("cluster.timeoutMillis"));
+        HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(timeout).build();
+        JsonCodec codec = new JsonCodec();
+        List<RemoteDAOService> nodes = new ArrayList<>();
+        for (String node : clusterNodes()) {
+            nodes.add(new RemoteDAOService(node, httpClient, timeout, codec, System.getProperty("cluster.secret")));
+        }
+        return new ClusterDAOService(nodes, createRing(), Integer.getInteger("cluster.attempts"));
+    }
+
+    private static HashRing createRing() {
+        return new HashRing(clusterNodes(), Integer.getInteger("cluster.virtualNodes"));
+    }
+
+    private static List<String> clusterNodes() {
+        List<String> nodes = new ArrayList<>();
+        for (String node : System.getProperty("cluster.nodes").split(",")) {
+            if (!node.trim().isEmpty()) {
+                nodes.add(node.trim());
+            }
+        }
+        if (nodes.isEmpty()) {
+            throw new IllegalStateException("cluster.nodes should list base URIs of cluster nodes");
+        }
+        return nodes;
+    }
+
+    private static Journal openJournal() {
+        try {
+            return Journal.open(System.getProperty("journal.path"), Long.getLong("journal.groupCommitMicros"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't open journal " + System.getProperty("journal.path"), e);
+        }
+    }
+
+    /*
+        state is rebuilt from latest snapshot and journal before any request can reach the service
+     */
+    private static void restore(DAOService daoService, Journal journal) {
+        long start = System.nanoTime();
+        try {
+            int restored = Snapshotter.restore(Path.of(System.getProperty("snapshot.path")), journal, daoService);
+            if (restored > 0) {
+                LOG.info("Restored {} accounts in {} ms", restored, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't restore accounts", e);
         }
     }
 
@@ -27,18 +195,66 @@ public final class Application {
             InputStream inputStream = classLoader.getResourceAsStream("app.properties");
             Properties prop = new Properties();
             prop.load(inputStream);
-            System.setProperty("db.uri", prop.getProperty("db.uri"));
-            System.setProperty("db.user", prop.getProperty("db.user"));
-            System.setProperty("db.password", prop.getProperty("db.password"));
-            System.setProperty("app.name", prop.getProperty("app.name"));
-            System.setProperty("service.port", prop.getProperty("service.port"));
-            System.setProperty("service.host", prop.getProperty("service.host"));
+            setProperty(prop, "db.uri", null);
+            setProperty(prop, "db.user", null);
+            setProperty(prop, "db.password", null);
+            setProperty(prop, "db.pool.maxConnections", "20");
+            setProperty(prop, "db.pool.timeoutMillis", "30000");
+            setProperty(prop, "app.name", null);
+            setProperty(prop, "service.port", null);
+            setProperty(prop, "service.host", null);
+            setProperty(prop, "http.frontEnd", "spark");
+            setProperty(prop, "http.maxConcurrentRequests", "20000");
+            setProperty(prop, "http.ioThreads", "16");
+            setProperty(prop, "binary.enabled", "false");
+            setProperty(prop, "binary.port", "4568");
+            setProperty(prop, "binary.maxConcurrentRequests", "20000");
+            setProperty(prop, "binary.ioThreads", "1");
+            setProperty(prop, "dao.engine", "jdbc");
+            setProperty(prop, "dao.exchange.mode", "atomic");
+            setProperty(prop, "batch.atomic", "true");
+            setProperty(prop, "cache.enabled", "false");
+            setProperty(prop, "cache.maxSize", "10000");
+            setProperty(prop, "readModel.enabled", "false");
+            setProperty(prop, "journal.enabled", "false");
+            setProperty(prop, "journal.path", "data/transfers.journal");
+            setProperty(prop, "journal.groupCommitMicros", "200");
+            setProperty(prop, "snapshot.enabled", "false");
+            setProperty(prop, "snapshot.path", "data/accounts.snapshot");
+            setProperty(prop, "snapshot.intervalSeconds", "60");
+            setProperty(prop, "idempotency.enabled", "true");
+            setProperty(prop, "idempotency.maxKeys", "100000");
+            setProperty(prop, "idempotency.ttlSeconds", "3600");
+            setProperty(prop, "idempotency.persist", "false");
+            setProperty(prop, "hotAccounts.enabled", "false");
+            setProperty(prop, "hotAccounts.threshold", "4");
+            setProperty(prop, "hotAccounts.maxBatchSize", "256");
+            setProperty(prop, "history.enabled", "true");
+            setProperty(prop, "import.batchSize", "1000");
+            setProperty(prop, "ledger.shards", String.valueOf(Runtime.getRuntime().availableProcessors()));
+            setProperty(prop, "cluster.role", "standalone");
+            setProperty(prop, "cluster.nodes", "");
+            setProperty(prop, "cluster.nodeId", "0");
+            setProperty(prop, "cluster.virtualNodes", "128");
+            setProperty(prop, "cluster.timeoutMillis", "5000");
+            setProperty(prop, "cluster.attempts", "3");
+            setProperty(prop, "cluster.secret", "");
+            setProperty(prop, "fx.baseCurrency", "EUR");
+            setProperty(prop, "fx.ratesPath", "");
+            setProperty(prop, "fx.reloadSeconds", "5");
         }
         catch (IOException e) {
-            e.printStackTrace();
+            LOG.error("Couldn't read app.properties", e);
         }
     }
 
+    /*
+        -D given on the command line wins over app.properties, so several instances can run from one build
+     */
+    private static void setProperty(Properties prop, String key, String defaultValue) {
+        System.setProperty(key, System.getProperty(key, prop.getProperty(key, defaultValue)));
+    }
+
     public static Context getContext() {
         return context;
     }
@@ -0,0 +1,240 @@
+package app.binary;
+
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Client of the {@link BinaryFrontEnd} over one connection, calls mirror {@link app.service.DAOService}.
+ * Calls don't wait for answers, any number of them may be in flight on the connection and each completes
+ * its future when its answer comes, on the thread reading the connection - callbacks shouldn't block.
+ * Calls in flight together run concurrently on the server, one that has to see the result of another
+ * has to wait for its future first.
+ * <p>
+ * Requests sent while another thread writes are appended to its buffer and written with it.
+ * A BUSY or malformed request completes with an error response, a broken connection fails all calls in flight.
+ * Thread-safe.
+ */
+public class BinaryClient implements Closeable {
+    private static Logger LOG = LoggerFactory.getLogger(BinaryClient.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final Map<Long, CompletableFuture<CompositeResponse>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong correlationIds = new AtomicLong();
+    // requests not written yet, guarded by this
+    private ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    // written outside of the lock by the thread that found nobody writing
+    private ByteBuffer writing = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private boolean flushing;
+    private volatile IOException failure;
+
+    private BinaryClient(SocketChannel channel, String name) {
+        this.channel = channel;
+        Thread reader = new Thread(this::read, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public static BinaryClient connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return new BinaryClient(channel, "binary-client-" + host + ":" + port);
+    }
+
+    public CompletableFuture<CompositeResponse> getAccount(int id) {
+        return send(BinaryProtocol.GET_ACCOUNT, buffer -> buffer.putInt(id));
+    }
+
+    public CompletableFuture<CompositeResponse> getAccounts(int afterId, int limit) {
+        return send(BinaryProtocol.GET_ACCOUNTS, buffer -> buffer.putInt(afterId).putInt(limit));
+    }
+
+    public CompletableFuture<CompositeResponse> insertAccount(Account account) {
+        return send(BinaryProtocol.CREATE_ACCOUNT, buffer -> BinaryProtocol.putAccount(buffer, account));
+    }
+
+    public CompletableFuture<CompositeResponse> performExchange(ExchangeRequest exchangeRequest) {
+        return send(BinaryProtocol.EXCHANGE, buffer -> {
+            BinaryProtocol.putExchange(buffer, exchangeRequest);
+            BinaryProtocol.putString(buffer, exchangeRequest.getIdempotencyKey());
+        });
+    }
+
+    /**
+     * Batch with the server's batch.atomic default.
+     */
+    public CompletableFuture<CompositeResponse> performExchanges(List<ExchangeRequest> exchangeRequests) {
+        return performExchanges(exchangeRequests, BinaryProtocol.ATOMIC_DEFAULT);
+    }
+
+    public CompletableFuture<CompositeResponse> performExchanges(List<ExchangeRequest> exchangeRequests, boolean atomic) {
+        return performExchanges(exchangeRequests, (byte) (atomic ? 1 : 0));
+    }
+
+    private CompletableFuture<CompositeResponse> performExchanges(List<ExchangeRequest> exchangeRequests, byte atomic) {
+        return send(BinaryProtocol.EXCHANGES, buffer -> {
+            buffer.put(atomic).putInt(exchangeRequests.size());
+            for (ExchangeRequest exchangeRequest : exchangeRequests) {
+                BinaryProtocol.putExchange(buffer, exchangeRequest);
+            }
+        });
+    }
+
+    public int getPendingRequests() {
+        return pending.size();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.debug("Couldn't close binary connection", e);
+        }
+        fail(new IOException("Client closed"));
+    }
+
+    private CompletableFuture<CompositeResponse> send(byte operation, Consumer<ByteBuffer> body) {
+        CompletableFuture<CompositeResponse> future = new CompletableFuture<>();
+        IOException failed = failure;
+        if (failed != null) {
+            future.completeExceptionally(failed);
+            return future;
+        }
+        long correlationId = correlationIds.incrementAndGet();
+        pending.put(correlationId, future);
+        boolean flush;
+        synchronized (this) {
+            int start = out.position();
+            while (true) {
+                try {
+                    int frame = BinaryProtocol.beginFrame(out, operation, correlationId);
+                    body.accept(out);
+                    BinaryProtocol.endFrame(out, frame);
+                    break;
+                } catch (BufferOverflowException e) {
+                    out.position(start);
+                    out = BinaryProtocol.ensureRemaining(out, out.capacity());
+                } catch (RuntimeException e) {
+                    out.position(start);
+                    pending.remove(correlationId);
+                    future.completeExceptionally(e);
+                    return future;
+                }
+            }
+            flush = !flushing;
+            flushing = true;
+        }
+        if (flush) {
+            flush();
+        }
+        // closed between the check and the put, nobody else fails it
+        if (failure != null) {
+            fail(failure);
+        }
+        return future;
+    }
+
+    /*
+        swaps buffers until nothing is left, requests appended meanwhile go out with the next write
+     */
+    private void flush() {
+        while (true) {
+            synchronized (this) {
+                if (out.position() == 0) {
+                    flushing = false;
+                    return;
+                }
+                ByteBuffer full = out;
+                out = writing;
+                writing = full;
+            }
+            writing.flip();
+            try {
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+            } catch (IOException e) {
+                fail(e);
+                synchronized (this) {
+                    out.clear();
+                    flushing = false;
+                }
+                writing.clear();
+                return;
+            }
+            writing.clear();
+        }
+    }
+
+    private void read() {
+        ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            while (true) {
+                if (channel.read(in) < 0) {
+                    throw new EOFException("Connection closed by server");
+                }
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < BinaryProtocol.HEADER_SIZE - 4 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                        throw new IOException("Frame of " + length + " bytes");
+                    }
+                    if (in.remaining() < 4 + length) {
+                        break;
+                    }
+                    int end = in.position() + 4 + length;
+                    in.position(in.position() + 4);
+                    byte status = in.get();
+                    long correlationId = in.getLong();
+                    CompositeResponse compositeResponse = BinaryProtocol.getResponse(in, status != BinaryProtocol.OK);
+                    in.position(end);
+                    CompletableFuture<CompositeResponse> future = pending.remove(correlationId);
+                    if (future != null) {
+                        future.complete(compositeResponse);
+                    }
+                }
+                in.compact();
+                if (in.position() >= 4) {
+                    in = BinaryProtocol.ensureRemaining(in, 4 + in.getInt(0) - in.position());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e instanceof IOException ? (IOException) e : new IOException("Malformed answer", e));
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (Long correlationId : pending.keySet()) {
+            CompletableFuture<CompositeResponse> future = pending.remove(correlationId);
+            if (future != null) {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package app.binary;
+
+import app.metrics.MetricsRegistry;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+import app.service.DAOService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Listener of the {@link BinaryProtocol} next to the HTTP routes, for internal callers sending many small requests.
+ * Connections stay open and carry pipelined requests. IO threads only read and decode frames, every request runs
+ * on a virtual thread against the same service as the routes, so transfers take the account locks of the routes.
+ * The thread finishing a request writes its answer into the connection itself, the IO thread writes only what
+ * the socket didn't take at once.
+ * <p>
+ * At most maxConcurrentRequests are in flight, requests above that are answered with BUSY at once.
+ * A connection whose unwritten answers grow over OUTBOUND_LIMIT isn't read from until they are written.
+ */
+public class BinaryFrontEnd implements Closeable {
+    private static Logger LOG = LoggerFactory.getLogger(BinaryFrontEnd.class);
+    private static final int ACCEPT_QUEUE_SIZE = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int OUTBOUND_LIMIT = 4 << 20;
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private final int port;
+    private final int maxConcurrentRequests;
+    private final DAOService daoService;
+    private final Function<ExchangeRequest, CompositeResponse> exchange;
+    private final Semaphore permits;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final IoLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel server;
+    private volatile boolean closed;
+
+    /**
+     * @param exchange  runs a single exchange, the one of the routes so both take the same account locks
+     * @param ioThreads threads reading and writing connections, requests never run on them
+     */
+    public BinaryFrontEnd(int port, int maxConcurrentRequests, int ioThreads, DAOService daoService,
+                          Function<ExchangeRequest, CompositeResponse> exchange) {
+        if (maxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("Concurrent requests limit should be positive, was " + maxConcurrentRequests);
+        }
+        if (ioThreads <= 0) {
+            throw new IllegalArgumentException("IO threads should be positive, was " + ioThreads);
+        }
+        this.port = port;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.daoService = daoService;
+        this.exchange = exchange;
+        this.permits = new Semaphore(maxConcurrentRequests);
+        this.loops = new IoLoop[ioThreads];
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("binary_in_flight_requests", "", "Binary requests running on virtual threads", this::getInFlightRequests);
+        registry.gauge("binary_connections", "", "Open binary protocol connections", connections::get);
+        registry.counter("binary_rejected_requests_total", "", "Binary requests answered with BUSY", this::getRejectedRequests);
+    }
+
+    public void start() {
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port), ACCEPT_QUEUE_SIZE);
+            server.configureBlocking(false);
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoLoop(Selector.open());
+            }
+            server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't start binary front end on port " + port, e);
+        }
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "binary-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        LOG.info("Binary front end started on port {}, up to {} concurrent requests on virtual threads",
+                getPort(), maxConcurrentRequests);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            LOG.error("Couldn't close binary front end", e);
+        }
+        for (IoLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return port listened on, the bound one if started on port 0
+     */
+    public int getPort() {
+        try {
+            return server != null ? ((InetSocketAddress) server.getLocalAddress()).getPort() : port;
+        } catch (IOException e) {
+            return port;
+        }
+    }
+
+    public int getInFlightRequests() {
+        return maxConcurrentRequests - permits.availablePermits();
+    }
+
+    public long getRejectedRequests() {
+        return rejected.sum();
+    }
+
+    /*
+        decoded on the IO thread, a malformed frame is answered before anything runs
+     */
+    private Request decode(byte operation, ByteBuffer body) {
+        switch (operation) {
+            case BinaryProtocol.GET_ACCOUNT: {
+                int id = body.getInt();
+                return () -> daoService.getAccount(id);
+            }
+            case BinaryProtocol.GET_ACCOUNTS: {
+                int afterId = body.getInt();
+                int limit = body.getInt();
+                if (limit <= 0) {
+                    throw new IllegalArgumentException("Limit should be positive");
+                }
+                return () -> daoService.getAccounts(afterId, Math.min(limit, MAX_PAGE_SIZE));
+            }
+            case BinaryProtocol.CREATE_ACCOUNT: {
+                Account account = BinaryProtocol.getAccount(body);
+                return () -> daoService.insertAccount(account);
+            }
+            case BinaryProtocol.EXCHANGE: {
+                ExchangeRequest exchangeRequest = BinaryProtocol.getExchange(body, null);
+                String idempotencyKey = BinaryProtocol.getString(body);
+                if (idempotencyKey != null && idempotencyKey.length() > ExchangeRequest.MAX_IDEMPOTENCY_KEY_LENGTH) {
+                    throw new IllegalArgumentException("Idempotency key is longer than "
+                            + ExchangeRequest.MAX_IDEMPOTENCY_KEY_LENGTH + " characters");
+                }
+                ExchangeRequest keyed = idempotencyKey == null ? exchangeRequest : new ExchangeRequest(
+                        exchangeRequest.getFrom(), exchangeRequest.getTo(), exchangeRequest.getAmount(), idempotencyKey);
+                return () -> exchange.apply(keyed);
+            }
+            case BinaryProtocol.EXCHANGES: {
+                byte atomic = body.get();
+                int count = body.getInt();
+                if (count <= 0) {
+                    throw new IllegalArgumentException("No exchanges in batch");
+                }
+                if (count > ExchangeRequest.MAX_BATCH_SIZE) {
+                    throw new IllegalArgumentException("Batch of " + count + " exchanges is larger than " + ExchangeRequest.MAX_BATCH_SIZE);
+                }
+                // every exchange takes 16 bytes, a count the frame can't hold is a lie
+                if (count > body.remaining() / 16) {
+                    throw new IllegalArgumentException("Batch is shorter than its count");
+                }
+                List<ExchangeRequest> exchangeRequests = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    exchangeRequests.add(BinaryProtocol.getExchange(body, null));
+                }
+                boolean allOrNothing = atomic == BinaryProtocol.ATOMIC_DEFAULT
+                        ? Boolean.parseBoolean(System.getProperty("batch.atomic")) : atomic != 0;
+                return () -> daoService.performExchanges(exchangeRequests, allOrNothing);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    private static CompositeResponse error(String message) {
+        return new CompositeResponseBuilder().setError(true).setMessage(message).createCompositeResponse();
+    }
+
+    @FunctionalInterface
+    private interface Request {
+        CompositeResponse execute();
+    }
+
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        // registrations and interest changes asked for by other threads
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (!closed) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isWritable()) {
+                            connection.writePending();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                } catch (IOException | RuntimeException e) {
+                    if (!closed) {
+                        LOG.error("Binary IO loop failed", e);
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.error("Couldn't close selector", e);
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                IoLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = channel;
+                loop.execute(() -> loop.register(accepted));
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key, this));
+                connections.incrementAndGet();
+            } catch (IOException e) {
+                LOG.error("Couldn't register connection", e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final IoLoop loop;
+        // read and decoded by the IO thread only
+        private ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        // answers not written yet, guarded by this
+        private ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        // IO thread writes the rest of out, guarded by this
+        private boolean writing;
+        private boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key, IoLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+        }
+
+        void read() {
+            int read;
+            try {
+                read = channel.read(in);
+            } catch (IOException e) {
+                LOG.debug("Binary connection failed", e);
+                close();
+                return;
+            }
+            if (read < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < BinaryProtocol.HEADER_SIZE - 4 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                    LOG.warn("Closing binary connection {}, frame of {} bytes", remote(), length);
+                    close();
+                    return;
+                }
+                if (in.remaining() < 4 + length) {
+                    break;
+                }
+                int end = in.position() + 4 + length;
+                int limit = in.limit();
+                in.position(in.position() + 4).limit(end);
+                byte operation = in.get();
+                long correlationId = in.getLong();
+                dispatch(operation, correlationId);
+                in.limit(limit).position(end);
+            }
+            in.compact();
+            if (in.position() >= 4) {
+                in = BinaryProtocol.ensureRemaining(in, 4 + in.getInt(0) - in.position());
+            }
+        }
+
+        private void dispatch(byte operation, long correlationId) {
+            Request request;
+            try {
+                request = decode(operation, in);
+                if (in.hasRemaining()) {
+                    throw new IllegalArgumentException("Frame is longer than its body");
+                }
+            } catch (BufferUnderflowException e) {
+                respond(correlationId, BinaryProtocol.BAD_REQUEST, error("Frame is shorter than its body"));
+                return;
+            } catch (IllegalArgumentException e) {
+                respond(correlationId, BinaryProtocol.BAD_REQUEST, error(e.getMessage()));
+                return;
+            }
+            if (!permits.tryAcquire()) {
+                rejected.increment();
+                respond(correlationId, BinaryProtocol.BUSY, error("Too many requests"));
+                return;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        CompositeResponse compositeResponse = request.execute();
+                        respond(correlationId, compositeResponse.getError() ? BinaryProtocol.ERROR : BinaryProtocol.OK,
+                                compositeResponse);
+                    } catch (RuntimeException e) {
+                        LOG.error("Binary request failed", e);
+                        respond(correlationId, BinaryProtocol.ERROR, error("Request failed"));
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                respond(correlationId, BinaryProtocol.BUSY, error("Service is stopping"));
+            }
+        }
+
+        /*
+            any thread; the socket takes what it can at once, the rest is left to the IO thread
+         */
+        synchronized void respond(long correlationId, byte status, CompositeResponse compositeResponse) {
+            if (closed) {
+                return;
+            }
+            int start = out.position();
+            while (true) {
+                try {
+                    int frame = BinaryProtocol.beginFrame(out, status, correlationId);
+                    BinaryProtocol.putResponse(out, compositeResponse);
+                    BinaryProtocol.endFrame(out, frame);
+                    break;
+                } catch (BufferOverflowException e) {
+                    out.position(start);
+                    out = BinaryProtocol.ensureRemaining(out, out.capacity());
+                }
+            }
+            if (!writing) {
+                flush();
+            }
+        }
+
+        synchronized void writePending() {
+            if (!closed) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            out.flip();
+            try {
+                channel.write(out);
+            } catch (IOException e) {
+                LOG.debug("Binary connection failed", e);
+                close();
+                return;
+            } finally {
+                out.compact();
+            }
+            boolean pending = out.position() > 0;
+            int interest = pending
+                    ? (out.position() > OUTBOUND_LIMIT ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE)
+                    : SelectionKey.OP_READ;
+            if (pending == writing && key.interestOps() == interest) {
+                return;
+            }
+            writing = pending;
+            key.interestOps(interest);
+            // a selector blocked in select sees new interest only once woken up
+            if (pending && Thread.currentThread() != loop.thread) {
+                loop.selector.wakeup();
+            }
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            connections.decrementAndGet();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("Couldn't close binary connection", e);
+            }
+        }
+
+        private String remote() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "?";
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package app.binary;
+
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+import app.model.Money;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frames of the binary protocol, all numbers big-endian. Every frame is int length of the rest of it,
+ * operation (request) or status (response) byte, long correlation id chosen by the client and the body.
+ * A connection carries any number of requests without waiting for answers, answers come in the order
+ * requests finish and are matched to them by correlation id.
+ * <p>
+ * Strings are short length of UTF-8 bytes (-1 for null) and the bytes. An account is int id, long balance
+ * in minor units, name and currency. Bodies of requests:
+ * <ul>
+ * <li>GET_ACCOUNT - int id</li>
+ * <li>GET_ACCOUNTS - int afterId, int limit</li>
+ * <li>CREATE_ACCOUNT - account, id is ignored</li>
+ * <li>EXCHANGE - int from, int to, long amount, idempotency key</li>
+ * <li>EXCHANGES - byte atomic (0, 1 or -1 for batch.atomic), int count (at most {@link ExchangeRequest#MAX_BATCH_SIZE})
+ * and count of int from, int to, long amount</li>
+ * </ul>
+ * Body of every answer is the {@link CompositeResponse} of the service: message, byte of fields present,
+ * then account, int count and accounts, long credited, int count and results, each result encoded the same way
+ * after a byte telling whether it's an error.
+ */
+final class BinaryProtocol {
+    static final int MAX_FRAME_SIZE = 16 << 20;
+    // length, operation or status and correlation id
+    static final int HEADER_SIZE = 4 + 1 + 8;
+
+    static final byte GET_ACCOUNT = 1;
+    static final byte GET_ACCOUNTS = 2;
+    static final byte CREATE_ACCOUNT = 3;
+    static final byte EXCHANGE = 4;
+    static final byte EXCHANGES = 5;
+
+    static final byte OK = 0;
+    // answer of the service with error set
+    static final byte ERROR = 1;
+    // too many requests in flight, nothing was done
+    static final byte BUSY = 2;
+    // malformed or unknown request, nothing was done
+    static final byte BAD_REQUEST = 3;
+
+    static final byte ATOMIC_DEFAULT = -1;
+
+    private static final byte HAS_ACCOUNT = 1;
+    private static final byte HAS_ACCOUNTS = 2;
+    private static final byte HAS_CREDITED = 4;
+    private static final byte HAS_RESULTS = 8;
+    // balance of an account created without one
+    private static final long NO_BALANCE = Long.MIN_VALUE;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Starts a frame, its length is filled in by {@link #endFrame(ByteBuffer, int)}.
+     *
+     * @return position of the frame
+     */
+    static int beginFrame(ByteBuffer buffer, byte type, long correlationId) {
+        int start = buffer.position();
+        buffer.putInt(0).put(type).putLong(correlationId);
+        return start;
+    }
+
+    static void endFrame(ByteBuffer buffer, int start) {
+        buffer.putInt(start, buffer.position() - start - 4);
+    }
+
+    static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("String of " + bytes.length + " bytes is too long for the protocol");
+        }
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void putAccount(ByteBuffer buffer, Account account) {
+        buffer.putInt(account.getId()).putLong(account.getBalance() == null ? NO_BALANCE : account.getBalance().getMinorUnits());
+        putString(buffer, account.getName());
+        putString(buffer, account.getCurrency());
+    }
+
+    static Account getAccount(ByteBuffer buffer) {
+        int id = buffer.getInt();
+        long balance = buffer.getLong();
+        String name = getString(buffer);
+        String currency = getString(buffer);
+        return new Account(id, name, balance == NO_BALANCE ? null : Money.ofMinor(balance), currency);
+    }
+
+    static void putExchange(ByteBuffer buffer, ExchangeRequest exchangeRequest) {
+        buffer.putInt(exchangeRequest.getFrom().getId())
+                .putInt(exchangeRequest.getTo().getId())
+                .putLong(exchangeRequest.getAmount().getMinorUnits());
+    }
+
+    static ExchangeRequest getExchange(ByteBuffer buffer, String idempotencyKey) {
+        Account from = new Account(buffer.getInt(), null, null);
+        Account to = new Account(buffer.getInt(), null, null);
+        return new ExchangeRequest(from, to, Money.ofMinor(buffer.getLong()), idempotencyKey);
+    }
+
+    static void putResponse(ByteBuffer buffer, CompositeResponse compositeResponse) {
+        putString(buffer, compositeResponse.getMessage());
+        byte fields = 0;
+        if (compositeResponse.getAccount() != null) {
+            fields |= HAS_ACCOUNT;
+        }
+        if (compositeResponse.getAccounts() != null) {
+            fields |= HAS_ACCOUNTS;
+        }
+        if (compositeResponse.getCredited() != null) {
+            fields |= HAS_CREDITED;
+        }
+        if (compositeResponse.getResults() != null) {
+            fields |= HAS_RESULTS;
+        }
+        buffer.put(fields);
+        if (compositeResponse.getAccount() != null) {
+            putAccount(buffer, compositeResponse.getAccount());
+        }
+        if (compositeResponse.getAccounts() != null) {
+            buffer.putInt(compositeResponse.getAccounts().size());
+            for (Account account : compositeResponse.getAccounts()) {
+                putAccount(buffer, account);
+            }
+        }
+        if (compositeResponse.getCredited() != null) {
+            buffer.putLong(compositeResponse.getCredited().getMinorUnits());
+        }
+        if (compositeResponse.getResults() != null) {
+            buffer.putInt(compositeResponse.getResults().size());
+            for (CompositeResponse result : compositeResponse.getResults()) {
+                buffer.put((byte) (Boolean.TRUE.equals(result.getError()) ? 1 : 0));
+                putResponse(buffer, result);
+            }
+        }
+    }
+
+    static CompositeResponse getResponse(ByteBuffer buffer, boolean error) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(error)
+                .setMessage(getString(buffer));
+        byte fields = buffer.get();
+        if ((fields & HAS_ACCOUNT) != 0) {
+            compositeResponseBuilder.setAccount(getAccount(buffer));
+        }
+        if ((fields & HAS_ACCOUNTS) != 0) {
+            int count = buffer.getInt();
+            List<Account> accounts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                accounts.add(getAccount(buffer));
+            }
+            compositeResponseBuilder.setAccounts(accounts);
+        }
+        if ((fields & HAS_CREDITED) != 0) {
+            compositeResponseBuilder.setCredited(Money.ofMinor(buffer.getLong()));
+        }
+        if ((fields & HAS_RESULTS) != 0) {
+            int count = buffer.getInt();
+            List<CompositeResponse> results = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                results.add(getResponse(buffer, buffer.get() != 0));
+            }
+            compositeResponseBuilder.setResults(results);
+        }
+        return compositeResponseBuilder.createCompositeResponse();
+    }
+
+    /**
+     * @return buffer with room for at least size more bytes, the given one if it has it
+     */
+    static ByteBuffer ensureRemaining(ByteBuffer buffer, int size) {
+        if (buffer.remaining() >= size) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + size));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
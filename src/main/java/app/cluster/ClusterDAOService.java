@@ -0,0 +1,332 @@
+package app.cluster;
+
+import app.metrics.Counter;
+import app.metrics.Metrics;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+import app.service.DAOService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Router of a cluster: every account lives on the node the hash ring gives its id to. Calls about one account,
+ * or about accounts of one node, go to that node as they are, so a transfer inside a partition costs the router
+ * one call; account lists are gathered from all nodes and merged by id, new accounts go to nodes in turn.
+ * <p>
+ * An exchange between nodes is done in two phases like the in-memory ledger does one between shards -
+ * amount is reserved on sender's node, then committed on receiver's node and given back to the sender if that fails.
+ * Sides of a transfer carry keys derived from one transfer id, nodes with idempotency enabled apply a side once
+ * however many times it comes, so a side without answer is retried instead of guessed. A transfer is in doubt
+ * only when a node doesn't answer any of the attempts, it's logged with its id to be settled by hand.
+ */
+public class ClusterDAOService implements DAOService {
+    private static Logger LOG = LoggerFactory.getLogger(ClusterDAOService.class);
+    private static final int STREAM_PAGE_SIZE = 1000;
+    private static final Counter CROSS_NODE = Metrics.REGISTRY.counter("cluster_cross_node_exchanges_total", "",
+            "Exchanges between accounts of different nodes, done in two phases");
+    private static final Counter IN_DOUBT = Metrics.REGISTRY.counter("cluster_in_doubt_exchanges_total", "",
+            "Exchanges between nodes left in doubt, a node didn't answer any attempt of a side");
+
+    private final List<? extends DAOService> nodes;
+    private final HashRing ring;
+    private final int attempts;
+    private final AtomicInteger nextNode = new AtomicInteger();
+
+    /**
+     * @param nodes in the order the ring was built from
+     * @param attempts calls of an exchange side before the exchange is given up as in doubt
+     */
+    public ClusterDAOService(List<? extends DAOService> nodes, HashRing ring, int attempts) {
+        if (nodes.size() != ring.size()) {
+            throw new IllegalArgumentException("Ring is built for " + ring.size() + " nodes, got " + nodes.size());
+        }
+        if (attempts <= 0) {
+            throw new IllegalArgumentException("Attempts count should be positive, was " + attempts);
+        }
+        this.nodes = nodes;
+        this.ring = ring;
+        this.attempts = attempts;
+    }
+
+    @Override
+    public CompositeResponse getAccount(int id) {
+        return call(ring.ownerOf(id), node -> node.getAccount(id));
+    }
+
+    @Override
+    public CompositeResponse getAllAccounts() {
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            CompositeResponse compositeResponse = call(i, DAOService::getAllAccounts);
+            if (compositeResponse.getAccounts() == null) {
+                return compositeResponse;
+            }
+            accounts.addAll(compositeResponse.getAccounts());
+        }
+        accounts.sort(Comparator.comparingInt(Account::getId));
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        if (accounts.isEmpty()) {
+            compositeResponseBuilder.setError(true).setMessage("No accounts in system yet.");
+        }
+        return compositeResponseBuilder.setAccounts(accounts).createCompositeResponse();
+    }
+
+    /*
+        every node gives its own page after afterId, the first limit of them merged is the page of the cluster
+     */
+    @Override
+    public CompositeResponse getAccounts(int afterId, int limit) {
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            CompositeResponse compositeResponse = call(i, node -> node.getAccounts(afterId, limit));
+            if (compositeResponse.getError()) {
+                return compositeResponse;
+            }
+            accounts.addAll(compositeResponse.getAccounts());
+        }
+        accounts.sort(Comparator.comparingInt(Account::getId));
+        return new CompositeResponseBuilder().setError(false)
+                .setAccounts(new ArrayList<>(accounts.subList(0, Math.min(limit, accounts.size()))))
+                .createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse streamAllAccounts(Consumer<Account> consumer) {
+        int count = 0;
+        int afterId = 0;
+        while (true) {
+            CompositeResponse page = getAccounts(afterId, STREAM_PAGE_SIZE);
+            if (page.getError()) {
+                return page;
+            }
+            for (Account account : page.getAccounts()) {
+                consumer.accept(account);
+                afterId = account.getId();
+            }
+            count += page.getAccounts().size();
+            if (page.getAccounts().size() < STREAM_PAGE_SIZE) {
+                return new CompositeResponseBuilder().setError(false).setMessage("Streamed " + count + " accounts")
+                        .createCompositeResponse();
+            }
+        }
+    }
+
+    /*
+        any node can create an account, it picks an id of its own part of the ring
+     */
+    @Override
+    public CompositeResponse insertAccount(Account account) {
+        return call(nextNode(), node -> node.insertAccount(account));
+    }
+
+    @Override
+    public CompositeResponse insertAccounts(Iterator<Account> accounts, int batchSize, Consumer<Account> created) {
+        AtomicInteger count = new AtomicInteger();
+        Consumer<Account> counted = account -> {
+            created.accept(account);
+            count.incrementAndGet();
+        };
+        List<Account> batch = new ArrayList<>(batchSize);
+        while (accounts.hasNext()) {
+            batch.add(accounts.next());
+            if (batch.size() == batchSize || !accounts.hasNext()) {
+                int before = count.get();
+                CompositeResponse compositeResponse = call(nextNode(), node -> node.insertAccounts(batch.iterator(), batchSize, counted));
+                if (compositeResponse.getError()) {
+                    return failure(compositeResponse.getMessage() + ", " + before + " accounts of earlier batches were created");
+                }
+                batch.clear();
+            }
+        }
+        return new CompositeResponseBuilder().setError(false).setMessage("Created " + count.get() + " accounts")
+                .createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse insertAccountsWithIds(List<Account> accounts) {
+        return failure("Ids of accounts are given by the nodes which keep them");
+    }
+
+    @Override
+    public CompositeResponse restoreAccounts(Collection<Account> accounts) {
+        return failure("Accounts are restored by every node on its own");
+    }
+
+    @Override
+    public CompositeResponse drop() {
+        return failure("Accounts are dropped by every node on its own");
+    }
+
+    @Override
+    public CompositeResponse performExchange(ExchangeRequest exchangeRequest) {
+        int fromNode = ring.ownerOf(exchangeRequest.getFrom().getId());
+        int toNode = ring.ownerOf(exchangeRequest.getTo().getId());
+        if (fromNode == toNode) {
+            return call(fromNode, node -> node.performExchange(exchangeRequest));
+        }
+        return exchangeBetweenNodes(exchangeRequest, fromNode, toNode);
+    }
+
+    private CompositeResponse exchangeBetweenNodes(ExchangeRequest exchangeRequest, int fromNode, int toNode) {
+        if (exchangeRequest.getAmount().getMinorUnits() <= 0) {
+            return failure("Amount should be positive. Requested amount - " + exchangeRequest.getAmount());
+        }
+        CROSS_NODE.increment();
+        String transferId = UUID.randomUUID().toString();
+        // phase one - reserve amount on sender's node
+        CompositeResponse sent = side(fromNode, withKey(exchangeRequest, transferId + "/send"), true);
+        if (sent == null) {
+            return inDoubt(transferId, exchangeRequest, "sender's node " + fromNode);
+        }
+        if (sent.getError()) {
+            return sent;
+        }
+        // phase two - commit reserved amount on receiver's node, converted from the currency sender's node debited it in,
+        // give it back to sender on failure
+        String currency = sent.getAccount() == null ? null : sent.getAccount().getCurrency();
+        CompositeResponse received = side(toNode, new ExchangeRequest(inCurrency(exchangeRequest.getFrom(), currency),
+                exchangeRequest.getTo(), exchangeRequest.getAmount(), transferId + "/receive"), false);
+        if (received == null) {
+            return inDoubt(transferId, exchangeRequest, "receiver's node " + toNode);
+        }
+        if (received.getError()) {
+            ExchangeRequest back = new ExchangeRequest(inCurrency(exchangeRequest.getTo(), currency), exchangeRequest.getFrom(),
+                    exchangeRequest.getAmount(), transferId + "/return");
+            CompositeResponse returned = side(fromNode, back, false);
+            if (returned == null || returned.getError()) {
+                IN_DOUBT.increment();
+                LOG.error("Transfer {} of {} wasn't given back to sender: {}", transferId, exchangeRequest,
+                        returned == null ? "node " + fromNode + " didn't answer" : returned.getMessage());
+            }
+            return received;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Transfer {} amount from {} to {} between nodes", exchangeRequest.getAmount(),
+                    exchangeRequest.getFrom().getId(), exchangeRequest.getTo().getId());
+        }
+        return new CompositeResponseBuilder().setError(false).setMessage("Exchanged successfully")
+                .setAccounts(Arrays.asList(sent.getAccount(), received.getAccount())).setCredited(received.getCredited())
+                .createCompositeResponse();
+    }
+
+    /*
+        currency a receiving side converts the amount from, the one of the client's request isn't trusted
+     */
+    private static Account inCurrency(Account account, String currency) {
+        return new Account(account.getId(), null, null, currency);
+    }
+
+    /*
+        null - the node didn't answer any of the attempts, the side may or may not be applied
+     */
+    private CompositeResponse side(int node, ExchangeRequest side, boolean sending) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return nodes.get(node).performExchangeSide(side, sending);
+            } catch (UncheckedIOException e) {
+                if (attempt == attempts) {
+                    LOG.error("Node {} didn't answer side {} of {} in {} attempts", node, side.getIdempotencyKey(), side, attempts, e);
+                    return null;
+                }
+                LOG.warn("Node {} didn't answer side {}, attempt {} of {}: {}", node, side.getIdempotencyKey(), attempt, attempts, e.getMessage());
+            }
+        }
+    }
+
+    private CompositeResponse inDoubt(String transferId, ExchangeRequest exchangeRequest, String node) {
+        IN_DOUBT.increment();
+        LOG.error("Transfer {} of {} is in doubt, {} didn't answer", transferId, exchangeRequest, node);
+        return failure("Transfer " + transferId + " is in doubt, " + node + " didn't answer");
+    }
+
+    private static ExchangeRequest withKey(ExchangeRequest exchangeRequest, String key) {
+        return new ExchangeRequest(exchangeRequest.getFrom(), exchangeRequest.getTo(), exchangeRequest.getAmount(), key);
+    }
+
+    /*
+        a batch of one node is applied there as it is; one spanning nodes can't be all-or-nothing,
+        without that its exchanges are done one by one in order, so each is still checked against the previous ones
+     */
+    @Override
+    public CompositeResponse performExchanges(List<ExchangeRequest> exchangeRequests, boolean atomic) {
+        int batchNode = -1;
+        for (ExchangeRequest exchangeRequest : exchangeRequests) {
+            if (!isComplete(exchangeRequest)) {
+                continue;
+            }
+            int fromNode = ring.ownerOf(exchangeRequest.getFrom().getId());
+            int toNode = ring.ownerOf(exchangeRequest.getTo().getId());
+            if (batchNode == -1) {
+                batchNode = fromNode;
+            }
+            if (fromNode != batchNode || toNode != batchNode) {
+                batchNode = -2;
+                break;
+            }
+        }
+        if (batchNode >= 0) {
+            int node = batchNode;
+            return call(node, service -> service.performExchanges(exchangeRequests, atomic));
+        }
+        if (batchNode == -2 && atomic) {
+            return failure("Batch of accounts of several nodes can't be atomic");
+        }
+        List<CompositeResponse> results = new ArrayList<>(exchangeRequests.size());
+        int failed = 0;
+        for (ExchangeRequest exchangeRequest : exchangeRequests) {
+            CompositeResponse result = isComplete(exchangeRequest) ? performExchange(exchangeRequest)
+                    : failure("Invalid exchange request: " + exchangeRequest);
+            failed += result.getError() ? 1 : 0;
+            results.add(result);
+        }
+        return new CompositeResponseBuilder().setError(false).setResults(results)
+                .setMessage("Exchanged " + (results.size() - failed) + " of " + results.size()).createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse performExchangeSide(ExchangeRequest exchangeRequest, boolean sending) {
+        return failure("Exchange sides are sent only by the router to its nodes");
+    }
+
+    @Override
+    public CompositeResponse getTransfers(int accountId, long afterSeq, int limit) {
+        return call(ring.ownerOf(accountId), node -> node.getTransfers(accountId, afterSeq, limit));
+    }
+
+    private CompositeResponse call(int node, Function<DAOService, CompositeResponse> action) {
+        try {
+            return action.apply(nodes.get(node));
+        } catch (UncheckedIOException e) {
+            LOG.error("Node {} didn't answer", node, e);
+            return failure("Node " + node + " is unavailable");
+        }
+    }
+
+    private int nextNode() {
+        return Math.floorMod(nextNode.getAndIncrement(), nodes.size());
+    }
+
+    private static boolean isComplete(ExchangeRequest exchangeRequest) {
+        return exchangeRequest != null && exchangeRequest.getFrom() != null
+                && exchangeRequest.getTo() != null && exchangeRequest.getAmount() != null;
+    }
+
+    private static CompositeResponse failure(String message) {
+        LOG.warn(message);
+        return new CompositeResponseBuilder().setError(true).setMessage(message).createCompositeResponse();
+    }
+}
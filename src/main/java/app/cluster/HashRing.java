@@ -0,0 +1,67 @@
+package app.cluster;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hash ring of account ids over cluster nodes. Every node is put on the ring at virtualNodes points
+ * derived from its name, an id belongs to the node of the first point at or after the hash of the id.
+ * A node added to the list takes about 1/n of ids from the others and leaves the rest where they were;
+ * every process given the same names computes the same ring.
+ */
+public class HashRing {
+    // sorted hashes of points and index of the node every one of them belongs to
+    private final int[] points;
+    private final int[] owners;
+    private final int size;
+
+    public HashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Ring needs at least one node");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Virtual nodes count should be positive, was " + virtualNodes);
+        }
+        // hash in the high half, node in the low one, so sorting orders by hash and breaks ties by node
+        long[] entries = new long[nodes.size() * virtualNodes];
+        for (int node = 0; node < nodes.size(); node++) {
+            int name = nodes.get(node).hashCode();
+            for (int point = 0; point < virtualNodes; point++) {
+                entries[node * virtualNodes + point] = (long) hash(((long) name << 32) | point) << 32 | node;
+            }
+        }
+        Arrays.sort(entries);
+        points = new int[entries.length];
+        owners = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = (int) (entries[i] >> 32);
+            owners[i] = (int) entries[i];
+        }
+        size = nodes.size();
+    }
+
+    /**
+     * @return index of the node in the list the ring was built from
+     */
+    public int ownerOf(int id) {
+        int i = Arrays.binarySearch(points, hash(id));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+        finalizer of SplitMix64, consecutive ids and points of one node land far apart
+     */
+    private static int hash(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return (int) ((z ^ (z >>> 31)) >>> 32);
+    }
+}
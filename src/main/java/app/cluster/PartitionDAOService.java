@@ -0,0 +1,129 @@
+package app.cluster;
+
+import app.fx.FxRateTable;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.service.DAOService;
+import app.service.ForwardingDAOService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a cluster node to its part of the ring. Accounts are created only with ids the ring gives to this node,
+ * taken in ascending order past the largest id the node has, so no two nodes hand out the same id
+ * and every account is created on the node the router looks for it on.
+ * Accounts are inserted with their ids, generated ids of the wrapped service are never used.
+ */
+public class PartitionDAOService extends ForwardingDAOService {
+    private static Logger LOG = LoggerFactory.getLogger(PartitionDAOService.class);
+    private final HashRing ring;
+    private final int node;
+    private final FxRateTable fxRateTable;
+    private final AtomicInteger lastId = new AtomicInteger();
+
+    /**
+     * @param node index of this node in the list the ring was built from
+     */
+    public PartitionDAOService(DAOService delegate, HashRing ring, int node) {
+        this(delegate, ring, node, FxRateTable.baseOnly());
+    }
+
+    /**
+     * @param fxRateTable rates of the wrapped service, accounts are created only in currencies it knows
+     */
+    public PartitionDAOService(DAOService delegate, HashRing ring, int node, FxRateTable fxRateTable) {
+        super(delegate);
+        if (node < 0 || node >= ring.size()) {
+            throw new IllegalArgumentException("Node should be one of " + ring.size() + " nodes of the ring, was " + node);
+        }
+        this.ring = ring;
+        this.node = node;
+        this.fxRateTable = fxRateTable;
+        // accounts restored on start
+        delegate.streamAllAccounts(account -> lastId.accumulateAndGet(account.getId(), Math::max));
+    }
+
+    @Override
+    public CompositeResponse insertAccount(Account account) {
+        if (account.getBalance() == null) {
+            return failure("Couldn't insert" + account);
+        }
+        String currency = fxRateTable.current().currencyOfNewAccount(account.getCurrency());
+        if (currency == null) {
+            return failure("Unknown currency " + account.getCurrency());
+        }
+        Account created = new Account(nextId(), account.getName(), account.getBalance(), currency);
+        CompositeResponse compositeResponse = delegate.insertAccountsWithIds(Collections.singletonList(created));
+        if (compositeResponse.getError()) {
+            return compositeResponse;
+        }
+        return new CompositeResponseBuilder().setError(false).setMessage("Account was created").setAccount(created)
+                .createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse insertAccounts(Iterator<Account> accounts, int batchSize, Consumer<Account> created) {
+        List<Account> batch = new ArrayList<>(batchSize);
+        int count = 0;
+        while (accounts.hasNext()) {
+            Account account = accounts.next();
+            String currency = account == null ? null : fxRateTable.current().currencyOfNewAccount(account.getCurrency());
+            if (account == null || account.getBalance() == null || currency == null) {
+                return failure("Couldn't insert " + account + ", created " + count + " accounts before it");
+            }
+            batch.add(new Account(nextId(), account.getName(), account.getBalance(), currency));
+            if (batch.size() == batchSize || !accounts.hasNext()) {
+                CompositeResponse compositeResponse = delegate.insertAccountsWithIds(batch);
+                if (compositeResponse.getError()) {
+                    return failure("Couldn't insert accounts, created " + count + " of them");
+                }
+                batch.forEach(created);
+                count += batch.size();
+                batch.clear();
+            }
+        }
+        return new CompositeResponseBuilder().setError(false).setMessage("Created " + count + " accounts").createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse restoreAccounts(Collection<Account> accounts) {
+        CompositeResponse compositeResponse = delegate.restoreAccounts(accounts);
+        for (Account account : accounts) {
+            lastId.accumulateAndGet(account.getId(), Math::max);
+        }
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse drop() {
+        CompositeResponse compositeResponse = delegate.drop();
+        lastId.set(0);
+        return compositeResponse;
+    }
+
+    /*
+        about every ring.size()-th id belongs to this node, so a few hashes per account
+     */
+    private int nextId() {
+        while (true) {
+            int id = lastId.incrementAndGet();
+            if (ring.ownerOf(id) == node) {
+                return id;
+            }
+        }
+    }
+
+    private static CompositeResponse failure(String message) {
+        LOG.warn(message);
+        return new CompositeResponseBuilder().setError(true).setMessage(message).createCompositeResponse();
+    }
+}
@@ -0,0 +1,229 @@
+package app.cluster;
+
+import app.json.JsonCodec;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+import app.service.DAOService;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * DAOService of one cluster node, called through the REST routes of the node.
+ * Answers of the node are returned as they are, a node that can't be reached or answers with something
+ * that isn't a response throws {@link UncheckedIOException} - the caller can't know whether a write was applied.
+ */
+public class RemoteDAOService implements DAOService {
+    /**
+     * Carries cluster.secret with every write to a node, a node accepts exchange sides only with it.
+     */
+    public static final String SECRET_HEADER = "X-Cluster-Secret";
+    private static final int STREAM_PAGE_SIZE = 1000;
+    private final String baseUri;
+    private final HttpClient httpClient;
+    private final Duration timeout;
+    private final JsonCodec codec;
+    private final String secret;
+
+    /**
+     * @param httpClient shared by all nodes, keeps connections to them open between calls
+     * @param secret     cluster.secret shared by the router and its nodes
+     */
+    public RemoteDAOService(String baseUri, HttpClient httpClient, Duration timeout, JsonCodec codec, String secret) {
+        this.baseUri = baseUri.endsWith("/") ? baseUri.substring(0, baseUri.length() - 1) : baseUri;
+        this.httpClient = httpClient;
+        this.timeout = timeout;
+        this.codec = codec;
+        this.secret = secret;
+    }
+
+    public String getBaseUri() {
+        return baseUri;
+    }
+
+    @Override
+    public CompositeResponse getAccount(int id) {
+        return get("/getAccount/" + id);
+    }
+
+    @Override
+    public CompositeResponse getAllAccounts() {
+        return get("/getAllAccounts");
+    }
+
+    @Override
+    public CompositeResponse getAccounts(int afterId, int limit) {
+        return get("/getAllAccounts?afterId=" + afterId + "&limit=" + limit);
+    }
+
+    /*
+        paged, the node would stream them in one response, but then a failure in the middle couldn't be answered
+     */
+    @Override
+    public CompositeResponse streamAllAccounts(Consumer<Account> consumer) {
+        int count = 0;
+        int afterId = 0;
+        while (true) {
+            CompositeResponse page = getAccounts(afterId, STREAM_PAGE_SIZE);
+            if (page.getError()) {
+                return page;
+            }
+            for (Account account : page.getAccounts()) {
+                consumer.accept(account);
+                afterId = account.getId();
+            }
+            count += page.getAccounts().size();
+            if (page.getAccounts().size() < STREAM_PAGE_SIZE) {
+                return new CompositeResponseBuilder().setError(false).setMessage("Streamed " + count + " accounts")
+                        .createCompositeResponse();
+            }
+        }
+    }
+
+    @Override
+    public CompositeResponse insertAccount(Account account) {
+        return post("/createAccount", codec.toJson(account));
+    }
+
+    /*
+        the whole iterator goes in one request, ids come back when the node has read all of it
+     */
+    @Override
+    public CompositeResponse insertAccounts(Iterator<Account> accounts, int batchSize, Consumer<Account> created) {
+        List<Account> sent = new ArrayList<>();
+        accounts.forEachRemaining(sent::add);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUri + "/createAccounts")).timeout(timeout)
+                .header("Content-Type", "application/json")
+                .header(SECRET_HEADER, secret)
+                .POST(HttpRequest.BodyPublishers.ofString(codec.toJson(sent), StandardCharsets.UTF_8)).build();
+        try (InputStream body = send(request);
+             JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "ids":
+                        reader.beginArray();
+                        for (int i = 0; reader.hasNext(); i++) {
+                            Account account = sent.get(i);
+                            created.accept(new Account(reader.nextInt(), account.getName(), account.getBalance(), account.getCurrency()));
+                        }
+                        reader.endArray();
+                        break;
+                    case "message":
+                        if (reader.peek() == JsonToken.NULL) {
+                            reader.nextNull();
+                        } else {
+                            compositeResponseBuilder.setMessage(reader.nextString());
+                        }
+                        break;
+                    case "error":
+                        compositeResponseBuilder.setError(reader.nextBoolean());
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return compositeResponseBuilder.createCompositeResponse();
+        } catch (IOException | IllegalStateException | IndexOutOfBoundsException e) {
+            throw new UncheckedIOException(new IOException("Unexpected answer of " + baseUri + " to import", e));
+        }
+    }
+
+    @Override
+    public CompositeResponse insertAccountsWithIds(List<Account> accounts) {
+        return unsupported("insert with ids");
+    }
+
+    @Override
+    public CompositeResponse restoreAccounts(Collection<Account> accounts) {
+        return unsupported("restore");
+    }
+
+    @Override
+    public CompositeResponse drop() {
+        return unsupported("drop");
+    }
+
+    @Override
+    public CompositeResponse performExchange(ExchangeRequest exchangeRequest) {
+        return post("/performExchange", codec.toJson(exchangeRequest));
+    }
+
+    @Override
+    public CompositeResponse performExchanges(List<ExchangeRequest> exchangeRequests, boolean atomic) {
+        return post("/performExchanges?atomic=" + atomic, codec.toJson(exchangeRequests));
+    }
+
+    @Override
+    public CompositeResponse performExchangeSide(ExchangeRequest exchangeRequest, boolean sending) {
+        return post("/performExchangeSide?sending=" + sending, codec.toJson(exchangeRequest));
+    }
+
+    @Override
+    public CompositeResponse getTransfers(int accountId, long afterSeq, int limit) {
+        return get("/getTransfers/" + accountId + "?afterSeq=" + afterSeq + "&limit=" + limit);
+    }
+
+    private CompositeResponse get(String path) {
+        return call(HttpRequest.newBuilder(URI.create(baseUri + path)).timeout(timeout).GET().build());
+    }
+
+    private CompositeResponse post(String path, String json) {
+        return call(HttpRequest.newBuilder(URI.create(baseUri + path)).timeout(timeout)
+                .header("Content-Type", "application/json")
+                .header(SECRET_HEADER, secret)
+                .POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8)).build());
+    }
+
+    private CompositeResponse call(HttpRequest request) {
+        try (InputStream body = send(request)) {
+            CompositeResponse compositeResponse = codec.read(body, CompositeResponse.class);
+            if (compositeResponse == null || compositeResponse.getError() == null) {
+                throw new IOException("Empty answer");
+            }
+            return compositeResponse;
+        } catch (IOException | JsonParseException e) {
+            throw new UncheckedIOException(new IOException("Unexpected answer of " + request.uri(), e));
+        }
+    }
+
+    private InputStream send(HttpRequest request) throws IOException {
+        HttpResponse<InputStream> response;
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while calling " + request.uri(), e);
+        }
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException(request.uri() + " answered with status " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    private CompositeResponse unsupported(String operation) {
+        return new CompositeResponseBuilder().setError(true)
+                .setMessage("Node " + baseUri + " can't " + operation + " accounts remotely").createCompositeResponse();
+    }
+}
@@ -1,33 +1,127 @@
 package app.database;
 
-import org.h2.jdbcx.JdbcConnectionPool;
+import app.metrics.Metrics;
+import app.metrics.MetricsRegistry;
 import org.h2.tools.Server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Pool of physical connections, each keeps its own prepared statements between checkouts.
+ * Transaction isolation is set once, when connection is opened.
+ */
 public class DBConnector {
     private static Logger LOG = LoggerFactory.getLogger(DBConnector.class);
-    JdbcConnectionPool cp;
     private String uri = System.getProperty("db.uri");
     private String user = System.getProperty("db.user");
     private String password = System.getProperty("db.password");
+    private final int maxConnections = Integer.getInteger("db.pool.maxConnections", 20);
+    private final long timeoutMillis = Long.getLong("db.pool.timeoutMillis", 30_000);
+    // last returned connection is handed out first, so hot connections keep their statements warm
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits = new Semaphore(maxConnections);
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder checkouts = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
 
     {
         try {
             Class.forName("org.h2.Driver");
             Server.createTcpServer().start();
-            cp = JdbcConnectionPool.create(uri, user, password);
-            cp.setMaxConnections(20);
         } catch (ClassNotFoundException | SQLException e) {
-            e.printStackTrace();
+            LOG.error("Couldn't start H2 with its TCP server", e);
         }
     }
 
-    public Connection getDbConnection() throws SQLException {
-        Connection connection = cp.getConnection();
-        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+    /**
+     * Publishes gauges of this pool. A registry keeps the last pool registered under a name,
+     * so it's done once, by whoever owns the pool the service runs on.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("db_pool_active_connections", "", "Connections checked out of pool", this::getActiveConnections);
+        registry.gauge("db_pool_idle_connections", "", "Open connections waiting in pool", this::getIdleConnections);
+        registry.gauge("db_pool_max_connections", "", "Size of pool", this::getMaxConnections);
+        registry.counter("db_pool_checkouts_total", "", "Connections taken from pool", this::getCheckouts);
+    }
+
+    /**
+     * Waits up to db.pool.timeoutMillis for a free connection, it has to be closed to go back to pool.
+     */
+    public PooledConnection getDbConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("No free connection in " + timeoutMillis + " ms, pool size " + maxConnections);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        Metrics.CONNECTION_WAIT.record(waited);
+        checkouts.increment();
+        PooledConnection connection = idle.pollFirst();
+        if (connection == null) {
+            try {
+                connection = open();
+            } catch (SQLException e) {
+                permits.release();
+                throw e;
+            }
+        }
+        connection.checkOut();
+        active.incrementAndGet();
         return connection;
     }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(uri, user, password);
+        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        return new PooledConnection(this, connection);
+    }
+
+    void release(PooledConnection connection) {
+        active.decrementAndGet();
+        try {
+            connection.reset();
+            idle.offerFirst(connection);
+        } catch (SQLException e) {
+            LOG.warn("Discarding broken connection", e);
+            connection.closePhysical();
+        } finally {
+            permits.release();
+        }
+    }
+
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getCheckouts() {
+        return checkouts.sum();
+    }
+
+    /**
+     * @return time spent by all checkouts waiting for a free connection
+     */
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
 }
@@ -0,0 +1,134 @@
+package app.database;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Physical connection handed out by {@link DBConnector}, used by one thread between checkout and {@link #close()}.
+ * Prepared statements are cached per connection and stay open while connection is in pool,
+ * so they must not be closed by callers - only their result sets.
+ */
+public final class PooledConnection implements AutoCloseable {
+    private static Logger LOG = LoggerFactory.getLogger(PooledConnection.class);
+    private static final int STATEMENT_CACHE_SIZE = 64;
+    // statements returning generated keys are cached apart from plain ones of the same sql
+    private static final String RETURNING_KEYS = "keys:";
+    private final DBConnector pool;
+    private final Connection connection;
+    // least recently used statement is closed when cache is full, e.g. by IN lists of different length
+    private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= STATEMENT_CACHE_SIZE) {
+                return false;
+            }
+            closeQuietly(eldest.getValue());
+            return true;
+        }
+    };
+    private boolean autoCommit = true;
+    private boolean checkedOut;
+
+    PooledConnection(DBConnector pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+    }
+
+    /**
+     * @return cached statement for sql, prepared on first use; parameters of previous use are cleared
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement preparedStatement = statements.get(sql);
+        if (preparedStatement == null || preparedStatement.isClosed()) {
+            preparedStatement = connection.prepareStatement(sql);
+            statements.put(sql, preparedStatement);
+        } else {
+            preparedStatement.clearParameters();
+        }
+        return preparedStatement;
+    }
+
+    /**
+     * Same as {@link #prepareStatement(String)}, but generated keys of executed statement are available.
+     */
+    public PreparedStatement prepareStatementReturningKeys(String sql) throws SQLException {
+        String key = RETURNING_KEYS + sql;
+        PreparedStatement preparedStatement = statements.get(key);
+        if (preparedStatement == null || preparedStatement.isClosed()) {
+            preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            statements.put(key, preparedStatement);
+        } else {
+            preparedStatement.clearParameters();
+        }
+        return preparedStatement;
+    }
+
+    /**
+     * Plain statement for DDL and settings, not cached - caller has to close it.
+     */
+    public Statement createStatement() throws SQLException {
+        return connection.createStatement();
+    }
+
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        if (this.autoCommit != autoCommit) {
+            connection.setAutoCommit(autoCommit);
+            this.autoCommit = autoCommit;
+        }
+    }
+
+    public void commit() throws SQLException {
+        connection.commit();
+    }
+
+    public void rollback() throws SQLException {
+        connection.rollback();
+    }
+
+    /**
+     * Returns connection to pool, transaction left open is rolled back.
+     */
+    @Override
+    public void close() {
+        if (checkedOut) {
+            checkedOut = false;
+            pool.release(this);
+        }
+    }
+
+    void checkOut() {
+        checkedOut = true;
+    }
+
+    void reset() throws SQLException {
+        if (!autoCommit) {
+            connection.rollback();
+            setAutoCommit(true);
+        }
+    }
+
+    void closePhysical() {
+        statements.values().forEach(PooledConnection::closeQuietly);
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.warn("Couldn't close connection", e);
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOG.warn("Couldn't close statement", e);
+        }
+    }
+}
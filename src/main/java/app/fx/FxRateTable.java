@@ -0,0 +1,86 @@
+package app.fx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Current exchange rates of the service. Readers take the snapshot with one volatile read and never wait,
+ * an update builds a whole new snapshot and swaps it in, so an exchange converts with a single consistent set of rates.
+ * Rates may be reloaded from a file on their own thread, the stand-in for a rate feed.
+ */
+public class FxRateTable implements Closeable {
+    private static Logger LOG = LoggerFactory.getLogger(FxRateTable.class);
+    private final AtomicReference<FxRates> rates;
+    private ScheduledExecutorService scheduler;
+
+    public FxRateTable(FxRates rates) {
+        this.rates = new AtomicReference<>(rates);
+    }
+
+    /**
+     * @return table knowing only the base currency of fx.baseCurrency, every account is in it
+     */
+    public static FxRateTable baseOnly() {
+        return new FxRateTable(FxRates.of(System.getProperty("fx.baseCurrency", "EUR"), Collections.emptyMap()));
+    }
+
+    public FxRates current() {
+        return rates.get();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the new rates are for another base, balances of stored accounts would change meaning
+     */
+    public void publish(FxRates next) {
+        if (!next.getBase().equals(current().getBase())) {
+            throw new IllegalArgumentException("Base currency is " + current().getBase() + ", rates for " + next.getBase() + " can't replace it");
+        }
+        rates.set(next);
+    }
+
+    /**
+     * Loads rates from path now and again every intervalSeconds when the file has changed;
+     * a file that can't be read or parsed is logged and the rates in use are kept.
+     */
+    public synchronized void watch(Path path, long intervalSeconds) {
+        long[] loaded = {Long.MIN_VALUE};
+        Runnable reload = () -> {
+            try {
+                long modified = Files.getLastModifiedTime(path).toMillis();
+                if (modified != loaded[0]) {
+                    publish(FxRates.load(path, current().getBase()));
+                    loaded[0] = modified;
+                    LOG.info("Exchange rates loaded from {}: {}", path, current().currencies());
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Couldn't load exchange rates from " + path + ", keeping " + current().currencies(), e);
+            }
+        };
+        reload.run();
+        if (scheduler == null && intervalSeconds > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "fx-rates");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(reload, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package app.fx;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Immutable snapshot of exchange rates, every rate is units of a currency per one unit of the base currency.
+ * Factors of all pairs are computed once when the snapshot is built, so a conversion is a lookup and one multiplication.
+ * Amounts are minor units of {@link app.model.Money} in every currency.
+ */
+public final class FxRates {
+    public static final long NO_RATE = -1;
+    public static final long TOO_LARGE = -2;
+    private static final MathContext PRECISION = MathContext.DECIMAL128;
+
+    private final String base;
+    private final Map<String, BigDecimal> unitsPerBase;
+    private final Map<String, Integer> indexes = new HashMap<>();
+    // factors[from][to] - units of to per unit of from
+    private final BigDecimal[][] factors;
+
+    private FxRates(String base, Map<String, BigDecimal> unitsPerBase) {
+        this.base = base;
+        this.unitsPerBase = Collections.unmodifiableMap(unitsPerBase);
+        String[] currencies = unitsPerBase.keySet().toArray(new String[0]);
+        factors = new BigDecimal[currencies.length][currencies.length];
+        for (int i = 0; i < currencies.length; i++) {
+            indexes.put(currencies[i], i);
+            for (int j = 0; j < currencies.length; j++) {
+                factors[i][j] = unitsPerBase.get(currencies[j]).divide(unitsPerBase.get(currencies[i]), PRECISION);
+            }
+        }
+    }
+
+    /**
+     * @param unitsPerBase rates of currencies other than base, rate of base is always 1
+     * @throws IllegalArgumentException if a code isn't three capital letters or a rate isn't positive
+     */
+    public static FxRates of(String base, Map<String, BigDecimal> unitsPerBase) {
+        checkCode(base);
+        Map<String, BigDecimal> rates = new TreeMap<>();
+        for (Map.Entry<String, BigDecimal> rate : unitsPerBase.entrySet()) {
+            checkCode(rate.getKey());
+            if (rate.getValue() == null || rate.getValue().signum() <= 0) {
+                throw new IllegalArgumentException("Rate of " + rate.getKey() + " should be positive, got " + rate.getValue());
+            }
+            rates.put(rate.getKey(), rate.getValue());
+        }
+        rates.put(base, BigDecimal.ONE);
+        return new FxRates(base, rates);
+    }
+
+    /**
+     * Reads lines {@code CUR=unitsPerBase} of a properties file, {@code base=CUR} if given has to be the base currency.
+     */
+    public static FxRates load(Path path, String base) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        String fileBase = (String) properties.remove("base");
+        if (fileBase != null && !fileBase.trim().equals(base)) {
+            throw new IllegalArgumentException("Rates of " + path + " are for base " + fileBase.trim() + ", not " + base);
+        }
+        Map<String, BigDecimal> rates = new HashMap<>();
+        for (String currency : properties.stringPropertyNames()) {
+            try {
+                rates.put(currency.trim(), new BigDecimal(properties.getProperty(currency).trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Rate of " + currency + " isn't a number: " + properties.getProperty(currency));
+            }
+        }
+        return of(base, rates);
+    }
+
+    public String getBase() {
+        return base;
+    }
+
+    public boolean knows(String currency) {
+        return indexes.containsKey(currency);
+    }
+
+    /**
+     * @param requested currency asked for by the client, null for the base one
+     * @return currency a new account is created in, null if there is no rate of the requested one
+     */
+    public String currencyOfNewAccount(String requested) {
+        String currency = requested == null ? base : requested;
+        return knows(currency) ? currency : null;
+    }
+
+    public Set<String> currencies() {
+        return unitsPerBase.keySet();
+    }
+
+    public BigDecimal unitsPerBase(String currency) {
+        return unitsPerBase.get(currency);
+    }
+
+    /**
+     * @param minorUnits positive amount in currency from, callers validate amounts before converting them
+     * @return amount in currency to, rounded half even to minor units, {@link #NO_RATE} if there is no rate
+     * of either currency, {@link #TOO_LARGE} if the converted amount doesn't fit into long
+     * @throws IllegalArgumentException if the amount isn't positive
+     */
+    public long convert(long minorUnits, String from, String to) {
+        if (minorUnits <= 0) {
+            throw new IllegalArgumentException("Amount to convert should be positive, got " + minorUnits);
+        }
+        if (from.equals(to)) {
+            return minorUnits;
+        }
+        Integer i = indexes.get(from);
+        Integer j = indexes.get(to);
+        if (i == null || j == null) {
+            return NO_RATE;
+        }
+        BigDecimal converted = BigDecimal.valueOf(minorUnits).multiply(factors[i][j]).setScale(0, RoundingMode.HALF_EVEN);
+        return converted.unscaledValue().bitLength() < Long.SIZE ? converted.longValue() : TOO_LARGE;
+    }
+
+    private static void checkCode(String currency) {
+        if (currency == null || !currency.matches("[A-Z]{3}")) {
+            throw new IllegalArgumentException("Currency should be an ISO 4217 code, got " + currency);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FxRates{base=" + base + ", unitsPerBase=" + unitsPerBase + '}';
+    }
+}
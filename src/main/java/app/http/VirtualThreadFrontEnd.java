@@ -0,0 +1,180 @@
+package app.http;
+
+import app.metrics.MetricsRegistry;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.servlet.SparkApplication;
+import spark.servlet.SparkFilter;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves Spark routes from its own Jetty instead of Spark's embedded server with a fixed blocking worker pool.
+ * Jetty threads only parse requests and hand each one over to a virtual thread as an async request,
+ * so a request blocked in a lock, journal or JDBC call holds a virtual thread, not a server thread.
+ * At most maxConcurrentRequests are in flight, requests above that are answered with 429 at once.
+ * <p>
+ * Routes have to be registered by the application given to {@link #start(SparkApplication)},
+ * Spark sends routes registered there to this server instead of starting its own.
+ */
+public class VirtualThreadFrontEnd {
+    private static Logger LOG = LoggerFactory.getLogger(VirtualThreadFrontEnd.class);
+    private static final int ACCEPT_QUEUE_SIZE = 4096;
+    private static final byte[] TOO_MANY_REQUESTS =
+            "{\"message\":\"Too many requests\",\"error\":true}".getBytes(StandardCharsets.UTF_8);
+
+    private final int port;
+    private final int maxConcurrentRequests;
+    private final int ioThreads;
+    private final Semaphore permits;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final LongAdder rejected = new LongAdder();
+    private Server server;
+
+    /**
+     * @param ioThreads Jetty threads accepting connections and parsing requests, routes never run on them
+     */
+    public VirtualThreadFrontEnd(int port, int maxConcurrentRequests, int ioThreads) {
+        if (maxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("Concurrent requests limit should be positive, was " + maxConcurrentRequests);
+        }
+        this.port = port;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.ioThreads = ioThreads;
+        this.permits = new Semaphore(maxConcurrentRequests);
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("http_in_flight_requests", "", "Requests running on virtual threads", this::getInFlightRequests);
+        registry.gauge("http_max_concurrent_requests", "", "Limit of requests in flight", this::getMaxConcurrentRequests);
+        registry.counter("http_rejected_requests_total", "", "Requests answered with 429", this::getRejectedRequests);
+    }
+
+    public void start(SparkApplication application) {
+        server = new Server(new QueuedThreadPool(ioThreads, Math.min(ioThreads, 8)));
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(port);
+        connector.setAcceptQueueSize(ACCEPT_QUEUE_SIZE);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        FilterHolder filter = new FilterHolder(new DispatchingFilter(application));
+        filter.setAsyncSupported(true);
+        context.addFilter(filter, "/*", EnumSet.of(DispatcherType.REQUEST));
+        server.setHandler(context);
+        try {
+            server.start();
+        } catch (Exception e) {
+            throw new IllegalStateException("Couldn't start front end on port " + port, e);
+        }
+        LOG.info("Front end started on port {}, up to {} concurrent requests on virtual threads", port, maxConcurrentRequests);
+    }
+
+    public void stop() {
+        try {
+            server.stop();
+        } catch (Exception e) {
+            LOG.error("Couldn't stop front end", e);
+        }
+        executor.shutdownNow();
+    }
+
+    public int getInFlightRequests() {
+        return maxConcurrentRequests - permits.availablePermits();
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public long getRejectedRequests() {
+        return rejected.sum();
+    }
+
+    private class DispatchingFilter extends SparkFilter {
+        private final SparkApplication application;
+
+        DispatchingFilter(SparkApplication application) {
+            this.application = application;
+        }
+
+        @Override
+        protected SparkApplication[] getApplications(FilterConfig filterConfig) {
+            return new SparkApplication[]{application};
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException {
+            if (!permits.tryAcquire()) {
+                rejected.increment();
+                tooManyRequests((HttpServletResponse) response);
+                return;
+            }
+            AsyncContext async;
+            try {
+                async = request.startAsync();
+                // request ends when its route returns, waits inside it are bounded by their own timeouts
+                async.setTimeout(0);
+                // Jetty forgets the context of a request once it leaves the dispatch, Spark still needs its path
+                String contextPath = ((HttpServletRequest) request).getContextPath();
+                HttpServletRequest dispatched = new HttpServletRequestWrapper((HttpServletRequest) request) {
+                    @Override
+                    public String getContextPath() {
+                        return contextPath;
+                    }
+                };
+                executor.execute(() -> handle(async, dispatched));
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        private void handle(AsyncContext async, HttpServletRequest request) {
+            HttpServletResponse response = (HttpServletResponse) async.getResponse();
+            try {
+                super.doFilter(request, response, (ignored, notFound) -> response.sendError(HttpServletResponse.SC_NOT_FOUND));
+            } catch (IOException | ServletException | RuntimeException e) {
+                LOG.error("Request failed", e);
+                if (!response.isCommitted()) {
+                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            } finally {
+                permits.release();
+                async.complete();
+            }
+        }
+    }
+
+    /*
+        answered on the Jetty thread without parsing the body, client should retry later
+     */
+    private static void tooManyRequests(HttpServletResponse response) throws IOException {
+        response.setStatus(429);
+        response.setHeader("Retry-After", "1");
+        response.setContentType("application/json");
+        response.setContentLength(TOO_MANY_REQUESTS.length);
+        response.getOutputStream().write(TOO_MANY_REQUESTS);
+    }
+}
@@ -0,0 +1,386 @@
+package app.journal;
+
+import app.model.Account;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of created accounts and applied exchanges.
+ * Records are written to the file as they come, but forced to disk by a single flusher thread,
+ * so every force makes all records appended since the previous one durable at once (group commit).
+ * Callers wait in {@link #awaitDurable(long)} for the force covering their record.
+ * <p>
+ * File starts with magic, version and random id of the journal, new id is given on every reset,
+ * so a {@link Snapshot} can tell whether its position belongs to this journal.
+ * Every record is its payload length, CRC32 of payload and payload.
+ * A torn record at the end, left by a crash in the middle of a write, is cut off on open.
+ */
+public final class Journal implements Closeable {
+    private static Logger LOG = LoggerFactory.getLogger(Journal.class);
+    static final int MAGIC = 0x54534a4c; // TSJL
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final byte ACCOUNT = 1;
+    static final byte EXCHANGES = 2;
+    // records of accounts with currencies and exchanges crediting a converted amount, the two above are still read
+    static final byte ACCOUNT_IN_CURRENCY = 3;
+    static final byte CONVERTED_EXCHANGES = 4;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long groupCommitNanos;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // a lock rather than a monitor, so appenders waiting on virtual threads release their carriers
+    private final ReentrantLock durableLock = new ReentrantLock();
+    private final Condition durable = durableLock.newCondition();
+    private final Thread flusher;
+    private volatile long writtenPosition;
+    private volatile long durablePosition;
+    private volatile IOException failure;
+    // changed by reset, so a force started before it doesn't mark new records as durable
+    private long generation;
+    private volatile boolean closed;
+    private volatile long id;
+
+    /**
+     * @param groupCommitMicros how long flusher waits for more records before forcing, 0 forces as soon as anything is written
+     */
+    public Journal(Path path, long groupCommitMicros) throws IOException {
+        this.path = path;
+        this.groupCommitNanos = TimeUnit.MICROSECONDS.toNanos(groupCommitMicros);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            writeHeader();
+        } else {
+            checkHeader();
+            long end = scan(HEADER_SIZE, Long.MAX_VALUE, null);
+            if (end < channel.size()) {
+                LOG.warn("Cutting torn tail of journal {} at {} of {} bytes", path, end, channel.size());
+                channel.truncate(end);
+            }
+        }
+        writtenPosition = durablePosition = channel.size();
+        channel.position(writtenPosition);
+        flusher = new Thread(this::flush, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public static Journal open(String path, long groupCommitMicros) throws IOException {
+        Path file = Path.of(path);
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        return new Journal(file, groupCommitMicros);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean hasRecords() {
+        return writtenPosition > HEADER_SIZE;
+    }
+
+    /**
+     * @return position right after the last durable record
+     */
+    public long getDurablePosition() {
+        return durablePosition;
+    }
+
+    /**
+     * Reads journal from the beginning and folds it into final state of every account.
+     */
+    public Collection<Account> replay() throws IOException {
+        return replay(Collections.emptyList(), HEADER_SIZE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Folds records between positions into accounts of base, e.g. a snapshot taken at from.
+     *
+     * @param base accounts in ascending id order
+     * @return accounts of base and accounts created by the records, in ascending id order
+     */
+    public Collection<Account> replay(Collection<Account> base, long from, long to) throws IOException {
+        JournalState state = new JournalState();
+        scan(Math.max(from, HEADER_SIZE), to, state);
+        return state.accounts(base);
+    }
+
+    /**
+     * @return position to wait for in {@link #awaitDurable(long)}
+     */
+    public long appendAccount(Account account) throws IOException {
+        byte[] name = account.getName() == null ? null : account.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] currency = account.getCurrency() == null ? null : account.getCurrency().getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 4 + 4 + (name == null ? 0 : name.length) + 8 + (currency == null ? 0 : 3));
+        payload.put(currency == null ? ACCOUNT : ACCOUNT_IN_CURRENCY).putInt(account.getId());
+        if (name == null) {
+            payload.putInt(-1);
+        } else {
+            payload.putInt(name.length).put(name);
+        }
+        payload.putLong(account.getBalance().getMinorUnits());
+        if (currency != null) {
+            payload.put(currency, 0, 3);
+        }
+        return append(payload);
+    }
+
+    /**
+     * Exchanges are written as one record, so they are either all replayed or none of them.
+     *
+     * @return position to wait for in {@link #awaitDurable(long)}
+     */
+    public long appendExchanges(List<ExchangeRequest> exchangeRequests) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 4 + exchangeRequests.size() * 16);
+        payload.put(EXCHANGES).putInt(exchangeRequests.size());
+        for (ExchangeRequest exchangeRequest : exchangeRequests) {
+            payload.putInt(exchangeRequest.getFrom().getId())
+                    .putInt(exchangeRequest.getTo().getId())
+                    .putLong(exchangeRequest.getAmount().getMinorUnits());
+        }
+        return append(payload);
+    }
+
+    /**
+     * Same as {@link #appendExchanges(List)} for exchanges whose receivers got another amount than senders gave.
+     *
+     * @param credited amounts given to receivers in their currencies, in order of the exchanges
+     * @return position to wait for in {@link #awaitDurable(long)}
+     */
+    public long appendExchanges(List<ExchangeRequest> exchangeRequests, List<Money> credited) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 4 + exchangeRequests.size() * 24);
+        payload.put(CONVERTED_EXCHANGES).putInt(exchangeRequests.size());
+        for (int i = 0; i < exchangeRequests.size(); i++) {
+            ExchangeRequest exchangeRequest = exchangeRequests.get(i);
+            payload.putInt(exchangeRequest.getFrom().getId())
+                    .putInt(exchangeRequest.getTo().getId())
+                    .putLong(exchangeRequest.getAmount().getMinorUnits())
+                    .putLong(credited.get(i).getMinorUnits());
+        }
+        return append(payload);
+    }
+
+    private long append(ByteBuffer payload) throws IOException {
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.remaining());
+        record.putInt(payload.remaining()).putInt((int) crc.getValue()).put(payload).flip();
+        long position;
+        writeLock.lock();
+        try {
+            checkOpen();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            position = writtenPosition = channel.position();
+        } finally {
+            writeLock.unlock();
+        }
+        LockSupport.unpark(flusher);
+        return position;
+    }
+
+    /**
+     * Blocks until everything up to position is forced to disk.
+     */
+    public void awaitDurable(long position) throws IOException {
+        if (durablePosition >= position) {
+            return;
+        }
+        durableLock.lock();
+        try {
+            while (durablePosition < position) {
+                checkOpen();
+                try {
+                    durable.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for journal", e);
+                }
+            }
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    /**
+     * Forgets all records, used when the whole state is dropped.
+     */
+    public void reset() throws IOException {
+        writeLock.lock();
+        try {
+            checkOpen();
+            channel.truncate(0);
+            writeHeader();
+            channel.position(HEADER_SIZE);
+            writtenPosition = HEADER_SIZE;
+            durableLock.lock();
+            try {
+                generation++;
+                durablePosition = HEADER_SIZE;
+            } finally {
+                durableLock.unlock();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /*
+        single thread forces the channel, appenders only write and wait,
+        the longer it waits before forcing the more records share one force
+     */
+    private void flush() {
+        while (!closed) {
+            if (durablePosition >= writtenPosition) {
+                LockSupport.park(this);
+                continue;
+            }
+            long deadline = System.nanoTime() + groupCommitNanos;
+            for (long left = groupCommitNanos; left > 0; left = deadline - System.nanoTime()) {
+                LockSupport.parkNanos(this, left);
+            }
+            long position;
+            long forcedGeneration;
+            durableLock.lock();
+            try {
+                position = writtenPosition;
+                forcedGeneration = generation;
+            } finally {
+                durableLock.unlock();
+            }
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                LOG.error("Couldn't force journal " + path, e);
+                failure = e;
+            }
+            durableLock.lock();
+            try {
+                if (failure == null && forcedGeneration == generation) {
+                    durablePosition = Math.max(durablePosition, position);
+                }
+                durable.signalAll();
+            } finally {
+                durableLock.unlock();
+            }
+            if (failure != null) {
+                return;
+            }
+        }
+        durableLock.lock();
+        try {
+            durable.signalAll();
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal " + path + " failed", failure);
+        }
+        if (closed) {
+            throw new IOException("Journal " + path + " is closed");
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        id = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putLong(id);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+    }
+
+    private void checkHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        if (header.remaining() > 0 || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException(path + " is not a journal of version " + VERSION);
+        }
+        id = header.getLong(8);
+    }
+
+    /*
+        reads records with positional reads, so it doesn't disturb appends,
+        stops at the first incomplete or corrupted record
+     */
+    private long scan(long position, long to, JournalState state) throws IOException {
+        long size = Math.min(channel.size(), to);
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= size) {
+            recordHeader.clear();
+            readFully(recordHeader, position);
+            int length = recordHeader.getInt(0);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + RECORD_HEADER_SIZE);
+            payload.flip();
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != recordHeader.getInt(4)) {
+                break;
+            }
+            if (state != null) {
+                state.apply(payload);
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+}
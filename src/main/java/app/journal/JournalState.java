@@ -0,0 +1,161 @@
+package app.journal;
+
+import app.model.Account;
+import app.model.Money;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Folds journal records into state of accounts.
+ * Records of concurrent operations may be written in a different order than they were applied,
+ * e.g. a transfer to a new account can be journaled before the account itself,
+ * so exchanges are kept as deltas and added to the initial balance only at the end.
+ */
+class JournalState {
+    private static Logger LOG = LoggerFactory.getLogger(JournalState.class);
+    private final TreeMap<Integer, State> states = new TreeMap<>();
+    private int created;
+
+    void apply(ByteBuffer payload) {
+        byte type = payload.get();
+        switch (type) {
+            case Journal.ACCOUNT:
+            case Journal.ACCOUNT_IN_CURRENCY:
+                int id = payload.getInt();
+                int nameLength = payload.getInt();
+                String name = null;
+                if (nameLength >= 0) {
+                    byte[] bytes = new byte[nameLength];
+                    payload.get(bytes);
+                    name = new String(bytes, StandardCharsets.UTF_8);
+                }
+                State state = stateOf(id);
+                if (!state.created) {
+                    created++;
+                }
+                state.created = true;
+                state.name = name;
+                state.balance += payload.getLong();
+                if (type == Journal.ACCOUNT_IN_CURRENCY) {
+                    byte[] currency = new byte[3];
+                    payload.get(currency);
+                    state.currency = new String(currency, StandardCharsets.US_ASCII);
+                }
+                break;
+            case Journal.EXCHANGES:
+            case Journal.CONVERTED_EXCHANGES:
+                int count = payload.getInt();
+                for (int i = 0; i < count; i++) {
+                    int fromId = payload.getInt();
+                    int toId = payload.getInt();
+                    long amount = payload.getLong();
+                    long credited = type == Journal.CONVERTED_EXCHANGES ? payload.getLong() : amount;
+                    stateOf(fromId).balance -= amount;
+                    stateOf(toId).balance += credited;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    private State stateOf(int id) {
+        return states.computeIfAbsent(id, key -> new State());
+    }
+
+    /**
+     * Accounts of base get their deltas, accounts created by records are merged in,
+     * nothing is copied - the result is a view read once by whoever restores it.
+     *
+     * @param base accounts in ascending id order
+     * @return accounts in ascending id order
+     */
+    Collection<Account> accounts(Collection<Account> base) {
+        return new AbstractCollection<Account>() {
+            @Override
+            public Iterator<Account> iterator() {
+                return new Merge(base.iterator(), states.entrySet().iterator());
+            }
+
+            @Override
+            public int size() {
+                return base.size() + created;
+            }
+        };
+    }
+
+    private static class State {
+        private boolean created;
+        private String name;
+        private String currency;
+        private long balance;
+    }
+
+    private static class Merge implements Iterator<Account> {
+        private final Iterator<Account> base;
+        private final Iterator<Map.Entry<Integer, State>> states;
+        private Account nextBase;
+        private Map.Entry<Integer, State> nextState;
+        private Account next;
+
+        Merge(Iterator<Account> base, Iterator<Map.Entry<Integer, State>> states) {
+            this.base = base;
+            this.states = states;
+            nextBase = base.hasNext() ? base.next() : null;
+            nextState = nextState();
+            next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Account next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Account account = next;
+            next = advance();
+            return account;
+        }
+
+        private Account advance() {
+            while (nextBase != null || nextState != null) {
+                if (nextState == null || nextBase != null && nextBase.getId() < nextState.getKey()) {
+                    Account account = nextBase;
+                    nextBase = base.hasNext() ? base.next() : null;
+                    return account;
+                }
+                int id = nextState.getKey();
+                State state = nextState.getValue();
+                nextState = nextState();
+                if (nextBase != null && nextBase.getId() == id) {
+                    Account account = nextBase;
+                    nextBase = base.hasNext() ? base.next() : null;
+                    return new Account(id, account.getName(), Money.ofMinor(account.getBalance().getMinorUnits() + state.balance),
+                            account.getCurrency());
+                }
+                if (state.created) {
+                    return new Account(id, state.name, Money.ofMinor(state.balance), state.currency);
+                }
+                LOG.warn("Journal has exchanges of account {} but not the account itself, skipping it", id);
+            }
+            return null;
+        }
+
+        private Map.Entry<Integer, State> nextState() {
+            return states.hasNext() ? states.next() : null;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package app.journal;
+
+import app.model.Account;
+import app.model.Money;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * Binary image of all accounts in ascending id order.
+ * Header is magic, version, id of the journal and position in it the snapshot was taken at
+ * (both 0 when written without journal) and number of accounts; every account is id, balance in minor units,
+ * currency as three ASCII letters (zeros for none), length of UTF-8 name (-1 for null) and name;
+ * CRC32 of accounts closes the file. Snapshots of version 1 have no currencies and are still read.
+ * <p>
+ * Snapshot is written to a temporary file and moved over the previous one when complete,
+ * so the file at path is always whole. It's read through a memory mapping without copying it to heap.
+ */
+public final class Snapshot {
+    static final int MAGIC = 0x5453534e; // TSSN
+    static final int VERSION = 2;
+    static final int VERSION_WITHOUT_CURRENCY = 1;
+    private static final int CURRENCY_SIZE = 3;
+    private static final int HEADER_SIZE = 32;
+    private static final int FOOTER_SIZE = 4;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final long journalId;
+    private final long journalPosition;
+    private final int count;
+    private final ByteBuffer accounts;
+    private final boolean withCurrency;
+
+    private Snapshot(long journalId, long journalPosition, int count, ByteBuffer accounts, boolean withCurrency) {
+        this.journalId = journalId;
+        this.journalPosition = journalPosition;
+        this.count = count;
+        this.accounts = accounts;
+        this.withCurrency = withCurrency;
+    }
+
+    /**
+     * Maps snapshot file and checks it's complete.
+     *
+     * @return null if there is no snapshot at path
+     */
+    public static Snapshot load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + path + " is larger than 2GB");
+            }
+            if (channel.size() < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException("Snapshot " + path + " is truncated");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int version = buffer.getInt(4);
+        if (buffer.getInt(0) != MAGIC || version != VERSION && version != VERSION_WITHOUT_CURRENCY) {
+            throw new IOException(path + " is not a snapshot of version " + VERSION);
+        }
+        ByteBuffer accounts = buffer.duplicate();
+        accounts.position(HEADER_SIZE).limit(buffer.capacity() - FOOTER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(accounts.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(buffer.capacity() - FOOTER_SIZE)) {
+            throw new IOException("Snapshot " + path + " is corrupted");
+        }
+        return new Snapshot(buffer.getLong(8), buffer.getLong(16), (int) buffer.getLong(24), accounts.slice(), version == VERSION);
+    }
+
+    public long getJournalId() {
+        return journalId;
+    }
+
+    public long getJournalPosition() {
+        return journalPosition;
+    }
+
+    /**
+     * @return view decoding accounts from the mapping in ascending id order as they are iterated
+     */
+    public Collection<Account> accounts() {
+        return new AbstractCollection<Account>() {
+            @Override
+            public Iterator<Account> iterator() {
+                ByteBuffer buffer = accounts.duplicate();
+                return new Iterator<Account>() {
+                    // names are copied out of the mapping through one reused array
+                    private byte[] name = new byte[64];
+                    private final byte[] currency = new byte[CURRENCY_SIZE];
+
+                    @Override
+                    public boolean hasNext() {
+                        return buffer.hasRemaining();
+                    }
+
+                    @Override
+                    public Account next() {
+                        if (!buffer.hasRemaining()) {
+                            throw new NoSuchElementException();
+                        }
+                        int id = buffer.getInt();
+                        long balance = buffer.getLong();
+                        String accountCurrency = null;
+                        if (withCurrency) {
+                            buffer.get(currency);
+                            accountCurrency = currency[0] == 0 ? null : new String(currency, StandardCharsets.US_ASCII);
+                        }
+                        int nameLength = buffer.getInt();
+                        if (nameLength > name.length) {
+                            name = new byte[nameLength];
+                        }
+                        String accountName = null;
+                        if (nameLength >= 0) {
+                            buffer.get(name, 0, nameLength);
+                            accountName = new String(name, 0, nameLength, StandardCharsets.UTF_8);
+                        }
+                        return new Account(id, accountName, Money.ofMinor(balance), accountCurrency);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    public static Writer writer(Path path, long journalId, long journalPosition) throws IOException {
+        return new Writer(path, journalId, journalPosition);
+    }
+
+    /**
+     * Accounts have to be written in ascending id order, snapshot replaces the one at path only on {@link #commit()}.
+     */
+    public static final class Writer implements Closeable {
+        private final Path path;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private final long journalId;
+        private final long journalPosition;
+        private long count;
+        private boolean committed;
+
+        private Writer(Path path, long journalId, long journalPosition) throws IOException {
+            this.path = path;
+            this.journalId = journalId;
+            this.journalPosition = journalPosition;
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            channel.position(HEADER_SIZE);
+        }
+
+        public void write(Account account) throws IOException {
+            byte[] name = account.getName() == null ? null : account.getName().getBytes(StandardCharsets.UTF_8);
+            int size = 4 + 8 + CURRENCY_SIZE + 4 + (name == null ? 0 : name.length);
+            if (buffer.remaining() < size) {
+                drain();
+            }
+            ByteBuffer record = size > buffer.capacity() ? ByteBuffer.allocate(size) : buffer;
+            record.putInt(account.getId()).putLong(account.getBalance().getMinorUnits());
+            if (account.getCurrency() == null) {
+                record.put(new byte[CURRENCY_SIZE]);
+            } else {
+                record.put(account.getCurrency().getBytes(StandardCharsets.US_ASCII), 0, CURRENCY_SIZE);
+            }
+            if (name == null) {
+                record.putInt(-1);
+            } else {
+                record.putInt(name.length).put(name);
+            }
+            if (record != buffer) {
+                record.flip();
+                crc.update(record.duplicate());
+                writeFully(record);
+            }
+            count++;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Makes snapshot durable and puts it in place of the previous one.
+         */
+        public void commit() throws IOException {
+            drain();
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE).putInt((int) crc.getValue());
+            footer.flip();
+            writeFully(footer);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC).putInt(VERSION).putLong(journalId).putLong(journalPosition).putLong(count);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            channel.close();
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer source) throws IOException {
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+    }
+}
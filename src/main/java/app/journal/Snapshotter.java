@@ -0,0 +1,147 @@
+package app.journal;
+
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.service.DAOService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes snapshots periodically on its own thread.
+ * With a journal the new snapshot is the previous one with journal records written since it folded in,
+ * so it's exactly the durable state at some journal position and transfers are not touched at all.
+ * Without journal accounts are streamed from the service, such snapshot is only as consistent as the stream.
+ */
+public class Snapshotter implements Closeable {
+    private static Logger LOG = LoggerFactory.getLogger(Snapshotter.class);
+    private final Path path;
+    private final Journal journal;
+    private final DAOService daoService;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param journal source of snapshots, null to stream them from daoService
+     */
+    public Snapshotter(Path path, Journal journal, DAOService daoService) {
+        this.path = path;
+        this.journal = journal;
+        this.daoService = daoService;
+    }
+
+    public void start(long intervalSeconds) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Couldn't write snapshot " + path, e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void snapshot() throws IOException {
+        long start = System.nanoTime();
+        long count = journal != null ? fromJournal() : fromService();
+        if (count >= 0) {
+            LOG.info("Snapshot of {} accounts written to {} in {} ms", count, path,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private long fromJournal() throws IOException {
+        long journalId = journal.getId();
+        long position = journal.getDurablePosition();
+        Snapshot previous = Snapshot.load(path);
+        if (previous != null && previous.getJournalId() != journalId) {
+            previous = null;
+        }
+        if (previous != null && previous.getJournalPosition() == position) {
+            return -1;
+        }
+        Collection<Account> base = previous == null ? Collections.emptyList() : previous.accounts();
+        return write(path, journalId, position,
+                journal.replay(base, previous == null ? 0 : previous.getJournalPosition(), position));
+    }
+
+    private static long write(Path path, long journalId, long journalPosition, Collection<Account> accounts) throws IOException {
+        try (Snapshot.Writer writer = Snapshot.writer(path, journalId, journalPosition)) {
+            for (Account account : accounts) {
+                writer.write(account);
+            }
+            writer.commit();
+            return writer.getCount();
+        }
+    }
+
+    private long fromService() throws IOException {
+        try (Snapshot.Writer writer = Snapshot.writer(path, 0, 0)) {
+            CompositeResponse status = daoService.streamAllAccounts(account -> {
+                try {
+                    writer.write(account);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if (status.getError()) {
+                throw new IOException("Couldn't stream accounts: " + status.getMessage());
+            }
+            writer.commit();
+            return writer.getCount();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Loads the latest snapshot and journal records written after it into daoService.
+     *
+     * @param journal null if journal is not used
+     * @return restored accounts count
+     */
+    public static int restore(Path path, Journal journal, DAOService daoService) throws IOException {
+        Snapshot snapshot = Snapshot.load(path);
+        Collection<Account> accounts = snapshot == null ? Collections.emptyList() : snapshot.accounts();
+        if (journal != null && snapshot != null && snapshot.getJournalId() != journal.getId()) {
+            if (journal.hasRecords()) {
+                // snapshot of another journal can't be combined with records of this one
+                LOG.warn("Snapshot {} doesn't belong to journal {}, replaying whole journal", path, journal.getPath());
+                accounts = Collections.emptyList();
+            } else {
+                // journal is new, snapshot becomes its starting point
+                write(path, journal.getId(), journal.getDurablePosition(), accounts);
+                snapshot = Snapshot.load(path);
+                accounts = snapshot.accounts();
+            }
+        }
+        if (journal != null) {
+            long position = snapshot != null && snapshot.getJournalId() == journal.getId() ? snapshot.getJournalPosition() : 0;
+            accounts = journal.replay(accounts, position, Long.MAX_VALUE);
+        }
+        if (accounts.isEmpty()) {
+            return 0;
+        }
+        CompositeResponse restored = daoService.restoreAccounts(accounts);
+        if (restored.getError()) {
+            throw new IOException("Couldn't restore accounts: " + restored.getMessage());
+        }
+        return accounts.size();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
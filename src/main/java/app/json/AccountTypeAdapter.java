@@ -0,0 +1,73 @@
+package app.json;
+
+import app.model.Account;
+import app.model.Money;
+import app.model.MoneyTypeAdapter;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+public class AccountTypeAdapter extends TypeAdapter<Account> {
+    private final MoneyTypeAdapter moneyTypeAdapter;
+
+    public AccountTypeAdapter(MoneyTypeAdapter moneyTypeAdapter) {
+        this.moneyTypeAdapter = moneyTypeAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, Account account) throws IOException {
+        if (account == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("id").value(account.getId());
+        if (account.getName() != null) {
+            out.name("name").value(account.getName());
+        }
+        if (account.getBalance() != null) {
+            out.name("balance");
+            moneyTypeAdapter.write(out, account.getBalance());
+        }
+        if (account.getCurrency() != null) {
+            out.name("currency").value(account.getCurrency());
+        }
+        out.endObject();
+    }
+
+    @Override
+    public Account read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        int id = 0;
+        String name = null;
+        Money balance = null;
+        String currency = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "id":
+                    id = JsonCodec.nextInt(in);
+                    break;
+                case "name":
+                    name = JsonCodec.nextNullableString(in);
+                    break;
+                case "balance":
+                    balance = moneyTypeAdapter.read(in);
+                    break;
+                case "currency":
+                    currency = JsonCodec.nextNullableString(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Account(id, name, balance, currency);
+    }
+}
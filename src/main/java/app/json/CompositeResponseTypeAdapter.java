@@ -0,0 +1,136 @@
+package app.json;
+
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.MoneyTypeAdapter;
+import app.model.Transfer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompositeResponseTypeAdapter extends TypeAdapter<CompositeResponse> {
+    private final AccountTypeAdapter accountTypeAdapter;
+    private final TransferTypeAdapter transferTypeAdapter;
+    private final MoneyTypeAdapter moneyTypeAdapter;
+
+    public CompositeResponseTypeAdapter(AccountTypeAdapter accountTypeAdapter, TransferTypeAdapter transferTypeAdapter,
+                                        MoneyTypeAdapter moneyTypeAdapter) {
+        this.accountTypeAdapter = accountTypeAdapter;
+        this.transferTypeAdapter = transferTypeAdapter;
+        this.moneyTypeAdapter = moneyTypeAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, CompositeResponse compositeResponse) throws IOException {
+        if (compositeResponse == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if (compositeResponse.getAccount() != null) {
+            out.name("account");
+            accountTypeAdapter.write(out, compositeResponse.getAccount());
+        }
+        if (compositeResponse.getAccounts() != null) {
+            out.name("accounts").beginArray();
+            for (Account account : compositeResponse.getAccounts()) {
+                accountTypeAdapter.write(out, account);
+            }
+            out.endArray();
+        }
+        if (compositeResponse.getCredited() != null) {
+            out.name("credited");
+            moneyTypeAdapter.write(out, compositeResponse.getCredited());
+        }
+        if (compositeResponse.getMessage() != null) {
+            out.name("message").value(compositeResponse.getMessage());
+        }
+        if (compositeResponse.getError() != null) {
+            out.name("error").value(compositeResponse.getError());
+        }
+        if (compositeResponse.getReplayed() != null) {
+            out.name("replayed").value(compositeResponse.getReplayed());
+        }
+        if (compositeResponse.getResults() != null) {
+            out.name("results").beginArray();
+            for (CompositeResponse result : compositeResponse.getResults()) {
+                write(out, result);
+            }
+            out.endArray();
+        }
+        if (compositeResponse.getTransfers() != null) {
+            out.name("transfers").beginArray();
+            for (Transfer transfer : compositeResponse.getTransfers()) {
+                transferTypeAdapter.write(out, transfer);
+            }
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    @Override
+    public CompositeResponse read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "account":
+                    compositeResponseBuilder.setAccount(accountTypeAdapter.read(in));
+                    break;
+                case "accounts":
+                    List<Account> accounts = new ArrayList<>();
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        accounts.add(accountTypeAdapter.read(in));
+                    }
+                    in.endArray();
+                    compositeResponseBuilder.setAccounts(accounts);
+                    break;
+                case "credited":
+                    compositeResponseBuilder.setCredited(moneyTypeAdapter.read(in));
+                    break;
+                case "message":
+                    compositeResponseBuilder.setMessage(JsonCodec.nextNullableString(in));
+                    break;
+                case "error":
+                    compositeResponseBuilder.setError(in.nextBoolean());
+                    break;
+                case "replayed":
+                    compositeResponseBuilder.setReplayed(in.nextBoolean());
+                    break;
+                case "results":
+                    List<CompositeResponse> results = new ArrayList<>();
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        results.add(read(in));
+                    }
+                    in.endArray();
+                    compositeResponseBuilder.setResults(results);
+                    break;
+                case "transfers":
+                    List<Transfer> transfers = new ArrayList<>();
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        transfers.add(transferTypeAdapter.read(in));
+                    }
+                    in.endArray();
+                    compositeResponseBuilder.setTransfers(transfers);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return compositeResponseBuilder.createCompositeResponse();
+    }
+}
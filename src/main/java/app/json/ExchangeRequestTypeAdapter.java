@@ -0,0 +1,80 @@
+package app.json;
+
+import app.model.Account;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import app.model.MoneyTypeAdapter;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+public class ExchangeRequestTypeAdapter extends TypeAdapter<ExchangeRequest> {
+    private final AccountTypeAdapter accountTypeAdapter;
+    private final MoneyTypeAdapter moneyTypeAdapter;
+
+    public ExchangeRequestTypeAdapter(AccountTypeAdapter accountTypeAdapter, MoneyTypeAdapter moneyTypeAdapter) {
+        this.accountTypeAdapter = accountTypeAdapter;
+        this.moneyTypeAdapter = moneyTypeAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, ExchangeRequest exchangeRequest) throws IOException {
+        if (exchangeRequest == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if (exchangeRequest.getFrom() != null) {
+            out.name("from");
+            accountTypeAdapter.write(out, exchangeRequest.getFrom());
+        }
+        if (exchangeRequest.getTo() != null) {
+            out.name("to");
+            accountTypeAdapter.write(out, exchangeRequest.getTo());
+        }
+        if (exchangeRequest.getAmount() != null) {
+            out.name("amount");
+            moneyTypeAdapter.write(out, exchangeRequest.getAmount());
+        }
+        if (exchangeRequest.getIdempotencyKey() != null) {
+            out.name("idempotencyKey").value(exchangeRequest.getIdempotencyKey());
+        }
+        out.endObject();
+    }
+
+    @Override
+    public ExchangeRequest read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Account from = null;
+        Account to = null;
+        Money amount = null;
+        String idempotencyKey = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "from":
+                    from = accountTypeAdapter.read(in);
+                    break;
+                case "to":
+                    to = accountTypeAdapter.read(in);
+                    break;
+                case "amount":
+                    amount = moneyTypeAdapter.read(in);
+                    break;
+                case "idempotencyKey":
+                    idempotencyKey = JsonCodec.nextNullableString(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new ExchangeRequest(from, to, amount, idempotencyKey);
+    }
+}
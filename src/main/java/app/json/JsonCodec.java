@@ -0,0 +1,166 @@
+package app.json;
+
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.model.MoneyTypeAdapter;
+import app.model.Transfer;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Thread-safe JSON codec shared by all requests.
+ * Model classes are handled by hand-written type adapters, so there is no reflection per call,
+ * values are read from and written to streams directly without building JsonElement trees.
+ */
+public class JsonCodec {
+    private final Gson gson;
+
+    public JsonCodec() {
+        MoneyTypeAdapter moneyTypeAdapter = new MoneyTypeAdapter();
+        AccountTypeAdapter accountTypeAdapter = new AccountTypeAdapter(moneyTypeAdapter);
+        TransferTypeAdapter transferTypeAdapter = new TransferTypeAdapter(moneyTypeAdapter);
+        gson = new GsonBuilder()
+                .registerTypeAdapter(Account.class, accountTypeAdapter)
+                .registerTypeAdapter(ExchangeRequest.class, new ExchangeRequestTypeAdapter(accountTypeAdapter, moneyTypeAdapter))
+                .registerTypeAdapter(Transfer.class, transferTypeAdapter)
+                .registerTypeAdapter(CompositeResponse.class, new CompositeResponseTypeAdapter(accountTypeAdapter, transferTypeAdapter, moneyTypeAdapter))
+                .disableHtmlEscaping()
+                .create();
+    }
+
+    /**
+     * @return null if stream is empty
+     */
+    public <T> T read(InputStream inputStream, Class<T> type) {
+        return gson.fromJson(new InputStreamReader(inputStream, StandardCharsets.UTF_8), type);
+    }
+
+    /**
+     * Reads accounts lazily while iterating, from a JSON array or from a sequence of objects (NDJSON),
+     * so only the account being read is kept in memory however long the stream is.
+     * Iterator throws {@link com.google.gson.JsonParseException} on malformed input, empty stream has no accounts.
+     */
+    public Iterator<Account> readAccounts(InputStream inputStream) {
+        JsonReader reader = gson.newJsonReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        TypeAdapter<Account> adapter = gson.getAdapter(Account.class);
+        return new Iterator<Account>() {
+            private boolean started;
+            private boolean array;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    if (!started) {
+                        started = true;
+                        try {
+                            array = reader.peek() == JsonToken.BEGIN_ARRAY;
+                        } catch (EOFException e) {
+                            return false;
+                        }
+                        if (array) {
+                            reader.beginArray();
+                        } else {
+                            // lets reader go on after the first top level object
+                            reader.setLenient(true);
+                        }
+                    }
+                    if (array) {
+                        return reader.hasNext();
+                    }
+                    return reader.peek() != JsonToken.END_DOCUMENT;
+                } catch (IOException e) {
+                    throw wrap(e);
+                }
+            }
+
+            @Override
+            public Account next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return adapter.read(reader);
+                } catch (IOException e) {
+                    throw wrap(e);
+                } catch (IllegalStateException e) {
+                    // value of another type where an account is expected
+                    throw new JsonSyntaxException(e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    private static RuntimeException wrap(IOException e) {
+        return e instanceof MalformedJsonException || e instanceof EOFException
+                ? new JsonSyntaxException(e.getMessage(), e) : new JsonIOException(e);
+    }
+
+    public void write(OutputStream outputStream, Object value) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        gson.toJson(value, value.getClass(), newJsonWriter(writer));
+        writer.flush();
+    }
+
+    public JsonWriter newJsonWriter(Writer writer) throws IOException {
+        return gson.newJsonWriter(writer);
+    }
+
+    public void write(JsonWriter writer, Account account) {
+        gson.toJson(account, Account.class, writer);
+    }
+
+    public String toJson(Object value) {
+        return gson.toJson(value);
+    }
+
+    public <T> T fromJson(String json, Class<T> type) {
+        return gson.fromJson(json, type);
+    }
+
+    /*
+        a fractional or out of range id is malformed input like any other, not a failure of the service
+     */
+    static int nextInt(JsonReader in) throws IOException {
+        try {
+            return in.nextInt();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException("Expected an int at " + in.getPath(), e);
+        }
+    }
+
+    static long nextLong(JsonReader in) throws IOException {
+        try {
+            return in.nextLong();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException("Expected a long at " + in.getPath(), e);
+        }
+    }
+
+    static String nextNullableString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+}
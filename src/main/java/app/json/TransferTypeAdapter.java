@@ -0,0 +1,78 @@
+package app.json;
+
+import app.model.Money;
+import app.model.MoneyTypeAdapter;
+import app.model.Transfer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.time.Instant;
+
+/**
+ * Writes accounts of a transfer as plain ids and its time as an ISO-8601 instant.
+ */
+public class TransferTypeAdapter extends TypeAdapter<Transfer> {
+    private final MoneyTypeAdapter moneyTypeAdapter;
+
+    public TransferTypeAdapter(MoneyTypeAdapter moneyTypeAdapter) {
+        this.moneyTypeAdapter = moneyTypeAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, Transfer transfer) throws IOException {
+        if (transfer == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("seq").value(transfer.getSeq());
+        out.name("from").value(transfer.getFromId());
+        out.name("to").value(transfer.getToId());
+        if (transfer.getAmount() != null) {
+            out.name("amount");
+            moneyTypeAdapter.write(out, transfer.getAmount());
+        }
+        out.name("timestamp").value(Instant.ofEpochMilli(transfer.getTimestamp()).toString());
+        out.endObject();
+    }
+
+    @Override
+    public Transfer read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        long seq = 0;
+        int fromId = 0;
+        int toId = 0;
+        Money amount = null;
+        long timestamp = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "seq":
+                    seq = JsonCodec.nextLong(in);
+                    break;
+                case "from":
+                    fromId = JsonCodec.nextInt(in);
+                    break;
+                case "to":
+                    toId = JsonCodec.nextInt(in);
+                    break;
+                case "amount":
+                    amount = moneyTypeAdapter.read(in);
+                    break;
+                case "timestamp":
+                    timestamp = Instant.parse(in.nextString()).toEpochMilli();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Transfer(seq, fromId, toId, amount, timestamp);
+    }
+}
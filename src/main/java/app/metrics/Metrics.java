@@ -0,0 +1,39 @@
+package app.metrics;
+
+/**
+ * Metrics of the transfer hot path, shared by every part of the service that takes part in a transfer.
+ * Stages are timed separately, so a slow transfer shows whether it waited for the account lock,
+ * for a connection, on the reads or on the update.
+ */
+public final class Metrics {
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    public static final Histogram TRANSFER = REGISTRY.histogram("transfer_seconds", "",
+            "Time of /performExchange from taking the account lock to the answer of DAO");
+    public static final Histogram TRANSFER_LOCK_WAIT = stage("lock_wait");
+    public static final Histogram TRANSFER_READ = stage("read");
+    public static final Histogram TRANSFER_UPDATE = stage("update");
+    public static final Histogram CONNECTION_WAIT = REGISTRY.histogram("db_connection_wait_seconds", "",
+            "Time waited for a free pooled connection");
+
+    public static final Counter TRANSFER_SUCCEEDED = result("success");
+    public static final Counter TRANSFER_INSUFFICIENT_FUNDS = result("insufficient_funds");
+    public static final Counter TRANSFER_UPDATE_CONFLICT = result("update_conflict");
+    public static final Counter TRANSFER_NOT_FOUND = result("not_found");
+    public static final Counter TRANSFER_FAILED = result("error");
+    public static final Counter IDEMPOTENT_REPLAYS = REGISTRY.counter("idempotent_replays_total", "",
+            "Exchanges answered as done before for their idempotency key, without transferring again");
+
+    private Metrics() {
+    }
+
+    private static Histogram stage(String stage) {
+        return REGISTRY.histogram("transfer_stage_seconds", "stage=\"" + stage + "\"",
+                "Time of a transfer stage: lock_wait for the account lock, read of both accounts, update with commit");
+    }
+
+    private static Counter result(String result) {
+        return REGISTRY.counter("transfers_total", "result=\"" + result + "\"",
+                "Transfers by result, update_conflict is a balance changed between read and update");
+    }
+}
@@ -0,0 +1,103 @@
+package app.metrics;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Named metrics written in Prometheus text format.
+ * A metric name is a family, several series of one family differ by labels, e.g. stage="read".
+ * Histograms are written as summaries in seconds with fixed quantiles over everything recorded since start.
+ * Gauges and counters kept by other classes are read through a supplier at scrape time,
+ * registering one under a taken name and labels replaces the previous one.
+ */
+public final class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * @param labels labels of the series as they go into braces, e.g. stage="read", empty for none
+     */
+    public synchronized Histogram histogram(String name, String labels, String help) {
+        Histogram histogram = new Histogram();
+        family(name, help, "summary").series.put(labels, histogram);
+        return histogram;
+    }
+
+    public synchronized Counter counter(String name, String labels, String help) {
+        Counter counter = new Counter();
+        family(name, help, "counter").series.put(labels, counter);
+        return counter;
+    }
+
+    public synchronized void counter(String name, String labels, String help, DoubleSupplier value) {
+        family(name, help, "counter").series.put(labels, value);
+    }
+
+    public synchronized void gauge(String name, String labels, String help, DoubleSupplier value) {
+        family(name, help, "gauge").series.put(labels, value);
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        }
+        return family;
+    }
+
+    public synchronized void write(Appendable out) throws IOException {
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    for (double quantile : QUANTILES) {
+                        String quantileLabel = "quantile=\"" + quantile + "\"";
+                        sample(out, name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel,
+                                histogram.getValueAtQuantile(quantile) / NANOS_PER_SECOND);
+                    }
+                    sample(out, name + "_sum", labels, histogram.getSum() / NANOS_PER_SECOND);
+                    sample(out, name + "_count", labels, histogram.getCount());
+                } else if (metric instanceof Counter) {
+                    sample(out, name, labels, ((Counter) metric).get());
+                } else {
+                    sample(out, name, labels, ((DoubleSupplier) metric).getAsDouble());
+                }
+            }
+        }
+    }
+
+    private static void sample(Appendable out, String name, String labels, double value) throws IOException {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append(Long.toString((long) value));
+        } else {
+            out.append(Double.toString(value));
+        }
+        out.append('\n');
+    }
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Object> series = new LinkedHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -1,18 +1,27 @@
 package app.model;
 
-import java.math.BigDecimal;
 import java.util.Objects;
 
+/**
+ * Balance is kept in currency of the account, ISO 4217 code fixed when the account is created;
+ * null currency is the base currency of the service.
+ */
 public class Account {
 
     private final int id;
     private final String name;
-    private final BigDecimal balance;
+    private final Money balance;
+    private final String currency;
 
-    public Account(int id, String name, BigDecimal balance) {
+    public Account(int id, String name, Money balance) {
+        this(id, name, balance, null);
+    }
+
+    public Account(int id, String name, Money balance, String currency) {
         this.id = id;
         this.name = name;
         this.balance = balance;
+        this.currency = currency;
     }
 
     public String getName() {
@@ -23,10 +32,17 @@ public class Account {
         return id;
     }
 
-    public BigDecimal getBalance() {
+    public Money getBalance() {
         return balance;
     }
 
+    public String getCurrency() {
+        return currency;
+    }
+
+    /*
+        currency never changes, so it doesn't tell two states of an account apart
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -48,6 +64,7 @@ public class Account {
                 "id=" + id +
                 ", name='" + name + '\'' +
                 ", balance=" + balance +
+                (currency == null ? "" : ", currency=" + currency) +
                 '}';
     }
 }
@@ -7,12 +7,30 @@ public class CompositeResponse {
     private final List<Account> accounts;
     private final String message;
     private final Boolean error;
+    private final List<CompositeResponse> results;
+    private final List<Transfer> transfers;
+    private final Money credited;
+    private final Boolean replayed;
 
-    public CompositeResponse(Account account, List<Account> accounts, String message, Boolean error) {
+    public CompositeResponse(Account account, List<Account> accounts, String message, Boolean error, List<CompositeResponse> results) {
+        this(account, accounts, message, error, results, null, null);
+    }
+
+    public CompositeResponse(Account account, List<Account> accounts, String message, Boolean error,
+                             List<CompositeResponse> results, List<Transfer> transfers, Money credited) {
+        this(account, accounts, message, error, results, transfers, credited, null);
+    }
+
+    public CompositeResponse(Account account, List<Account> accounts, String message, Boolean error,
+                             List<CompositeResponse> results, List<Transfer> transfers, Money credited, Boolean replayed) {
         this.account = account;
         this.accounts = accounts;
         this.message = message;
         this.error = error;
+        this.results = results;
+        this.transfers = transfers;
+        this.credited = credited;
+        this.replayed = replayed;
     }
 
     public Account getAccount() {
@@ -30,4 +48,30 @@ public class CompositeResponse {
     public Boolean getError() {
         return error;
     }
+
+    public List<CompositeResponse> getResults() {
+        return results;
+    }
+
+    public List<Transfer> getTransfers() {
+        return transfers;
+    }
+
+    /**
+     * @return amount an applied exchange has given to the receiver, in currency of the receiver
+     */
+    public Money getCredited() {
+        return credited;
+    }
+
+    /**
+     * @return true if an exchange was answered as done before for its idempotency key, without transferring again
+     */
+    public Boolean getReplayed() {
+        return replayed;
+    }
+
+    public boolean isReplayed() {
+        return Boolean.TRUE.equals(replayed);
+    }
 }
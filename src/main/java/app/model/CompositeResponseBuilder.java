@@ -7,6 +7,10 @@ public class CompositeResponseBuilder {
     private List<Account> accounts;
     private String message;
     private Boolean error;
+    private List<CompositeResponse> results;
+    private List<Transfer> transfers;
+    private Money credited;
+    private Boolean replayed;
 
     public CompositeResponseBuilder setAccount(Account account) {
         this.account = account;
@@ -28,7 +32,27 @@ public class CompositeResponseBuilder {
         return this;
     }
 
+    public CompositeResponseBuilder setResults(List<CompositeResponse> results) {
+        this.results = results;
+        return this;
+    }
+
+    public CompositeResponseBuilder setTransfers(List<Transfer> transfers) {
+        this.transfers = transfers;
+        return this;
+    }
+
+    public CompositeResponseBuilder setCredited(Money credited) {
+        this.credited = credited;
+        return this;
+    }
+
+    public CompositeResponseBuilder setReplayed(Boolean replayed) {
+        this.replayed = replayed;
+        return this;
+    }
+
     public CompositeResponse createCompositeResponse() {
-        return new CompositeResponse(account, accounts, message, error);
+        return new CompositeResponse(account, accounts, message, error, results, transfers, credited, replayed);
     }
 }
\ No newline at end of file
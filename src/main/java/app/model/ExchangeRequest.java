@@ -1,16 +1,28 @@
 package app.model;
 
-import java.math.BigDecimal;
-
 public class ExchangeRequest {
+    // fits the column keys are persisted in
+    public static final int MAX_IDEMPOTENCY_KEY_LENGTH = 64;
+    // exchanges of one batch, all their accounts are locked together in one transaction
+    public static final int MAX_BATCH_SIZE = 1000;
+
     private final Account from;
     private final Account to;
-    private final BigDecimal amount;
+    private final Money amount;
+    private final String idempotencyKey;
+
+    public ExchangeRequest(Account from, Account to, Money amount) {
+        this(from, to, amount, null);
+    }
 
-    public ExchangeRequest(Account from, Account to, BigDecimal amount) {
+    /**
+     * @param idempotencyKey chosen by client, repeated request with the same key gets the answer of the first one
+     */
+    public ExchangeRequest(Account from, Account to, Money amount, String idempotencyKey) {
         this.from = from;
         this.to = to;
         this.amount = amount;
+        this.idempotencyKey = idempotencyKey;
     }
 
     public Account getFrom() {
@@ -21,16 +33,21 @@ public class ExchangeRequest {
         return to;
     }
 
-    public BigDecimal getAmount() {
+    public Money getAmount() {
         return amount;
     }
 
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
     @Override
     public String toString() {
         return "{" +
                 "from=" + from +
                 ", to=" + to +
                 ", amount=" + amount +
+                (idempotencyKey == null ? "" : ", idempotencyKey=" + idempotencyKey) +
                 '}';
     }
 }
@@ -0,0 +1,39 @@
+package app.model;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Keeps JSON API compatible with decimal balances - accepts numbers and numeric strings, writes numbers.
+ */
+public class MoneyTypeAdapter extends TypeAdapter<Money> {
+
+    @Override
+    public void write(JsonWriter out, Money money) throws IOException {
+        if (money == null) {
+            out.nullValue();
+            return;
+        }
+        out.value(money.toBigDecimal());
+    }
+
+    @Override
+    public Money read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        String value = in.nextString();
+        try {
+            return Money.of(new BigDecimal(value));
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new JsonSyntaxException("Invalid amount " + value + ", at most " + Money.SCALE + " fraction digits are supported", e);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package app.model;
+
+import java.time.Instant;
+
+/**
+ * Committed exchange as kept in transfer history. Seq grows with every transfer,
+ * transfers of one account are numbered in the order they were committed.
+ */
+public class Transfer {
+    private final long seq;
+    private final int fromId;
+    private final int toId;
+    private final Money amount;
+    // epoch millis, plain value keeps the class readable by reflective Gson
+    private final long timestamp;
+
+    public Transfer(long seq, int fromId, int toId, Money amount, long timestamp) {
+        this.seq = seq;
+        this.fromId = fromId;
+        this.toId = toId;
+        this.amount = amount;
+        this.timestamp = timestamp;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public int getFromId() {
+        return fromId;
+    }
+
+    public int getToId() {
+        return toId;
+    }
+
+    public Money getAmount() {
+        return amount;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "{" +
+                "seq=" + seq +
+                ", from=" + fromId +
+                ", to=" + toId +
+                ", amount=" + amount +
+                ", timestamp=" + Instant.ofEpochMilli(timestamp) +
+                '}';
+    }
+}
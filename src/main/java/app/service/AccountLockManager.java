@@ -0,0 +1,81 @@
+package app.service;
+
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped lock table keyed by account id.
+ * Transfers lock both of their accounts' stripes, always in ascending stripe order,
+ * so two transfers can never wait on each other in a cycle, while transfers
+ * between unrelated accounts proceed in parallel.
+ */
+public class AccountLockManager {
+    private static final int DEFAULT_STRIPES = 1024;
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    public AccountLockManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public AccountLockManager(int stripesCount) {
+        if (stripesCount <= 0) {
+            throw new IllegalArgumentException("Stripes count should be positive, was " + stripesCount);
+        }
+        // round up to a power of two so a stripe can be picked with a mask
+        int size = stripesCount == 1 ? 1 : Integer.highestOneBit(stripesCount - 1) << 1;
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    public void lock(int firstId, int secondId) {
+        int first = stripeOf(firstId);
+        int second = stripeOf(secondId);
+        if (first == second) {
+            stripes[first].lock();
+            return;
+        }
+        stripes[Math.min(first, second)].lock();
+        stripes[Math.max(first, second)].lock();
+    }
+
+    public void unlock(int firstId, int secondId) {
+        int first = stripeOf(firstId);
+        int second = stripeOf(secondId);
+        if (first == second) {
+            stripes[first].unlock();
+            return;
+        }
+        stripes[Math.max(first, second)].unlock();
+        stripes[Math.min(first, second)].unlock();
+    }
+
+    /**
+     * Locks stripes of all the accounts at once, ascending like {@link #lock(int, int)} does.
+     *
+     * @return stripes to pass to {@link #unlockStripes(int[])}
+     */
+    public int[] lockAll(Collection<Integer> ids) {
+        int[] locked = ids.stream().mapToInt(this::stripeOf).distinct().sorted().toArray();
+        for (int stripe : locked) {
+            stripes[stripe].lock();
+        }
+        return locked;
+    }
+
+    public void unlockStripes(int[] locked) {
+        for (int i = locked.length - 1; i >= 0; i--) {
+            stripes[locked[i]].unlock();
+        }
+    }
+
+    int stripeOf(int id) {
+        // spread sequential ids, they are the common case for auto generated keys
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,187 @@
+package app.service;
+
+import app.metrics.MetricsRegistry;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of accounts by id in front of another DAOService.
+ * Cache is split into segments, each one is a bounded LRU map with its own lock.
+ * Writes invalidate touched accounts after they are committed and bump generation of their segment,
+ * a value loaded concurrently with a write is only cached when generation didn't change meanwhile,
+ * so a balance read before commit can't get into cache after it.
+ */
+public class CachingDAOService extends ForwardingDAOService {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CachingDAOService(DAOService delegate, int maxSize) {
+        super(delegate);
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size should be positive, was " + maxSize);
+        }
+        int segmentSize = (maxSize + SEGMENTS - 1) / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.counter("cache_hits_total", "", "Accounts answered from cache", this::getHits);
+        registry.counter("cache_misses_total", "", "Accounts read from the cached service", this::getMisses);
+        registry.counter("cache_evictions_total", "", "Accounts evicted to keep cache in its size", this::getEvictions);
+        registry.gauge("cache_size", "", "Accounts in cache", this::getSize);
+    }
+
+    @Override
+    public CompositeResponse getAccount(int id) {
+        Segment segment = segmentOf(id);
+        long generation;
+        synchronized (segment) {
+            Account account = segment.accounts.get(id);
+            if (account != null) {
+                hits.increment();
+                return new CompositeResponseBuilder().setError(false).setAccount(account).createCompositeResponse();
+            }
+            generation = segment.generation;
+        }
+        misses.increment();
+        CompositeResponse compositeResponse = delegate.getAccount(id);
+        if (!compositeResponse.getError()) {
+            synchronized (segment) {
+                if (segment.generation == generation) {
+                    segment.accounts.put(id, compositeResponse.getAccount());
+                }
+            }
+        }
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse restoreAccounts(Collection<Account> accounts) {
+        try {
+            return delegate.restoreAccounts(accounts);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public CompositeResponse drop() {
+        CompositeResponse compositeResponse = delegate.drop();
+        invalidateAll();
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse performExchange(ExchangeRequest exchangeRequest) {
+        try {
+            return delegate.performExchange(exchangeRequest);
+        } finally {
+            invalidate(exchangeRequest);
+        }
+    }
+
+    @Override
+    public CompositeResponse performExchanges(List<ExchangeRequest> exchangeRequests, boolean atomic) {
+        try {
+            return delegate.performExchanges(exchangeRequests, atomic);
+        } finally {
+            exchangeRequests.forEach(this::invalidate);
+        }
+    }
+
+    @Override
+    public CompositeResponse performExchangeSide(ExchangeRequest exchangeRequest, boolean sending) {
+        try {
+            return delegate.performExchangeSide(exchangeRequest, sending);
+        } finally {
+            invalidate((sending ? exchangeRequest.getFrom() : exchangeRequest.getTo()).getId());
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.accounts.size();
+            }
+        }
+        return size;
+    }
+
+    private void invalidate(ExchangeRequest exchangeRequest) {
+        if (exchangeRequest == null) {
+            return;
+        }
+        if (exchangeRequest.getFrom() != null) {
+            invalidate(exchangeRequest.getFrom().getId());
+        }
+        if (exchangeRequest.getTo() != null) {
+            invalidate(exchangeRequest.getTo().getId());
+        }
+    }
+
+    private void invalidate(int id) {
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            segment.generation++;
+            segment.accounts.remove(id);
+        }
+    }
+
+    private void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.generation++;
+                segment.accounts.clear();
+            }
+        }
+    }
+
+    private Segment segmentOf(int id) {
+        return segments[Math.floorMod(id, SEGMENTS)];
+    }
+
+    private class Segment {
+        private final Map<Integer, Account> accounts;
+        private long generation;
+
+        Segment(int maxSize) {
+            accounts = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Account> eldest) {
+                    if (size() > maxSize) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+}
@@ -4,14 +4,99 @@ import app.model.Account;
 import app.model.CompositeResponse;
 import app.model.ExchangeRequest;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
 public interface DAOService {
     CompositeResponse getAccount(int id);
 
     CompositeResponse getAllAccounts();
 
+    /**
+     * Keyset pagination - next page starts after id of the last account of previous one.
+     *
+     * @return up to limit accounts with id greater than afterId, in ascending id order
+     */
+    CompositeResponse getAccounts(int afterId, int limit);
+
+    /**
+     * Hands every account to consumer in ascending id order without collecting them,
+     * so memory use doesn't depend on number of accounts.
+     *
+     * @return status of streaming, accounts are not part of it
+     */
+    CompositeResponse streamAllAccounts(Consumer<Account> consumer);
+
+    /**
+     * @return created account with its generated id and currency in {@link CompositeResponse#getAccount()},
+     * an error for a currency without exchange rate
+     */
     CompositeResponse insertAccount(Account account);
 
+    /**
+     * Inserts accounts as the iterator gives them, in batches of batchSize committed one by one,
+     * so neither memory nor transaction grow with the number of accounts.
+     * Import stops at the first invalid account, accounts of batches committed before it stay.
+     *
+     * @param created gets every account with its generated id, in input order, once its batch is committed
+     * @return status of import, accounts are not part of it
+     */
+    CompositeResponse insertAccounts(Iterator<Account> accounts, int batchSize, Consumer<Account> created);
+
+    /**
+     * Creates accounts with the ids they already have, all of them or none. An id that is taken fails the call,
+     * existing accounts are never overwritten. Meant for callers which give all ids themselves,
+     * whether ids generated afterwards skip these ones depends on the service.
+     * Accounts are expected to be valid, a missing currency is the base one.
+     *
+     * @return status of insert, accounts are not part of it
+     */
+    CompositeResponse insertAccountsWithIds(List<Account> accounts);
+
+    /**
+     * Puts accounts back with their ids, overwriting existing ones with the same id,
+     * ids generated afterwards continue after the largest of them.
+     * Meant for recovery from a snapshot or journal, it may stop other writes while it runs.
+     */
+    CompositeResponse restoreAccounts(Collection<Account> accounts);
+
     CompositeResponse drop();
 
+    /**
+     * Amount is in currency of the sender, the receiver gets it converted to its own currency.
+     *
+     * @return on success accounts of the exchange as it left them in {@link CompositeResponse#getAccounts()},
+     * sender first, and converted amount in {@link CompositeResponse#getCredited()};
+     * a replay of an exchange already done by its idempotency key has neither
+     */
     CompositeResponse performExchange(ExchangeRequest exchangeRequest);
+
+    /**
+     * Applies exchanges in the given order, each one is checked against balances left by the previous ones.
+     *
+     * @param atomic if true nothing is applied when any of exchanges fails, otherwise failed exchanges are skipped
+     * @return overall status with a result for every exchange in {@link CompositeResponse#getResults()},
+     * the result of an applied exchange has its accounts as that exchange left them
+     */
+    CompositeResponse performExchanges(List<ExchangeRequest> exchangeRequests, boolean atomic);
+
+    /**
+     * One side of an exchange between accounts kept by different nodes: takes amount from the sender when sending,
+     * gives it to the receiver otherwise, the other account is neither touched nor checked.
+     * Sending is refused when balance doesn't cover amount. Receiving converts amount from currency of the sender
+     * in the request, a sender without currency means amount is already in currency of the receiver.
+     *
+     * @return the changed account as the side left it in {@link CompositeResponse#getAccount()}
+     */
+    CompositeResponse performExchangeSide(ExchangeRequest exchangeRequest, boolean sending);
+
+    /**
+     * Statement of an account, keyset pagination - next page starts after seq of the last transfer of previous one.
+     *
+     * @return up to limit transfers from or to the account with seq greater than afterSeq,
+     * in ascending seq order in {@link CompositeResponse#getTransfers()}
+     */
+    CompositeResponse getTransfers(int accountId, long afterSeq, int limit);
 }
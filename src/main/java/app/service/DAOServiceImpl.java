@@ -1,24 +1,53 @@
 package app.service;
 
 import app.database.DBConnector;
+import app.database.PooledConnection;
+import app.fx.FxRateTable;
+import app.metrics.Metrics;
 import app.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigDecimal;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class DAOServiceImpl implements DAOService {
     private static Logger LOG = LoggerFactory.getLogger(DAOServiceImpl.class);
     private final DBConnector dbConnector;
+    private final FxRateTable fxRateTable;
 
     //language=H2
-    private static final String CREATE_ACCOUNT_TABLE = "CREATE TABLE ACCOUNTS (ID INT PRIMARY KEY AUTO_INCREMENT, NAME VARCHAR(255), BALANCE VARCHAR(255))";
+    private static final String CREATE_ACCOUNT_TABLE = "CREATE TABLE IF NOT EXISTS ACCOUNTS (ID INT PRIMARY KEY AUTO_INCREMENT, NAME VARCHAR(255), BALANCE BIGINT, CURRENCY CHAR(3))";
+    // tables created before accounts had currencies, their rows are in the base currency
+    private static final String ADD_CURRENCY_COLUMN = "ALTER TABLE ACCOUNTS ADD COLUMN IF NOT EXISTS CURRENCY CHAR(3)";
     private static final String DROP_ACCOUNT_TABLE = "DROP TABLE ACCOUNTS";
-    private static final String INSERT_INTO_ACCOUNT_TABLE = "INSERT INTO ACCOUNTS (NAME, BALANCE) VALUES(?,?)";
-    private static final String SELECT_ALL_FROM_ACCOUNT_TABLE = "SELECT * FROM ACCOUNTS";
-    private static final String SELECT_ACCOUNT_FROM_ACCOUNT_TABLE_BY_ID = "SELECT * FROM ACCOUNTS WHERE ID = ?";
+    private static final String INSERT_INTO_ACCOUNT_TABLE = "INSERT INTO ACCOUNTS (NAME, BALANCE, CURRENCY) VALUES(?,?,?)";
+    private static final String INSERT_WITH_ID_INTO_ACCOUNT_TABLE = "INSERT INTO ACCOUNTS (ID, NAME, BALANCE, CURRENCY) VALUES(?,?,?,?)";
+    private static final String SELECT_ANY_ACCOUNT = "SELECT ID FROM ACCOUNTS LIMIT 1";
+    private static final String MERGE_INTO_ACCOUNT_TABLE = "MERGE INTO ACCOUNTS (ID, NAME, BALANCE, CURRENCY) KEY (ID) VALUES(?,?,?,?)";
+    private static final String RESTART_ACCOUNT_ID = "ALTER TABLE ACCOUNTS ALTER COLUMN ID RESTART WITH ";
+    private static final String SELECT_MAX_ACCOUNT_ID = "SELECT COALESCE(MAX(ID), 0) FROM ACCOUNTS";
+    private static final int RESTORE_BATCH_SIZE = 1000;
+    private static final String SELECT_ALL_FROM_ACCOUNT_TABLE = "SELECT ID, NAME, BALANCE, CURRENCY FROM ACCOUNTS";
+    private static final String SELECT_ACCOUNT_FROM_ACCOUNT_TABLE_BY_ID = "SELECT ID, NAME, BALANCE, CURRENCY FROM ACCOUNTS WHERE ID = ?";
+    private static final String SELECT_CURRENCY_BY_ID = "SELECT CURRENCY FROM ACCOUNTS WHERE ID = ?";
+    private static final String SELECT_CURRENCIES_BY_IDS = "SELECT ID, CURRENCY FROM ACCOUNTS WHERE ID IN (?, ?)";
+    private static final String SELECT_ACCOUNTS_PAGE = "SELECT ID, NAME, BALANCE, CURRENCY FROM ACCOUNTS WHERE ID > ? ORDER BY ID LIMIT ?";
+    private static final String SELECT_ALL_ORDERED_BY_ID = "SELECT ID, NAME, BALANCE, CURRENCY FROM ACCOUNTS ORDER BY ID";
+    // lets H2 hand out rows while scanning instead of materializing the whole result first
+    private static final String LAZY_QUERY_EXECUTION_ON = "SET LAZY_QUERY_EXECUTION 1";
+    private static final String LAZY_QUERY_EXECUTION_OFF = "SET LAZY_QUERY_EXECUTION 0";
+    private static final int STREAM_FETCH_SIZE = 1000;
     private static final String EXCHANGE_SQL = "UPDATE ACCOUNTS \n" +
             "SET BALANCE = \n" +
             "    CASE " +
@@ -27,40 +56,69 @@ public class DAOServiceImpl implements DAOService {
             "    ELSE BALANCE \n" +
             "    END\n" +
             "WHERE (ID = ? AND BALANCE = ?) OR (ID = ? AND BALANCE = ?)";
+    private static final String DEBIT_SQL = "UPDATE ACCOUNTS SET BALANCE = BALANCE - ? WHERE ID = ? AND BALANCE >= ?";
+    private static final String CREDIT_SQL = "UPDATE ACCOUNTS SET BALANCE = BALANCE + ? WHERE ID = ?";
+    private static final String SELECT_EXCHANGED_ACCOUNTS = "SELECT ID, NAME, BALANCE, CURRENCY FROM ACCOUNTS WHERE ID IN (?, ?)";
+    private static final String UPDATE_BALANCE_SQL = "UPDATE ACCOUNTS SET BALANCE = ? WHERE ID = ?";
+    private static final int LOCK_CHUNK_SIZE = 500;
+    private static final String CREATE_IDEMPOTENCY_KEY_TABLE = "CREATE TABLE IF NOT EXISTS IDEMPOTENCY_KEYS (IDEMPOTENCY_KEY VARCHAR(64) PRIMARY KEY, CREATED TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
+    private static final String DROP_IDEMPOTENCY_KEY_TABLE = "DROP TABLE IF EXISTS IDEMPOTENCY_KEYS";
+    private static final String INSERT_IDEMPOTENCY_KEY = "INSERT INTO IDEMPOTENCY_KEYS (IDEMPOTENCY_KEY) VALUES(?)";
+    private static final String SELECT_IDEMPOTENCY_KEY = "SELECT 1 FROM IDEMPOTENCY_KEYS WHERE IDEMPOTENCY_KEY = ?";
+    private static final String DELETE_EXPIRED_IDEMPOTENCY_KEYS = "DELETE FROM IDEMPOTENCY_KEYS WHERE CREATED < DATEADD('SECOND', -?, CURRENT_TIMESTAMP)";
+    private static final int IDEMPOTENCY_KEYS_PURGE_INTERVAL = 10_000;
+    private static final String CREATE_TRANSFER_TABLE = "CREATE TABLE IF NOT EXISTS TRANSFERS (SEQ BIGINT AUTO_INCREMENT PRIMARY KEY, FROM_ID INT NOT NULL, TO_ID INT NOT NULL, AMOUNT BIGINT NOT NULL, CREATED TIMESTAMP NOT NULL)";
+    // a statement is two range scans of these, its cost doesn't depend on size of the table
+    private static final String CREATE_TRANSFER_FROM_INDEX = "CREATE INDEX IF NOT EXISTS TRANSFERS_FROM_SEQ ON TRANSFERS (FROM_ID, SEQ)";
+    private static final String CREATE_TRANSFER_TO_INDEX = "CREATE INDEX IF NOT EXISTS TRANSFERS_TO_SEQ ON TRANSFERS (TO_ID, SEQ)";
+    private static final String DROP_TRANSFER_TABLE = "DROP TABLE IF EXISTS TRANSFERS";
+    private static final String INSERT_TRANSFER = "INSERT INTO TRANSFERS (FROM_ID, TO_ID, AMOUNT, CREATED) VALUES(?,?,?,?)";
+    private static final String SELECT_TRANSFERS_FROM_PAGE = "SELECT SEQ, FROM_ID, TO_ID, AMOUNT, CREATED FROM TRANSFERS WHERE FROM_ID = ? AND SEQ > ? ORDER BY FROM_ID, SEQ LIMIT ?";
+    private static final String SELECT_TRANSFERS_TO_PAGE = "SELECT SEQ, FROM_ID, TO_ID, AMOUNT, CREATED FROM TRANSFERS WHERE TO_ID = ? AND SEQ > ? ORDER BY TO_ID, SEQ LIMIT ?";
+    // optimistic - read both accounts and compare-and-set balances, atomic (default) - guarded updates in one transaction
+    private final boolean atomicExchange = !"optimistic".equals(System.getProperty("dao.exchange.mode"));
+    // idempotency keys of committed exchanges are kept in a table, so they survive restart and eviction from memory
+    private final boolean persistIdempotencyKeys = Boolean.getBoolean("idempotency.persist");
+    private final long idempotencyTtlSeconds = Long.getLong("idempotency.ttlSeconds", 3600);
+    private final AtomicLong idempotencyKeysClaimed = new AtomicLong();
+    private final boolean keepHistory = Boolean.getBoolean("history.enabled");
 
     public DAOServiceImpl(DBConnector dbConnector) {
+        this(dbConnector, FxRateTable.baseOnly());
+    }
+
+    public DAOServiceImpl(DBConnector dbConnector, FxRateTable fxRateTable) {
         this.dbConnector = dbConnector;
+        this.fxRateTable = fxRateTable;
         // for tasks sake
         try {
             initScheme();
         } catch (SQLException e) {
             LOG.error("Can't initialize primitive app.database.", e);
-            e.printStackTrace();
         }
     }
 
     private void initScheme() throws SQLException {
         executeForCreate(CREATE_ACCOUNT_TABLE);
+        executeForCreate(ADD_CURRENCY_COLUMN);
+        if (keepHistory) {
+            executeForCreate(CREATE_TRANSFER_TABLE);
+            executeForCreate(CREATE_TRANSFER_FROM_INDEX);
+            executeForCreate(CREATE_TRANSFER_TO_INDEX);
+        }
+        if (persistIdempotencyKeys) {
+            executeForCreate(CREATE_IDEMPOTENCY_KEY_TABLE);
+        }
     }
 
     @Override
     public CompositeResponse getAccount(int id) {
         Account account = null;
         CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
-        try {
-            Connection dbConnection = dbConnector.getDbConnection();
-            PreparedStatement preparedStatement = dbConnection.prepareStatement(SELECT_ACCOUNT_FROM_ACCOUNT_TABLE_BY_ID);
-            preparedStatement.setInt(1, id);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            while (resultSet.next()) {
-                account = new Account(
-                        resultSet.getInt(1),
-                        resultSet.getString(2),
-                        resultSet.getBigDecimal(3));
-            }
-            dbConnection.close();
+        try (PooledConnection dbConnection = dbConnector.getDbConnection()) {
+            account = selectAccount(dbConnection, id);
         } catch (SQLException e) {
-            e.printStackTrace();
+            LOG.error("Couldn't read account {}", id, e);
             prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in SQL execution");
         }
         if (account == null) {
@@ -70,17 +128,22 @@ public class DAOServiceImpl implements DAOService {
     }
 
 
+    private Account selectAccount(PooledConnection dbConnection, int id) throws SQLException {
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(SELECT_ACCOUNT_FROM_ACCOUNT_TABLE_BY_ID);
+        preparedStatement.setInt(1, id);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            return resultSet.next() ? readAccount(resultSet) : null;
+        }
+    }
+
     @Override
     public CompositeResponse getAllAccounts() {
         ArrayList<Account> accounts = new ArrayList<>();
         CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
-        try (Connection dbConnection = dbConnector.getDbConnection(); Statement statement = dbConnection.createStatement()) {
-            ResultSet resultSet = statement.executeQuery(SELECT_ALL_FROM_ACCOUNT_TABLE);
+        try (PooledConnection dbConnection = dbConnector.getDbConnection();
+             ResultSet resultSet = dbConnection.prepareStatement(SELECT_ALL_FROM_ACCOUNT_TABLE).executeQuery()) {
             while (resultSet.next()) {
-                accounts.add(new Account(
-                        resultSet.getInt(1),
-                        resultSet.getString(2),
-                        resultSet.getBigDecimal(3)));
+                accounts.add(readAccount(resultSet));
             }
         } catch (SQLException e) {
             prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in SQL execution");
@@ -92,42 +155,295 @@ public class DAOServiceImpl implements DAOService {
     }
 
     @Override
-    public CompositeResponse insertAccount(Account account) {
+    public CompositeResponse getAccounts(int afterId, int limit) {
+        List<Account> accounts = new ArrayList<>(limit);
         CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
-        try (Connection dbConnection = dbConnector.getDbConnection()) {
-            try (PreparedStatement preparedStatement = dbConnection.prepareStatement(INSERT_INTO_ACCOUNT_TABLE)) {
-                preparedStatement.setString(1, account.getName());
-                preparedStatement.setBigDecimal(2, account.getBalance());
-                if (preparedStatement.executeUpdate() == 0) {
-                    prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't insert" + account);
-                    return compositeResponseBuilder.createCompositeResponse();
+        try (PooledConnection dbConnection = dbConnector.getDbConnection()) {
+            PreparedStatement preparedStatement = dbConnection.prepareStatement(SELECT_ACCOUNTS_PAGE);
+            preparedStatement.setInt(1, afterId);
+            preparedStatement.setInt(2, limit);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    accounts.add(readAccount(resultSet));
                 }
-                compositeResponseBuilder.setMessage("Account was created");
             }
         } catch (SQLException e) {
-            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in SQL execution");
-            e.printStackTrace();
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in SQL execution", e);
+        }
+        return compositeResponseBuilder.setAccounts(accounts).createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse streamAllAccounts(Consumer<Account> consumer) {
+        int count = 0;
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        try (PooledConnection dbConnection = dbConnector.getDbConnection(); Statement statement = dbConnection.createStatement()) {
+            statement.execute(LAZY_QUERY_EXECUTION_ON);
+            try {
+                statement.setFetchSize(STREAM_FETCH_SIZE);
+                try (ResultSet resultSet = statement.executeQuery(SELECT_ALL_ORDERED_BY_ID)) {
+                    while (resultSet.next()) {
+                        consumer.accept(readAccount(resultSet));
+                        count++;
+                    }
+                }
+            } finally {
+                statement.execute(LAZY_QUERY_EXECUTION_OFF);
+            }
+        } catch (SQLException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in SQL execution", e);
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        return compositeResponseBuilder.setMessage("Streamed " + count + " accounts").createCompositeResponse();
+    }
+
+    private Account readAccount(ResultSet resultSet) throws SQLException {
+        String currency = resultSet.getString(4);
+        return new Account(
+                resultSet.getInt(1),
+                resultSet.getString(2),
+                Money.ofMinor(resultSet.getLong(3)),
+                currency == null ? fxRateTable.current().getBase() : currency);
+    }
+
+    /**
+     * @return currency of the account, null if there is no such account
+     */
+    private String currencyOf(PooledConnection dbConnection, int id) throws SQLException {
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(SELECT_CURRENCY_BY_ID);
+        preparedStatement.setInt(1, id);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            if (!resultSet.next()) {
+                return null;
+            }
+            return resultSet.getString(1) == null ? fxRateTable.current().getBase() : resultSet.getString(1);
+        }
+    }
+
+    /**
+     * Currencies of both sides of an exchange in one primary key lookup.
+     *
+     * @return currencies of from and to, null for an account that doesn't exist
+     */
+    private String[] currenciesOf(PooledConnection dbConnection, int fromId, int toId) throws SQLException {
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(SELECT_CURRENCIES_BY_IDS);
+        preparedStatement.setInt(1, fromId);
+        preparedStatement.setInt(2, toId);
+        String[] found = new String[2];
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                String currency = resultSet.getString(2) == null ? fxRateTable.current().getBase() : resultSet.getString(2);
+                if (resultSet.getInt(1) == fromId) {
+                    found[0] = currency;
+                }
+                if (resultSet.getInt(1) == toId) {
+                    found[1] = currency;
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public CompositeResponse insertAccount(Account account) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        try (PooledConnection dbConnection = dbConnector.getDbConnection()) {
+            PreparedStatement preparedStatement = dbConnection.prepareStatementReturningKeys(INSERT_INTO_ACCOUNT_TABLE);
+            preparedStatement.setString(1, account.getName());
+            if (account.getBalance() == null) {
+                prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't insert" + account);
+                return compositeResponseBuilder.createCompositeResponse();
+            }
+            preparedStatement.setLong(2, account.getBalance().getMinorUnits());
+            String currency = fxRateTable.current().currencyOfNewAccount(account.getCurrency());
+            if (currency == null) {
+                prepareUnsuccessfulResponse(compositeResponseBuilder, "Unknown currency " + account.getCurrency());
+                return compositeResponseBuilder.createCompositeResponse();
+            }
+            preparedStatement.setString(3, currency);
+            if (preparedStatement.executeUpdate() == 0) {
+                prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't insert" + account);
+                return compositeResponseBuilder.createCompositeResponse();
+            }
+            try (ResultSet generatedKeys = preparedStatement.getGeneratedKeys()) {
+                generatedKeys.next();
+                compositeResponseBuilder.setAccount(new Account(generatedKeys.getInt(1), account.getName(), account.getBalance(), currency));
+            }
+            compositeResponseBuilder.setMessage("Account was created");
+        } catch (SQLException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in SQL execution", e);
         }
         return compositeResponseBuilder.createCompositeResponse();
     }
 
+    /*
+        one connection and statement for the whole import, every batch is a transaction of its own,
+        so committed rows don't pile up in the undo log of one huge transaction;
+        pending rows are dropped from the cached statement when import stops in the middle of a batch
+     */
+    @Override
+    public CompositeResponse insertAccounts(Iterator<Account> accounts, int batchSize, Consumer<Account> created) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        List<Account> batch = new ArrayList<>(batchSize);
+        int count = 0;
+        try (PooledConnection dbConnection = dbConnector.getDbConnection()) {
+            PreparedStatement preparedStatement = dbConnection.prepareStatementReturningKeys(INSERT_INTO_ACCOUNT_TABLE);
+            dbConnection.setAutoCommit(false);
+            try {
+                while (accounts.hasNext()) {
+                    Account account = accounts.next();
+                    String currency = account == null ? null : fxRateTable.current().currencyOfNewAccount(account.getCurrency());
+                    if (account == null || account.getBalance() == null || currency == null) {
+                        preparedStatement.clearBatch();
+                        dbConnection.rollback();
+                        prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't insert " + account + ", created " + count + " accounts before it");
+                        return compositeResponseBuilder.createCompositeResponse();
+                    }
+                    preparedStatement.setString(1, account.getName());
+                    preparedStatement.setLong(2, account.getBalance().getMinorUnits());
+                    preparedStatement.setString(3, currency);
+                    preparedStatement.addBatch();
+                    batch.add(new Account(0, account.getName(), account.getBalance(), currency));
+                    if (batch.size() == batchSize) {
+                        count += insertBatch(dbConnection, preparedStatement, batch, created);
+                    }
+                }
+                count += insertBatch(dbConnection, preparedStatement, batch, created);
+            } catch (SQLException | RuntimeException e) {
+                preparedStatement.clearBatch();
+                dbConnection.rollback();
+                throw e;
+            } finally {
+                dbConnection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't insert accounts, created " + count + " of them", e);
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        return compositeResponseBuilder.setMessage("Created " + count + " accounts").createCompositeResponse();
+    }
+
+    private static int insertBatch(PooledConnection dbConnection, PreparedStatement preparedStatement,
+                                   List<Account> batch, Consumer<Account> created) throws SQLException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        preparedStatement.executeBatch();
+        List<Account> inserted = new ArrayList<>(batch.size());
+        try (ResultSet generatedKeys = preparedStatement.getGeneratedKeys()) {
+            for (Account account : batch) {
+                generatedKeys.next();
+                inserted.add(new Account(generatedKeys.getInt(1), account.getName(), account.getBalance(), account.getCurrency()));
+            }
+        }
+        dbConnection.commit();
+        inserted.forEach(created);
+        batch.clear();
+        return inserted.size();
+    }
+
+    /*
+        plain inserts in one transaction, a taken id breaks the primary key and rolls all of them back
+     */
+    @Override
+    public CompositeResponse insertAccountsWithIds(List<Account> accounts) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        String base = fxRateTable.current().getBase();
+        try (PooledConnection dbConnection = dbConnector.getDbConnection()) {
+            PreparedStatement preparedStatement = dbConnection.prepareStatement(INSERT_WITH_ID_INTO_ACCOUNT_TABLE);
+            dbConnection.setAutoCommit(false);
+            try {
+                for (Account account : accounts) {
+                    preparedStatement.setInt(1, account.getId());
+                    preparedStatement.setString(2, account.getName());
+                    preparedStatement.setLong(3, account.getBalance().getMinorUnits());
+                    preparedStatement.setString(4, account.getCurrency() == null ? base : account.getCurrency());
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+                dbConnection.commit();
+            } catch (SQLException e) {
+                preparedStatement.clearBatch();
+                dbConnection.rollback();
+                throw e;
+            } finally {
+                dbConnection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't insert " + accounts.size() + " accounts", e);
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        return compositeResponseBuilder.setMessage("Created " + accounts.size() + " accounts").createCompositeResponse();
+    }
+
+    /*
+        accounts are merged by id in batches of one transaction, into an empty table they are just inserted,
+        identity is moved past the largest id so new accounts don't collide with restored ones
+     */
+    @Override
+    public CompositeResponse restoreAccounts(Collection<Account> accounts) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        String base = fxRateTable.current().getBase();
+        try (PooledConnection dbConnection = dbConnector.getDbConnection()) {
+            dbConnection.setAutoCommit(false);
+            try {
+                boolean empty;
+                try (ResultSet resultSet = dbConnection.prepareStatement(SELECT_ANY_ACCOUNT).executeQuery()) {
+                    empty = !resultSet.next();
+                }
+                PreparedStatement preparedStatement = dbConnection.prepareStatement(
+                        empty ? INSERT_WITH_ID_INTO_ACCOUNT_TABLE : MERGE_INTO_ACCOUNT_TABLE);
+                int batched = 0;
+                for (Account account : accounts) {
+                    preparedStatement.setInt(1, account.getId());
+                    preparedStatement.setString(2, account.getName());
+                    preparedStatement.setLong(3, account.getBalance().getMinorUnits());
+                    preparedStatement.setString(4, account.getCurrency() == null ? base : account.getCurrency());
+                    preparedStatement.addBatch();
+                    if (++batched % RESTORE_BATCH_SIZE == 0) {
+                        preparedStatement.executeBatch();
+                    }
+                }
+                preparedStatement.executeBatch();
+                int maxId;
+                try (ResultSet resultSet = dbConnection.prepareStatement(SELECT_MAX_ACCOUNT_ID).executeQuery()) {
+                    resultSet.next();
+                    maxId = resultSet.getInt(1);
+                }
+                try (Statement statement = dbConnection.createStatement()) {
+                    statement.execute(RESTART_ACCOUNT_ID + (maxId + 1));
+                }
+                dbConnection.commit();
+            } catch (SQLException e) {
+                dbConnection.rollback();
+                throw e;
+            } finally {
+                dbConnection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't restore " + accounts.size() + " accounts", e);
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        return compositeResponseBuilder.setMessage("Restored " + accounts.size() + " accounts").createCompositeResponse();
+    }
+
     private void executeForCreate(String sql) {
-        try (Connection dbConnection = dbConnector.getDbConnection(); Statement statement = dbConnection.createStatement()) {
+        try (PooledConnection dbConnection = dbConnector.getDbConnection(); Statement statement = dbConnection.createStatement()) {
             statement.execute(sql);
         } catch (SQLException e) {
-            LOG.error("Error in SQL execution");
-            e.printStackTrace();
+            LOG.error("Error in SQL execution of {}", sql, e);
         }
     }
 
     @Override
     public CompositeResponse drop() {
         CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
-        try (Connection dbConnection = dbConnector.getDbConnection(); Statement statement = dbConnection.createStatement()) {
+        try (PooledConnection dbConnection = dbConnector.getDbConnection(); Statement statement = dbConnection.createStatement()) {
             statement.execute(DROP_ACCOUNT_TABLE);
+            statement.execute(DROP_IDEMPOTENCY_KEY_TABLE);
+            statement.execute(DROP_TRANSFER_TABLE);
         } catch (SQLException e) {
-            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in SQL execution");
-            e.printStackTrace();
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in SQL execution", e);
         }
         return compositeResponseBuilder.createCompositeResponse();
     }
@@ -135,53 +451,502 @@ public class DAOServiceImpl implements DAOService {
 
     @Override
     public CompositeResponse performExchange(ExchangeRequest exchangeRequest) {
+        if (atomicExchange) {
+            return performAtomicExchange(exchangeRequest);
+        }
         CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
-        try {
-            CompositeResponse fromCR = getAccount(exchangeRequest.getFrom().getId());
-            CompositeResponse toCR = getAccount(exchangeRequest.getTo().getId());
-            if (fromCR.getError() || toCR.getError()) {
-                prepareUnsuccessfulResponse(compositeResponseBuilder, fromCR.getError() ? fromCR.getMessage() : toCR.getMessage());
+        int fromId = exchangeRequest.getFrom().getId();
+        int toId = exchangeRequest.getTo().getId();
+        long amount = exchangeRequest.getAmount().getMinorUnits();
+        if (amount <= 0) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Amount should be positive. Requested amount - " + exchangeRequest.getAmount());
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        // reads and compare-and-set share one connection, so a transfer is a single checkout
+        try (PooledConnection dbConnection = dbConnector.getDbConnection()) {
+            if (isIdempotencyKeyUsed(dbConnection, exchangeRequest)) {
+                return replayed(compositeResponseBuilder);
+            }
+            long start = System.nanoTime();
+            Account from = selectAccount(dbConnection, fromId);
+            Account to = selectAccount(dbConnection, toId);
+            // update is timed from the end of reads
+            long read = Metrics.TRANSFER_READ.recordSince(start);
+            if (from == null || to == null) {
+                Metrics.TRANSFER_NOT_FOUND.increment();
+                prepareUnsuccessfulResponse(compositeResponseBuilder, "No accounts found for id " + (from == null ? fromId : toId));
                 return compositeResponseBuilder.createCompositeResponse();
             }
 
-            Account from = fromCR.getAccount();
-            Account to = toCR.getAccount();
-            BigDecimal amount = exchangeRequest.getAmount();
+            long fromBalance = from.getBalance().getMinorUnits();
+            long toBalance = to.getBalance().getMinorUnits();
+            long credit = fxRateTable.current().convert(amount, from.getCurrency(), to.getCurrency());
+            String conversionFailure = ExchangeBatch.conversionFailure(credit, exchangeRequest.getAmount(), from.getCurrency(), to.getCurrency());
+            if (conversionFailure != null) {
+                prepareUnsuccessfulResponse(compositeResponseBuilder, conversionFailure);
+                return compositeResponseBuilder.createCompositeResponse();
+            }
 
-            if (amount.compareTo(from.getBalance()) < 0) {
-                Connection dbConnection = dbConnector.getDbConnection();
-                LOG.debug("Transfer {} amount from {} to {}", amount, from.getName(), to.getName());
+            // the whole balance can be sent, as the guarded debit of atomic mode and batches allow
+            if (amount <= fromBalance) {
+                dbConnection.setAutoCommit(false);
+                if (!claimIdempotencyKey(dbConnection, exchangeRequest)) {
+                    dbConnection.rollback();
+                    dbConnection.setAutoCommit(true);
+                    return replayed(compositeResponseBuilder);
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Transfer {} amount from {} to {}", exchangeRequest.getAmount(), from.getName(), to.getName());
+                }
                 PreparedStatement preparedStatement = dbConnection.prepareStatement(EXCHANGE_SQL);
                 preparedStatement.setInt(1, from.getId());
-                preparedStatement.setBigDecimal(2, from.getBalance().subtract(amount));
+                preparedStatement.setLong(2, fromBalance - amount);
                 preparedStatement.setInt(3, to.getId());
-                preparedStatement.setBigDecimal(4, to.getBalance().add(amount));
+                preparedStatement.setLong(4, toBalance + credit);
                 preparedStatement.setInt(5, from.getId());
-                preparedStatement.setBigDecimal(6, from.getBalance());
+                preparedStatement.setLong(6, fromBalance);
                 preparedStatement.setInt(7, to.getId());
-                preparedStatement.setBigDecimal(8, to.getBalance());
+                preparedStatement.setLong(8, toBalance);
                 int i = preparedStatement.executeUpdate();
-                dbConnection.commit();
-                dbConnection.close();
-                if (i == 0) {
+                // both balances have to match, otherwise only one side of transfer would be applied
+                boolean updated = i == (from.getId() == to.getId() ? 1 : 2);
+                if (updated) {
+                    insertTransfer(dbConnection, fromId, toId, amount);
+                    dbConnection.commit();
+                } else {
+                    dbConnection.rollback();
+                }
+                dbConnection.setAutoCommit(true);
+                Metrics.TRANSFER_UPDATE.recordSince(read);
+                if (!updated) {
+                    Metrics.TRANSFER_UPDATE_CONFLICT.increment();
                     prepareUnsuccessfulResponse(compositeResponseBuilder, "Update unsuccessful - please try again");
                     return compositeResponseBuilder.createCompositeResponse();
                 }
             } else {
+                Metrics.TRANSFER_INSUFFICIENT_FUNDS.increment();
                 prepareUnsuccessfulResponse(compositeResponseBuilder, "Not enough money to perform operation for "
-                        + from.getName() + ". Requested amount - " + amount);
+                        + from.getName() + ". Requested amount - " + exchangeRequest.getAmount());
+                return compositeResponseBuilder.createCompositeResponse();
+            }
+            Metrics.TRANSFER_SUCCEEDED.increment();
+            // balances the compare-and-set has just written, CASE gives a transfer to itself only the first branch
+            Account fromAfter = new Account(fromId, from.getName(), Money.ofMinor(fromBalance - amount), from.getCurrency());
+            Account toAfter = fromId == toId ? fromAfter : new Account(toId, to.getName(), Money.ofMinor(toBalance + credit), to.getCurrency());
+            compositeResponseBuilder.setMessage("Exchanged successfully").setAccounts(Arrays.asList(fromAfter, toAfter))
+                    .setCredited(Money.ofMinor(credit));
+        } catch (SQLException e) {
+            Metrics.TRANSFER_FAILED.increment();
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't perform exchange for request: " + exchangeRequest.toString(), e);
+        }
+        return compositeResponseBuilder.createCompositeResponse();
+    }
+
+    /*
+        debit and credit are done in one transaction on one connection,
+        rows are updated in ascending id order so concurrent transfers wait for each other's row locks
+        instead of failing or dead locking, the guard on balance makes debit and check atomic;
+        updated rows are read back before commit, while they are still locked by the transfer
+     */
+    private CompositeResponse performAtomicExchange(ExchangeRequest exchangeRequest) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        int fromId = exchangeRequest.getFrom().getId();
+        int toId = exchangeRequest.getTo().getId();
+        long amount = exchangeRequest.getAmount().getMinorUnits();
+        if (amount <= 0) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Amount should be positive. Requested amount - " + exchangeRequest.getAmount());
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        try (PooledConnection dbConnection = dbConnector.getDbConnection()) {
+            if (isIdempotencyKeyUsed(dbConnection, exchangeRequest)) {
+                return replayed(compositeResponseBuilder);
+            }
+            String[] currencies = currenciesOf(dbConnection, fromId, toId);
+            String fromCurrency = currencies[0];
+            String toCurrency = currencies[1];
+            if (fromCurrency == null || toCurrency == null) {
+                Metrics.TRANSFER_NOT_FOUND.increment();
+                prepareUnsuccessfulResponse(compositeResponseBuilder, "No accounts found for id " + (fromCurrency == null ? fromId : toId));
+                return compositeResponseBuilder.createCompositeResponse();
+            }
+            long credit = fxRateTable.current().convert(amount, fromCurrency, toCurrency);
+            String conversionFailure = ExchangeBatch.conversionFailure(credit, exchangeRequest.getAmount(), fromCurrency, toCurrency);
+            if (conversionFailure != null) {
+                prepareUnsuccessfulResponse(compositeResponseBuilder, conversionFailure);
+                return compositeResponseBuilder.createCompositeResponse();
+            }
+            boolean debited;
+            boolean credited;
+            List<Account> exchanged = null;
+            long start = System.nanoTime();
+            dbConnection.setAutoCommit(false);
+            try {
+                if (!claimIdempotencyKey(dbConnection, exchangeRequest)) {
+                    dbConnection.rollback();
+                    return replayed(compositeResponseBuilder);
+                }
+                if (fromId < toId) {
+                    debited = debit(dbConnection, fromId, amount);
+                    credited = debited && credit(dbConnection, toId, credit);
+                } else {
+                    credited = credit(dbConnection, toId, credit);
+                    debited = credited && debit(dbConnection, fromId, amount);
+                }
+                if (debited && credited) {
+                    exchanged = selectExchangedAccounts(dbConnection, fromId, toId);
+                    insertTransfer(dbConnection, fromId, toId, amount);
+                    dbConnection.commit();
+                } else {
+                    dbConnection.rollback();
+                }
+            } catch (SQLException e) {
+                dbConnection.rollback();
+                throw e;
+            } finally {
+                dbConnection.setAutoCommit(true);
+            }
+            Metrics.TRANSFER_UPDATE.recordSince(start);
+            // the second update isn't tried when the first one fails, so only an attempted credit can tell receiver is missing
+            if (!credited && (debited || fromId >= toId)) {
+                Metrics.TRANSFER_NOT_FOUND.increment();
+                prepareUnsuccessfulResponse(compositeResponseBuilder, "No accounts found for id " + toId);
                 return compositeResponseBuilder.createCompositeResponse();
             }
-            compositeResponseBuilder.setMessage("Exchanged successfully");
+            if (!debited) {
+                // failure path only - find out whether account is missing or balance is too low
+                Account from = selectAccount(dbConnection, fromId);
+                (from == null ? Metrics.TRANSFER_NOT_FOUND : Metrics.TRANSFER_INSUFFICIENT_FUNDS).increment();
+                prepareUnsuccessfulResponse(compositeResponseBuilder, from == null ? "No accounts found for id " + fromId
+                        : "Not enough money to perform operation for " + from.getName()
+                        + ". Requested amount - " + exchangeRequest.getAmount());
+                return compositeResponseBuilder.createCompositeResponse();
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Transfer {} amount from {} to {}", exchangeRequest.getAmount(), fromId, toId);
+            }
+            Metrics.TRANSFER_SUCCEEDED.increment();
+            compositeResponseBuilder.setMessage("Exchanged successfully").setAccounts(exchanged).setCredited(Money.ofMinor(credit));
         } catch (SQLException e) {
-            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't perform exchange for request: " + exchangeRequest.toString());
-            e.printStackTrace();
+            Metrics.TRANSFER_FAILED.increment();
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't perform exchange for request: " + exchangeRequest.toString(), e);
         }
         return compositeResponseBuilder.createCompositeResponse();
     }
 
+    /*
+        H2 has neither UPDATE ... RETURNING nor FINAL TABLE and gives no generated keys for updates,
+        one read of both rows in the transaction that updated them is the closest
+     */
+    private List<Account> selectExchangedAccounts(PooledConnection dbConnection, int fromId, int toId) throws SQLException {
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(SELECT_EXCHANGED_ACCOUNTS);
+        preparedStatement.setInt(1, fromId);
+        preparedStatement.setInt(2, toId);
+        Account from = null;
+        Account to = null;
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                Account account = readAccount(resultSet);
+                if (account.getId() == fromId) {
+                    from = account;
+                }
+                if (account.getId() == toId) {
+                    to = account;
+                }
+            }
+        }
+        return Arrays.asList(from, to);
+    }
+
+    /*
+        a side is the guarded debit or the credit of atomic exchange, the changed row is read back before commit;
+        it's kept in history of this node, so a statement of the account has transfers with other nodes too;
+        receiving side converts amount from currency of the sender in the request, without one it's already in receiver's
+     */
+    @Override
+    public CompositeResponse performExchangeSide(ExchangeRequest exchangeRequest, boolean sending) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        int id = (sending ? exchangeRequest.getFrom() : exchangeRequest.getTo()).getId();
+        long amount = exchangeRequest.getAmount().getMinorUnits();
+        if (amount <= 0) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Amount should be positive. Requested amount - " + exchangeRequest.getAmount());
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        Account account = null;
+        long credit = amount;
+        try (PooledConnection dbConnection = dbConnector.getDbConnection()) {
+            String fromCurrency = exchangeRequest.getFrom().getCurrency();
+            if (!sending && fromCurrency != null) {
+                String toCurrency = currencyOf(dbConnection, id);
+                if (toCurrency == null) {
+                    prepareUnsuccessfulResponse(compositeResponseBuilder, "No accounts found for id " + id);
+                    return compositeResponseBuilder.createCompositeResponse();
+                }
+                credit = fxRateTable.current().convert(amount, fromCurrency, toCurrency);
+                String conversionFailure = ExchangeBatch.conversionFailure(credit, exchangeRequest.getAmount(), fromCurrency, toCurrency);
+                if (conversionFailure != null) {
+                    prepareUnsuccessfulResponse(compositeResponseBuilder, conversionFailure);
+                    return compositeResponseBuilder.createCompositeResponse();
+                }
+            }
+            dbConnection.setAutoCommit(false);
+            try {
+                if (sending ? debit(dbConnection, id, amount) : credit(dbConnection, id, credit)) {
+                    account = selectAccount(dbConnection, id);
+                    insertTransfer(dbConnection, exchangeRequest.getFrom().getId(), exchangeRequest.getTo().getId(), amount);
+                    dbConnection.commit();
+                } else {
+                    dbConnection.rollback();
+                }
+            } catch (SQLException e) {
+                dbConnection.rollback();
+                throw e;
+            } finally {
+                dbConnection.setAutoCommit(true);
+            }
+            if (account == null) {
+                // failure path only - find out whether account is missing or balance is too low
+                Account existing = sending ? selectAccount(dbConnection, id) : null;
+                prepareUnsuccessfulResponse(compositeResponseBuilder, existing == null ? "No accounts found for id " + id
+                        : "Not enough money to perform operation for " + existing.getName()
+                        + ". Requested amount - " + exchangeRequest.getAmount());
+                return compositeResponseBuilder.createCompositeResponse();
+            }
+        } catch (SQLException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't perform exchange side for request: " + exchangeRequest, e);
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        return compositeResponseBuilder.setMessage(sending ? "Sent successfully" : "Received successfully")
+                .setAccount(account).setCredited(sending ? null : Money.ofMinor(credit)).createCompositeResponse();
+    }
+
+    private boolean isIdempotencyKeyUsed(PooledConnection dbConnection, ExchangeRequest exchangeRequest) throws SQLException {
+        if (!persistIdempotencyKeys || exchangeRequest.getIdempotencyKey() == null) {
+            return false;
+        }
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(SELECT_IDEMPOTENCY_KEY);
+        preparedStatement.setString(1, exchangeRequest.getIdempotencyKey());
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            return resultSet.next();
+        }
+    }
+
+    /*
+        key is inserted in the transaction of its exchange, so it's stored exactly when the exchange is committed,
+        a concurrent exchange with the same key fails on the primary key; expired keys are purged from time to time
+     */
+    private boolean claimIdempotencyKey(PooledConnection dbConnection, ExchangeRequest exchangeRequest) throws SQLException {
+        if (!persistIdempotencyKeys || exchangeRequest.getIdempotencyKey() == null) {
+            return true;
+        }
+        if (idempotencyKeysClaimed.incrementAndGet() % IDEMPOTENCY_KEYS_PURGE_INTERVAL == 0) {
+            PreparedStatement purge = dbConnection.prepareStatement(DELETE_EXPIRED_IDEMPOTENCY_KEYS);
+            purge.setLong(1, idempotencyTtlSeconds);
+            purge.executeUpdate();
+        }
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(INSERT_IDEMPOTENCY_KEY);
+        preparedStatement.setString(1, exchangeRequest.getIdempotencyKey());
+        try {
+            preparedStatement.executeUpdate();
+            return true;
+        } catch (SQLIntegrityConstraintViolationException e) {
+            return false;
+        }
+    }
+
+    /*
+        only committed exchanges keep their keys, so the first one with the key succeeded
+     */
+    private static CompositeResponse replayed(CompositeResponseBuilder compositeResponseBuilder) {
+        Metrics.IDEMPOTENT_REPLAYS.increment();
+        return compositeResponseBuilder.setMessage("Exchanged successfully").setReplayed(true).createCompositeResponse();
+    }
+
+    private boolean debit(PooledConnection dbConnection, int id, long amount) throws SQLException {
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(DEBIT_SQL);
+        preparedStatement.setLong(1, amount);
+        preparedStatement.setInt(2, id);
+        preparedStatement.setLong(3, amount);
+        return preparedStatement.executeUpdate() == 1;
+    }
+
+    private boolean credit(PooledConnection dbConnection, int id, long amount) throws SQLException {
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(CREDIT_SQL);
+        preparedStatement.setLong(1, amount);
+        preparedStatement.setInt(2, id);
+        return preparedStatement.executeUpdate() == 1;
+    }
+
+    /*
+        all accounts of batch are locked up front in ascending id order with SELECT ... FOR UPDATE,
+        exchanges are staged in memory and only the final balance of every touched account
+        is written back in one JDBC batch, so the whole batch is a single transaction
+     */
+    @Override
+    public CompositeResponse performExchanges(List<ExchangeRequest> exchangeRequests, boolean atomic) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        ExchangeBatch batch = new ExchangeBatch(exchangeRequests, fxRateTable.current());
+        boolean applied;
+        try (PooledConnection dbConnection = dbConnector.getDbConnection()) {
+            dbConnection.setAutoCommit(false);
+            try {
+                Map<Integer, Account> accounts = lockAccounts(dbConnection, batch.accountIds());
+                batch.stage(accounts::get);
+                applied = !batch.isRejected(atomic);
+                if (applied) {
+                    updateBalances(dbConnection, batch.stagedBalances());
+                    insertTransfers(dbConnection, batch.succeededExchanges());
+                    dbConnection.commit();
+                } else {
+                    dbConnection.rollback();
+                }
+            } catch (SQLException e) {
+                dbConnection.rollback();
+                throw e;
+            } finally {
+                dbConnection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't perform batch of " + exchangeRequests.size() + " exchanges", e);
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        return batch.toResponse(applied);
+    }
+
+    private Map<Integer, Account> lockAccounts(PooledConnection dbConnection, Set<Integer> ids) throws SQLException {
+        Map<Integer, Account> accounts = new HashMap<>();
+        Iterator<Integer> iterator = ids.iterator();
+        while (iterator.hasNext()) {
+            List<Integer> chunk = new ArrayList<>(LOCK_CHUNK_SIZE);
+            while (iterator.hasNext() && chunk.size() < LOCK_CHUNK_SIZE) {
+                chunk.add(iterator.next());
+            }
+            String sql = "SELECT ID, NAME, BALANCE, CURRENCY FROM ACCOUNTS WHERE ID IN ("
+                    + String.join(",", Collections.nCopies(chunk.size(), "?")) + ") ORDER BY ID FOR UPDATE";
+            PreparedStatement preparedStatement = dbConnection.prepareStatement(sql);
+            for (int i = 0; i < chunk.size(); i++) {
+                preparedStatement.setInt(i + 1, chunk.get(i));
+            }
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    Account account = readAccount(resultSet);
+                    accounts.put(account.getId(), account);
+                }
+            }
+        }
+        return accounts;
+    }
+
+    private void updateBalances(PooledConnection dbConnection, Map<Integer, Long> balances) throws SQLException {
+        if (balances.isEmpty()) {
+            return;
+        }
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(UPDATE_BALANCE_SQL);
+        for (Map.Entry<Integer, Long> balance : balances.entrySet()) {
+            preparedStatement.setLong(1, balance.getValue());
+            preparedStatement.setInt(2, balance.getKey());
+            preparedStatement.addBatch();
+        }
+        preparedStatement.executeBatch();
+    }
+
+    /*
+        inserted after rows of both accounts are updated and locked until commit,
+        so transfers of an account get their seq in the order they are committed
+        and a statement page never gets a transfer committed later with a smaller seq
+     */
+    private void insertTransfer(PooledConnection dbConnection, int fromId, int toId, long amount) throws SQLException {
+        if (!keepHistory) {
+            return;
+        }
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(INSERT_TRANSFER);
+        preparedStatement.setInt(1, fromId);
+        preparedStatement.setInt(2, toId);
+        preparedStatement.setLong(3, amount);
+        preparedStatement.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+        preparedStatement.executeUpdate();
+    }
+
+    private void insertTransfers(PooledConnection dbConnection, List<ExchangeRequest> exchangeRequests) throws SQLException {
+        if (!keepHistory || exchangeRequests.isEmpty()) {
+            return;
+        }
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(INSERT_TRANSFER);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (ExchangeRequest exchangeRequest : exchangeRequests) {
+            preparedStatement.setInt(1, exchangeRequest.getFrom().getId());
+            preparedStatement.setInt(2, exchangeRequest.getTo().getId());
+            preparedStatement.setLong(3, exchangeRequest.getAmount().getMinorUnits());
+            preparedStatement.setTimestamp(4, now);
+            preparedStatement.addBatch();
+        }
+        preparedStatement.executeBatch();
+    }
+
+    /*
+        sent and received transfers are read with their own index each, limit of both is the page size,
+        so merging them by seq gives the page without reading further than it;
+        ordering by the account column too lets H2 take rows in index order instead of sorting all of them
+     */
+    @Override
+    public CompositeResponse getTransfers(int accountId, long afterSeq, int limit) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        if (!keepHistory) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Transfer history is disabled");
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        List<Transfer> transfers;
+        try (PooledConnection dbConnection = dbConnector.getDbConnection()) {
+            List<Transfer> sent = selectTransfers(dbConnection, SELECT_TRANSFERS_FROM_PAGE, accountId, afterSeq, limit);
+            List<Transfer> received = selectTransfers(dbConnection, SELECT_TRANSFERS_TO_PAGE, accountId, afterSeq, limit);
+            transfers = new ArrayList<>(Math.min(limit, sent.size() + received.size()));
+            int i = 0;
+            int j = 0;
+            while (transfers.size() < limit && (i < sent.size() || j < received.size())) {
+                if (j == received.size() || i < sent.size() && sent.get(i).getSeq() < received.get(j).getSeq()) {
+                    transfers.add(sent.get(i++));
+                } else {
+                    Transfer transfer = received.get(j++);
+                    // transfer to itself is found by both queries
+                    if (i < sent.size() && sent.get(i).getSeq() == transfer.getSeq()) {
+                        i++;
+                    }
+                    transfers.add(transfer);
+                }
+            }
+        } catch (SQLException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in SQL execution", e);
+            return compositeResponseBuilder.setTransfers(new ArrayList<>()).createCompositeResponse();
+        }
+        return compositeResponseBuilder.setTransfers(transfers).createCompositeResponse();
+    }
+
+    private static List<Transfer> selectTransfers(PooledConnection dbConnection, String sql, int accountId,
+                                                  long afterSeq, int limit) throws SQLException {
+        List<Transfer> transfers = new ArrayList<>();
+        PreparedStatement preparedStatement = dbConnection.prepareStatement(sql);
+        preparedStatement.setInt(1, accountId);
+        preparedStatement.setLong(2, afterSeq);
+        preparedStatement.setInt(3, limit);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                transfers.add(new Transfer(
+                        resultSet.getLong(1),
+                        resultSet.getInt(2),
+                        resultSet.getInt(3),
+                        Money.ofMinor(resultSet.getLong(4)),
+                        resultSet.getTimestamp(5).getTime()));
+            }
+        }
+        return transfers;
+    }
+
     private void prepareUnsuccessfulResponse(CompositeResponseBuilder compositeResponseBuilder, String message) {
         compositeResponseBuilder.setError(true).setMessage(message);
         LOG.warn(message);
     }
+
+    private void prepareUnsuccessfulResponse(CompositeResponseBuilder compositeResponseBuilder, String message, SQLException e) {
+        compositeResponseBuilder.setError(true).setMessage(message);
+        LOG.error(message, e);
+    }
 }
@@ -0,0 +1,179 @@
+package app.service;
+
+import app.fx.FxRates;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.IntFunction;
+
+/**
+ * Applies a batch of exchanges to staged balances in request order, checking every exchange
+ * against the balances left by the previous ones. Storage only has to lock the accounts,
+ * provide their committed state and write back the staged balances.
+ * The whole batch converts with the rates it was created with.
+ */
+class ExchangeBatch {
+    private static Logger LOG = LoggerFactory.getLogger(ExchangeBatch.class);
+    private final List<ExchangeRequest> exchangeRequests;
+    private final FxRates rates;
+    private final String[] failures;
+    // amounts given to receivers, in their currencies
+    private final long[] credited;
+    // accounts as a successful exchange left them, balances of later exchanges in the batch aren't in them yet
+    private final Account[] fromAfter;
+    private final Account[] toAfter;
+    // ascending id order, so balances are written back in the same order rows are locked
+    private final Map<Integer, Long> balances = new TreeMap<>();
+    private int failed;
+
+    ExchangeBatch(List<ExchangeRequest> exchangeRequests, FxRates rates) {
+        this.exchangeRequests = exchangeRequests;
+        this.rates = rates;
+        this.failures = new String[exchangeRequests.size()];
+        this.credited = new long[exchangeRequests.size()];
+        this.fromAfter = new Account[exchangeRequests.size()];
+        this.toAfter = new Account[exchangeRequests.size()];
+    }
+
+    Set<Integer> accountIds() {
+        Set<Integer> ids = new TreeSet<>();
+        for (ExchangeRequest exchangeRequest : exchangeRequests) {
+            if (isComplete(exchangeRequest)) {
+                ids.add(exchangeRequest.getFrom().getId());
+                ids.add(exchangeRequest.getTo().getId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return reason why converted amount can't be credited, null if it can
+     */
+    static String conversionFailure(long credit, Money amount, String from, String to) {
+        if (credit == FxRates.NO_RATE) {
+            return "No exchange rate from " + from + " to " + to;
+        }
+        if (credit == FxRates.TOO_LARGE) {
+            return "Amount is too large to convert from " + from + " to " + to + ". Requested amount - " + amount;
+        }
+        if (credit == 0) {
+            return "Amount is too small to convert from " + from + " to " + to + ". Requested amount - " + amount;
+        }
+        return null;
+    }
+
+    /**
+     * @param accounts committed state of accounts by id with their currencies, null if account doesn't exist
+     */
+    void stage(IntFunction<Account> accounts) {
+        for (int i = 0; i < failures.length; i++) {
+            failures[i] = stage(i, exchangeRequests.get(i), accounts);
+            if (failures[i] != null) {
+                failed++;
+                LOG.warn(failures[i]);
+            }
+        }
+    }
+
+    private String stage(int index, ExchangeRequest exchangeRequest, IntFunction<Account> accounts) {
+        if (!isComplete(exchangeRequest)) {
+            return "Invalid exchange request: " + exchangeRequest;
+        }
+        long amount = exchangeRequest.getAmount().getMinorUnits();
+        if (amount <= 0) {
+            return "Amount should be positive. Requested amount - " + exchangeRequest.getAmount();
+        }
+        int fromId = exchangeRequest.getFrom().getId();
+        int toId = exchangeRequest.getTo().getId();
+        Account from = accounts.apply(fromId);
+        if (from == null) {
+            return "No accounts found for id " + fromId;
+        }
+        Account to = accounts.apply(toId);
+        if (to == null) {
+            return "No accounts found for id " + toId;
+        }
+        long credit = rates.convert(amount, from.getCurrency(), to.getCurrency());
+        String conversionFailure = conversionFailure(credit, exchangeRequest.getAmount(), from.getCurrency(), to.getCurrency());
+        if (conversionFailure != null) {
+            return conversionFailure;
+        }
+        long fromBalance = balances.getOrDefault(fromId, from.getBalance().getMinorUnits());
+        if (fromBalance < amount) {
+            return "Not enough money to perform operation for " + from.getName() + ". Requested amount - " + exchangeRequest.getAmount();
+        }
+        balances.put(fromId, fromBalance - amount);
+        balances.put(toId, balances.getOrDefault(toId, to.getBalance().getMinorUnits()) + credit);
+        credited[index] = credit;
+        fromAfter[index] = new Account(fromId, from.getName(), Money.ofMinor(balances.get(fromId)), from.getCurrency());
+        toAfter[index] = new Account(toId, to.getName(), Money.ofMinor(balances.get(toId)), to.getCurrency());
+        return null;
+    }
+
+    boolean isRejected(boolean atomic) {
+        return atomic && failed > 0;
+    }
+
+    /**
+     * @return new balances of accounts touched by successful exchanges, in ascending id order
+     */
+    Map<Integer, Long> stagedBalances() {
+        return balances;
+    }
+
+    /**
+     * @return exchanges that didn't fail, in request order
+     */
+    List<ExchangeRequest> succeededExchanges() {
+        List<ExchangeRequest> succeeded = new ArrayList<>(failures.length - failed);
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] == null) {
+                succeeded.add(exchangeRequests.get(i));
+            }
+        }
+        return succeeded;
+    }
+
+    CompositeResponse toResponse(boolean applied) {
+        List<CompositeResponse> results = new ArrayList<>(failures.length);
+        for (int i = 0; i < failures.length; i++) {
+            String failure = failures[i];
+            CompositeResponseBuilder result = new CompositeResponseBuilder();
+            if (failure != null) {
+                result.setError(true).setMessage(failure);
+            } else if (applied) {
+                result.setError(false).setMessage("Exchanged successfully").setAccounts(Arrays.asList(fromAfter[i], toAfter[i]))
+                        .setCredited(Money.ofMinor(credited[i]));
+            } else {
+                result.setError(true).setMessage("Batch was rolled back");
+            }
+            results.add(result.createCompositeResponse());
+        }
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setResults(results);
+        if (applied) {
+            compositeResponseBuilder.setError(false)
+                    .setMessage("Exchanged " + (failures.length - failed) + " of " + failures.length);
+        } else {
+            compositeResponseBuilder.setError(true)
+                    .setMessage("Batch was rolled back, " + failed + " of " + failures.length + " exchanges failed");
+        }
+        return compositeResponseBuilder.createCompositeResponse();
+    }
+
+    private static boolean isComplete(ExchangeRequest exchangeRequest) {
+        return exchangeRequest != null && exchangeRequest.getFrom() != null
+                && exchangeRequest.getTo() != null && exchangeRequest.getAmount() != null;
+    }
+}
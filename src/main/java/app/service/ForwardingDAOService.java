@@ -0,0 +1,86 @@
+package app.service;
+
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Base for DAOService decorators, passes every call to the wrapped service.
+ */
+public abstract class ForwardingDAOService implements DAOService {
+    protected final DAOService delegate;
+
+    protected ForwardingDAOService(DAOService delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public CompositeResponse getAccount(int id) {
+        return delegate.getAccount(id);
+    }
+
+    @Override
+    public CompositeResponse getAllAccounts() {
+        return delegate.getAllAccounts();
+    }
+
+    @Override
+    public CompositeResponse getAccounts(int afterId, int limit) {
+        return delegate.getAccounts(afterId, limit);
+    }
+
+    @Override
+    public CompositeResponse streamAllAccounts(Consumer<Account> consumer) {
+        return delegate.streamAllAccounts(consumer);
+    }
+
+    @Override
+    public CompositeResponse insertAccount(Account account) {
+        return delegate.insertAccount(account);
+    }
+
+    @Override
+    public CompositeResponse insertAccounts(Iterator<Account> accounts, int batchSize, Consumer<Account> created) {
+        return delegate.insertAccounts(accounts, batchSize, created);
+    }
+
+    @Override
+    public CompositeResponse insertAccountsWithIds(List<Account> accounts) {
+        return delegate.insertAccountsWithIds(accounts);
+    }
+
+    @Override
+    public CompositeResponse restoreAccounts(Collection<Account> accounts) {
+        return delegate.restoreAccounts(accounts);
+    }
+
+    @Override
+    public CompositeResponse drop() {
+        return delegate.drop();
+    }
+
+    @Override
+    public CompositeResponse performExchange(ExchangeRequest exchangeRequest) {
+        return delegate.performExchange(exchangeRequest);
+    }
+
+    @Override
+    public CompositeResponse performExchanges(List<ExchangeRequest> exchangeRequests, boolean atomic) {
+        return delegate.performExchanges(exchangeRequests, atomic);
+    }
+
+    @Override
+    public CompositeResponse performExchangeSide(ExchangeRequest exchangeRequest, boolean sending) {
+        return delegate.performExchangeSide(exchangeRequest, sending);
+    }
+
+    @Override
+    public CompositeResponse getTransfers(int accountId, long afterSeq, int limit) {
+        return delegate.getTransfers(accountId, afterSeq, limit);
+    }
+}
@@ -0,0 +1,173 @@
+package app.service;
+
+import app.metrics.Counter;
+import app.metrics.Metrics;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Combines transfers of hot accounts, like fee collectors or settlement accounts, into batches,
+ * so a hot account takes one balance update per batch instead of one contended transaction per transfer.
+ * <p>
+ * An account gets hot when more than hotThreshold transfers touching it are in flight and stays hot for a while
+ * after that, so its transfers don't flip between batches and the regular path and wait for each other's row locks.
+ * Transfers of hot accounts are queued; the thread that gets the combiner lock takes everything queued,
+ * up to maxBatchSize, applies it with one non-atomic {@link DAOService#performExchanges(List, boolean)}
+ * and wakes up the owners of the transfers, while transfers coming meanwhile queue up for the next batch.
+ * Batch checks every transfer against the balances left by the previous ones, so a balance never goes negative,
+ * and every transfer gets its own result. All hot accounts share one queue, separate batches of two hot accounts
+ * would lock the same rows whenever the accounts send money to each other.
+ * Transfers of other accounts and ones with an idempotency key go the regular path.
+ * <p>
+ * Accounts are tracked in a fixed number of slots by hash of id, an account sharing a slot with a hot one
+ * gets its transfers batched too.
+ */
+public class HotAccountCoalescer {
+    private static final int SLOTS = 4096;
+    private static final long COOL_DOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final Counter COALESCED = Metrics.REGISTRY.counter("coalesced_transfers_total", "",
+            "Transfers of hot accounts applied in batches");
+    private static final Counter BATCHES = Metrics.REGISTRY.counter("coalesced_batches_total", "",
+            "Batches of hot account transfers, coalesced_transfers_total / coalesced_batches_total is average batch size");
+
+    private final DAOService daoService;
+    private final AccountLockManager lockManager;
+    private final int hotThreshold;
+    private final int maxBatchSize;
+    private final AtomicIntegerArray inFlight = new AtomicIntegerArray(SLOTS);
+    // time until slot stays hot, 0 if it never was
+    private final AtomicLongArray hotUntil = new AtomicLongArray(SLOTS);
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock combiner = new ReentrantLock();
+
+    /**
+     * @param lockManager locks of the regular path, a batch holds the locks of all its accounts
+     */
+    public HotAccountCoalescer(DAOService daoService, AccountLockManager lockManager, int hotThreshold, int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch size should be positive, was " + maxBatchSize);
+        }
+        this.daoService = daoService;
+        this.lockManager = lockManager;
+        this.hotThreshold = hotThreshold;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @param regularPath performs transfer that isn't coalesced
+     */
+    public CompositeResponse performExchange(ExchangeRequest exchangeRequest,
+                                             Function<ExchangeRequest, CompositeResponse> regularPath) {
+        int fromSlot = slotOf(exchangeRequest.getFrom().getId());
+        int toSlot = slotOf(exchangeRequest.getTo().getId());
+        int fromLoad = inFlight.incrementAndGet(fromSlot);
+        int toLoad = inFlight.incrementAndGet(toSlot);
+        try {
+            if (exchangeRequest.getIdempotencyKey() == null
+                    && (heat(fromSlot, fromLoad) | heat(toSlot, toLoad))) {
+                return combine(exchangeRequest);
+            }
+            return regularPath.apply(exchangeRequest);
+        } finally {
+            inFlight.decrementAndGet(fromSlot);
+            inFlight.decrementAndGet(toSlot);
+        }
+    }
+
+    /*
+        clock is read only for slots that were hot once
+     */
+    private boolean heat(int slot, int load) {
+        if (load > hotThreshold) {
+            hotUntil.set(slot, System.nanoTime() + COOL_DOWN_NANOS);
+            return true;
+        }
+        long until = hotUntil.get(slot);
+        return until != 0 && System.nanoTime() - until < 0;
+    }
+
+    private CompositeResponse combine(ExchangeRequest exchangeRequest) {
+        Pending pending = new Pending(exchangeRequest);
+        queue.add(pending);
+        while (true) {
+            if (combiner.tryLock()) {
+                try {
+                    if (pending.result == null) {
+                        flush();
+                    }
+                } finally {
+                    combiner.unlock();
+                }
+                // whoever queued while the batch ran and found the lock taken waits for someone to combine
+                Pending waiting = queue.peek();
+                if (waiting != null) {
+                    LockSupport.unpark(waiting.thread);
+                }
+            }
+            CompositeResponse result = pending.result;
+            if (result != null) {
+                return result;
+            }
+            LockSupport.park(this);
+        }
+    }
+
+    private void flush() {
+        List<Pending> batch = new ArrayList<>();
+        List<ExchangeRequest> exchangeRequests = new ArrayList<>();
+        List<Integer> accountIds = new ArrayList<>();
+        Pending next;
+        while (batch.size() < maxBatchSize && (next = queue.poll()) != null) {
+            batch.add(next);
+            exchangeRequests.add(next.exchangeRequest);
+            accountIds.add(next.exchangeRequest.getFrom().getId());
+            accountIds.add(next.exchangeRequest.getTo().getId());
+        }
+        CompositeResponse compositeResponse;
+        // regular transfers of the same accounts neither wait for rows locked by batch nor see balances change under them
+        int[] locked = lockManager.lockAll(accountIds);
+        try {
+            compositeResponse = daoService.performExchanges(exchangeRequests, false);
+        } catch (RuntimeException e) {
+            compositeResponse = new CompositeResponseBuilder().setError(true)
+                    .setMessage("Couldn't perform exchange: " + e.getMessage()).createCompositeResponse();
+        } finally {
+            lockManager.unlockStripes(locked);
+        }
+        List<CompositeResponse> results = compositeResponse.getResults();
+        for (int i = 0; i < batch.size(); i++) {
+            Pending pending = batch.get(i);
+            // whole batch failed, every transfer gets its error
+            pending.result = results == null ? compositeResponse : results.get(i);
+            LockSupport.unpark(pending.thread);
+        }
+        COALESCED.add(batch.size());
+        BATCHES.increment();
+    }
+
+    private static int slotOf(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (SLOTS - 1);
+    }
+
+    private static class Pending {
+        private final ExchangeRequest exchangeRequest;
+        private final Thread thread = Thread.currentThread();
+        private volatile CompositeResponse result;
+
+        Pending(ExchangeRequest exchangeRequest) {
+            this.exchangeRequest = exchangeRequest;
+        }
+    }
+}
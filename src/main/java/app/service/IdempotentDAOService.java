@@ -0,0 +1,169 @@
+package app.service;
+
+import app.metrics.Metrics;
+import app.metrics.MetricsRegistry;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Answers a repeated exchange with the same idempotency key with the response of the first one,
+ * without passing it to the wrapped service, so a client can retry a transfer it got no answer for.
+ * <p>
+ * A key is looked up with a plain read of a concurrent map, a request coming while the first one with its key
+ * is still running waits for its response. Only successful exchanges are remembered, a failed one
+ * changed nothing and its key is free for a retry. Keys are forgotten after ttl, or oldest first
+ * when there are more than maxKeys of them.
+ */
+public class IdempotentDAOService extends ForwardingDAOService {
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // entries in the order they were added, which with one ttl for all of them is also the order they expire in
+    private final ConcurrentLinkedQueue<Entry> expiration = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxKeys;
+    private final long ttlNanos;
+
+    public IdempotentDAOService(DAOService delegate, int maxKeys, long ttlSeconds) {
+        super(delegate);
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("Idempotency keys limit should be positive, was " + maxKeys);
+        }
+        this.maxKeys = maxKeys;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("idempotency_keys", "", "Idempotency keys remembered", this::getSize);
+    }
+
+    @Override
+    public CompositeResponse performExchange(ExchangeRequest exchangeRequest) {
+        String key = exchangeRequest.getIdempotencyKey();
+        if (key == null) {
+            return delegate.performExchange(exchangeRequest);
+        }
+        return performOnce(key, exchangeRequest, delegate::performExchange);
+    }
+
+    /*
+        a side retried by the node that sent it is applied once, sides of one transfer have keys of their own
+     */
+    @Override
+    public CompositeResponse performExchangeSide(ExchangeRequest exchangeRequest, boolean sending) {
+        String key = exchangeRequest.getIdempotencyKey();
+        if (key == null) {
+            return delegate.performExchangeSide(exchangeRequest, sending);
+        }
+        return performOnce((sending ? "sending:" : "receiving:") + key, exchangeRequest,
+                side -> delegate.performExchangeSide(side, sending));
+    }
+
+    private CompositeResponse performOnce(String key, ExchangeRequest exchangeRequest,
+                                          Function<ExchangeRequest, CompositeResponse> action) {
+        Entry entry = new Entry(key, exchangeRequest, System.nanoTime() + ttlNanos);
+        while (true) {
+            Entry existing = entries.get(key);
+            if (existing == null) {
+                existing = entries.putIfAbsent(key, entry);
+            }
+            if (existing == null) {
+                break;
+            }
+            if (existing.isExpired(System.nanoTime())) {
+                entries.remove(key, existing);
+                continue;
+            }
+            if (!existing.isSameExchange(exchangeRequest)) {
+                return new CompositeResponseBuilder().setError(true)
+                        .setMessage("Idempotency key " + exchangeRequest.getIdempotencyKey() + " was used for another exchange")
+                        .createCompositeResponse();
+            }
+            CompositeResponse remembered = existing.response.join();
+            if (remembered != null) {
+                Metrics.IDEMPOTENT_REPLAYS.increment();
+                return remembered;
+            }
+            // first request failed and gave the key up, this one runs on its own
+        }
+        CompositeResponse compositeResponse = null;
+        try {
+            compositeResponse = action.apply(exchangeRequest);
+        } finally {
+            if (compositeResponse == null || compositeResponse.getError()) {
+                entries.remove(key, entry);
+                entry.response.complete(null);
+            } else {
+                entry.response.complete(compositeResponse);
+                expiration.add(entry);
+                size.incrementAndGet();
+                evict();
+            }
+        }
+        return compositeResponse;
+    }
+
+    /*
+        entries are taken off the queue one by one, so size keeps matching it while writers add new ones
+     */
+    @Override
+    public CompositeResponse drop() {
+        CompositeResponse compositeResponse = delegate.drop();
+        while (expiration.poll() != null) {
+            size.decrementAndGet();
+        }
+        entries.clear();
+        return compositeResponse;
+    }
+
+    public int getSize() {
+        return size.get();
+    }
+
+    /*
+        done by writers only, a few entries at a time, so readers never wait for it
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        Entry oldest;
+        while ((oldest = expiration.peek()) != null && (size.get() > maxKeys || oldest.isExpired(now))) {
+            if (expiration.remove(oldest)) {
+                size.decrementAndGet();
+                entries.remove(oldest.key, oldest);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final int fromId;
+        private final int toId;
+        private final long amount;
+        private final long expiresAt;
+        // null when the exchange failed
+        private final CompletableFuture<CompositeResponse> response = new CompletableFuture<>();
+
+        Entry(String key, ExchangeRequest exchangeRequest, long expiresAt) {
+            this.key = key;
+            this.fromId = exchangeRequest.getFrom().getId();
+            this.toId = exchangeRequest.getTo().getId();
+            this.amount = exchangeRequest.getAmount().getMinorUnits();
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt > 0;
+        }
+
+        boolean isSameExchange(ExchangeRequest exchangeRequest) {
+            return fromId == exchangeRequest.getFrom().getId() && toId == exchangeRequest.getTo().getId()
+                    && amount == exchangeRequest.getAmount().getMinorUnits();
+        }
+    }
+}
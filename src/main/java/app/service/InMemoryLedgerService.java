@@ -0,0 +1,729 @@
+package app.service;
+
+import app.fx.FxRateTable;
+import app.fx.FxRates;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Keeps balances in memory, sharded by account id.
+ * Every shard owns its accounts and has a single writer thread, so operations on a shard
+ * are applied one by one in submission order without any locks.
+ * Transfers between shards are done in two steps: the amount is reserved (debited) on the
+ * sender's shard first and then committed (credited) on the receiver's shard; if the
+ * receiver is missing the reservation is returned to the sender.
+ * Batches park the writers of all their shards and are applied by the calling thread in one step.
+ * <p>
+ * Ids are positive and dense, so a shard keeps its accounts in arrays indexed by id / shards count
+ * instead of a map - 10M accounts are a few arrays rather than tens of millions of objects.
+ */
+public class InMemoryLedgerService implements DAOService {
+    private static Logger LOG = LoggerFactory.getLogger(InMemoryLedgerService.class);
+    private final Shard[] shards;
+    private final FxRateTable fxRateTable;
+    private final AtomicInteger idSequence = new AtomicInteger();
+    // only one batch parks shard writers at a time, otherwise two batches could wait for each other
+    private final ReentrantLock batchLock = new ReentrantLock();
+    private static final int STREAM_PAGE_SIZE = 1000;
+
+    public InMemoryLedgerService(int shardsCount) {
+        this(shardsCount, FxRateTable.baseOnly());
+    }
+
+    public InMemoryLedgerService(int shardsCount, FxRateTable fxRateTable) {
+        this.fxRateTable = fxRateTable;
+        if (shardsCount <= 0) {
+            throw new IllegalArgumentException("Shards count should be positive, was " + shardsCount);
+        }
+        shards = new Shard[shardsCount];
+        for (int i = 0; i < shardsCount; i++) {
+            shards[i] = new Shard(i, shardsCount);
+        }
+    }
+
+    @Override
+    public CompositeResponse getAccount(int id) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        Shard shard = shardOf(id);
+        Account account;
+        try {
+            account = shard.execute(() -> shard.toAccount(id));
+        } catch (LedgerException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in ledger execution");
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        if (account == null) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "No accounts found for id " + id);
+        }
+        return compositeResponseBuilder.setAccount(account).createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse getAllAccounts() {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        List<Future<List<Account>>> futures = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            futures.add(shard.submit(shard::toAccounts));
+        }
+        List<Account> accounts = new ArrayList<>();
+        try {
+            for (Future<List<Account>> future : futures) {
+                accounts.addAll(await(future));
+            }
+        } catch (LedgerException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in ledger execution");
+            return compositeResponseBuilder.setAccounts(new ArrayList<>()).createCompositeResponse();
+        }
+        accounts.sort(Comparator.comparingInt(Account::getId));
+        if (accounts.isEmpty()) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "No accounts in system yet.");
+        }
+        return compositeResponseBuilder.setAccounts(accounts).createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse getAccounts(int afterId, int limit) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        List<Future<List<Account>>> futures = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            futures.add(shard.submit(() -> shard.toAccounts(afterId, limit)));
+        }
+        List<Account> accounts = new ArrayList<>();
+        try {
+            for (Future<List<Account>> future : futures) {
+                accounts.addAll(await(future));
+            }
+        } catch (LedgerException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in ledger execution");
+            return compositeResponseBuilder.setAccounts(new ArrayList<>()).createCompositeResponse();
+        }
+        // every shard returns its own first page, merged page is the smallest ids of all of them
+        accounts.sort(Comparator.comparingInt(Account::getId));
+        if (accounts.size() > limit) {
+            accounts = new ArrayList<>(accounts.subList(0, limit));
+        }
+        return compositeResponseBuilder.setAccounts(accounts).createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse streamAllAccounts(Consumer<Account> consumer) {
+        int count = 0;
+        int afterId = Integer.MIN_VALUE;
+        while (true) {
+            CompositeResponse page = getAccounts(afterId, STREAM_PAGE_SIZE);
+            if (page.getError()) {
+                return page;
+            }
+            List<Account> accounts = page.getAccounts();
+            accounts.forEach(consumer);
+            count += accounts.size();
+            if (accounts.size() < STREAM_PAGE_SIZE) {
+                break;
+            }
+            afterId = accounts.get(accounts.size() - 1).getId();
+        }
+        return new CompositeResponseBuilder().setError(false).setMessage("Streamed " + count + " accounts").createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse insertAccount(Account account) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        if (account.getBalance() == null) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't insert" + account);
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        String currency = fxRateTable.current().currencyOfNewAccount(account.getCurrency());
+        if (currency == null) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Unknown currency " + account.getCurrency());
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        int id = idSequence.incrementAndGet();
+        Shard shard = shardOf(id);
+        try {
+            shard.execute(() -> {
+                shard.put(id, account.getName(), account.getBalance().getMinorUnits(), currency);
+                return null;
+            });
+        } catch (LedgerException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in ledger execution");
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        return compositeResponseBuilder.setAccount(new Account(id, account.getName(), account.getBalance(), currency))
+                .setMessage("Account was created").createCompositeResponse();
+    }
+
+    /*
+        ids of a batch are taken at once and its accounts are put while all writers are parked,
+        one hand-over per batch instead of one per account
+     */
+    @Override
+    public CompositeResponse insertAccounts(Iterator<Account> accounts, int batchSize, Consumer<Account> created) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        List<Account> batch = new ArrayList<>(batchSize);
+        int count = 0;
+        while (accounts.hasNext()) {
+            Account account = accounts.next();
+            String currency = account == null ? null : fxRateTable.current().currencyOfNewAccount(account.getCurrency());
+            if (account == null || account.getBalance() == null || currency == null) {
+                prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't insert " + account + ", created " + count + " accounts before it");
+                return compositeResponseBuilder.createCompositeResponse();
+            }
+            batch.add(new Account(0, account.getName(), account.getBalance(), currency));
+            if (batch.size() == batchSize || !accounts.hasNext()) {
+                int firstId = idSequence.getAndAdd(batch.size()) + 1;
+                batchLock.lock();
+                try {
+                    runParked(Arrays.asList(shards), () -> {
+                        for (int i = 0; i < batch.size(); i++) {
+                            Account inserted = batch.get(i);
+                            shardOf(firstId + i).put(firstId + i, inserted.getName(), inserted.getBalance().getMinorUnits(), inserted.getCurrency());
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't insert accounts, created " + count + " of them");
+                    return compositeResponseBuilder.createCompositeResponse();
+                } finally {
+                    batchLock.unlock();
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    Account inserted = batch.get(i);
+                    created.accept(new Account(firstId + i, inserted.getName(), inserted.getBalance(), inserted.getCurrency()));
+                }
+                count += batch.size();
+                batch.clear();
+            }
+        }
+        return compositeResponseBuilder.setMessage("Created " + count + " accounts").createCompositeResponse();
+    }
+
+    /*
+        every shard checks and puts its accounts in one task of its writer, nothing is parked;
+        when a shard finds a taken id the shards which put theirs take them away again
+     */
+    @Override
+    public CompositeResponse insertAccountsWithIds(List<Account> accounts) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        String base = fxRateTable.current().getBase();
+        Map<Shard, List<Account>> byShard = new LinkedHashMap<>();
+        for (Account account : accounts) {
+            if (account.getId() <= 0) {
+                prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't insert " + account + ", ids should be positive");
+                return compositeResponseBuilder.createCompositeResponse();
+            }
+            byShard.computeIfAbsent(shardOf(account.getId()), shard -> new ArrayList<>()).add(account);
+        }
+        Map<Shard, Future<Integer>> futures = new LinkedHashMap<>();
+        byShard.forEach((shard, shardAccounts) -> futures.put(shard, shard.submit(() -> shard.insert(shardAccounts, base))));
+        List<Shard> inserted = new ArrayList<>(futures.size());
+        String failure = null;
+        for (Map.Entry<Shard, Future<Integer>> entry : futures.entrySet()) {
+            try {
+                int taken = awaitUninterruptibly(entry.getValue());
+                if (taken == 0) {
+                    inserted.add(entry.getKey());
+                } else {
+                    failure = "Couldn't insert " + accounts.size() + " accounts, id " + taken + " is taken";
+                }
+            } catch (LedgerException e) {
+                failure = "Error in ledger execution";
+            }
+        }
+        if (failure != null) {
+            for (Shard shard : inserted) {
+                try {
+                    shard.executeUninterruptibly(() -> {
+                        shard.remove(byShard.get(shard));
+                        return null;
+                    });
+                } catch (LedgerException e) {
+                    LOG.error("Couldn't take back accounts of a failed insert from shard {}", shard.index, e);
+                }
+            }
+            prepareUnsuccessfulResponse(compositeResponseBuilder, failure);
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        return compositeResponseBuilder.setMessage("Created " + accounts.size() + " accounts").createCompositeResponse();
+    }
+
+    /*
+        all writers are parked, so accounts are put straight from the given collection
+        without collecting them per shard first
+     */
+    @Override
+    public CompositeResponse restoreAccounts(Collection<Account> accounts) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        List<Account> rejected = new ArrayList<>();
+        String base = fxRateTable.current().getBase();
+        batchLock.lock();
+        try {
+            runParked(Arrays.asList(shards), () -> {
+                int maxId = 0;
+                for (Account account : accounts) {
+                    if (account.getId() <= 0) {
+                        rejected.add(account);
+                        continue;
+                    }
+                    shardOf(account.getId()).put(account.getId(), account.getName(), account.getBalance().getMinorUnits(),
+                            account.getCurrency() == null ? base : account.getCurrency());
+                    maxId = Math.max(maxId, account.getId());
+                }
+                idSequence.accumulateAndGet(maxId, Math::max);
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't restore " + accounts.size() + " accounts");
+            return compositeResponseBuilder.createCompositeResponse();
+        } finally {
+            batchLock.unlock();
+        }
+        if (!rejected.isEmpty()) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't restore " + rejected + ", ids should be positive");
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        return compositeResponseBuilder.setMessage("Restored " + accounts.size() + " accounts").createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse drop() {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        try {
+            for (Shard shard : shards) {
+                shard.execute(() -> {
+                    shard.clear();
+                    return null;
+                });
+            }
+            idSequence.set(0);
+        } catch (LedgerException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Error in ledger execution");
+        }
+        return compositeResponseBuilder.createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse performExchange(ExchangeRequest exchangeRequest) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        int fromId = exchangeRequest.getFrom().getId();
+        int toId = exchangeRequest.getTo().getId();
+        long amount = exchangeRequest.getAmount().getMinorUnits();
+        if (amount <= 0) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Amount should be positive. Requested amount - " + exchangeRequest.getAmount());
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        Shard fromShard = shardOf(fromId);
+        Shard toShard = shardOf(toId);
+        FxRates rates = fxRateTable.current();
+        String failure;
+        // taken by the task that changed the account, so no other transfer is in between
+        Account[] after = new Account[2];
+        long[] credited = new long[1];
+        // set by the tasks once the amount left the sender or reached the receiver
+        boolean[] reserved = new boolean[1];
+        boolean[] committed = new boolean[1];
+        try {
+            if (fromShard == toShard) {
+                failure = fromShard.executeUninterruptibly(() -> {
+                    String result = fromShard.transfer(fromId, toId, amount, rates, credited);
+                    if (result == null) {
+                        after[0] = fromShard.toAccount(fromId);
+                        after[1] = fromShard.toAccount(toId);
+                    }
+                    return result;
+                });
+            } else {
+                // phase one - reserve amount on sender's shard
+                failure = fromShard.executeUninterruptibly(() -> {
+                    String result = fromShard.reserve(fromId, amount);
+                    reserved[0] = result == null;
+                    after[0] = fromShard.toAccount(fromId);
+                    return result;
+                });
+                if (failure == null) {
+                    // phase two - commit reserved amount on receiver's shard in its currency, return it on failure
+                    String fromCurrency = after[0].getCurrency();
+                    failure = toShard.executeUninterruptibly(() -> {
+                        String result = toShard.commit(toId, amount, fromCurrency, rates, credited);
+                        committed[0] = result == null;
+                        after[1] = toShard.toAccount(toId);
+                        return result;
+                    });
+                    if (failure != null) {
+                        refund(fromShard, fromId, amount);
+                    }
+                }
+            }
+        } catch (LedgerException e) {
+            // a step failed after the money left the sender and before the receiver got it, the sender gets it back
+            if (reserved[0] && !committed[0]) {
+                refund(fromShard, fromId, amount);
+            }
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't perform exchange for request: " + exchangeRequest.toString());
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        if (failure != null) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, failure);
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Transfer {} amount from {} to {}", exchangeRequest.getAmount(), fromId, toId);
+        }
+        return compositeResponseBuilder.setMessage("Exchanged successfully").setAccounts(Arrays.asList(after))
+                .setCredited(Money.ofMinor(credited[0])).createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse performExchanges(List<ExchangeRequest> exchangeRequests, boolean atomic) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        ExchangeBatch batch = new ExchangeBatch(exchangeRequests, fxRateTable.current());
+        Set<Shard> involved = new TreeSet<>(Comparator.comparingInt(shard -> shard.index));
+        for (int id : batch.accountIds()) {
+            involved.add(shardOf(id));
+        }
+        batchLock.lock();
+        try {
+            runParked(involved, () -> {
+                batch.stage(id -> shardOf(id).toAccount(id));
+                if (!batch.isRejected(atomic)) {
+                    batch.stagedBalances().forEach((id, balance) -> shardOf(id).setBalance(id, balance));
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't perform batch of " + exchangeRequests.size() + " exchanges");
+            return compositeResponseBuilder.createCompositeResponse();
+        } finally {
+            batchLock.unlock();
+        }
+        return batch.toResponse(!batch.isRejected(atomic));
+    }
+
+    /*
+        a side is the reserve or the commit step of a cross-shard transfer,
+        receiving side converts amount from currency of the sender in the request, without one it's already in receiver's
+     */
+    @Override
+    public CompositeResponse performExchangeSide(ExchangeRequest exchangeRequest, boolean sending) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        int id = (sending ? exchangeRequest.getFrom() : exchangeRequest.getTo()).getId();
+        long amount = exchangeRequest.getAmount().getMinorUnits();
+        if (amount <= 0) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Amount should be positive. Requested amount - " + exchangeRequest.getAmount());
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        Shard shard = shardOf(id);
+        FxRates rates = fxRateTable.current();
+        String fromCurrency = exchangeRequest.getFrom().getCurrency();
+        Account[] after = new Account[1];
+        long[] credited = new long[1];
+        String failure;
+        try {
+            failure = shard.execute(() -> {
+                String result = sending ? shard.reserve(id, amount) : shard.commit(id, amount, fromCurrency, rates, credited);
+                after[0] = shard.toAccount(id);
+                return result;
+            });
+        } catch (LedgerException e) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, "Couldn't perform exchange side for request: " + exchangeRequest);
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        if (failure != null) {
+            prepareUnsuccessfulResponse(compositeResponseBuilder, failure);
+            return compositeResponseBuilder.createCompositeResponse();
+        }
+        return compositeResponseBuilder.setMessage(sending ? "Sent successfully" : "Received successfully")
+                .setAccount(after[0]).setCredited(sending ? null : Money.ofMinor(credited[0])).createCompositeResponse();
+    }
+
+    /*
+        a cross-shard transfer is committed in two steps on two writers,
+        so there is no single point to number it consistently for both accounts
+     */
+    @Override
+    public CompositeResponse getTransfers(int accountId, long afterSeq, int limit) {
+        CompositeResponseBuilder compositeResponseBuilder = new CompositeResponseBuilder().setError(false);
+        prepareUnsuccessfulResponse(compositeResponseBuilder, "Transfer history is not kept by in-memory ledger");
+        return compositeResponseBuilder.createCompositeResponse();
+    }
+
+    /*
+        action runs on the calling thread while writers of the shards wait,
+        so their accounts are safe to use from it; caller holds batchLock
+     */
+    private static void runParked(Collection<Shard> shards, Runnable action) throws InterruptedException {
+        CountDownLatch parked = new CountDownLatch(shards.size());
+        CountDownLatch released = new CountDownLatch(1);
+        try {
+            for (Shard shard : shards) {
+                shard.submit(() -> {
+                    parked.countDown();
+                    released.await();
+                    return null;
+                });
+            }
+            parked.await();
+            action.run();
+        } finally {
+            released.countDown();
+        }
+    }
+
+    private static void refund(Shard shard, int id, long amount) {
+        try {
+            String failure = shard.executeUninterruptibly(() -> shard.commit(id, amount));
+            if (failure != null) {
+                LOG.error("Couldn't return {} reserved for transfer to {}: {}", Money.ofMinor(amount), id, failure);
+            }
+        } catch (LedgerException e) {
+            LOG.error("Couldn't return {} reserved for transfer to {}", Money.ofMinor(amount), id, e);
+        }
+    }
+
+    private Shard shardOf(int id) {
+        return shards[Math.floorMod(id, shards.length)];
+    }
+
+    private static <T> T await(Future<T> future) throws LedgerException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LedgerException(e);
+        } catch (ExecutionException e) {
+            LOG.error("Error in ledger execution", e.getCause());
+            throw new LedgerException(e.getCause());
+        }
+    }
+
+    /*
+        steps of a transfer are waited for to the end even when the caller is interrupted,
+        otherwise a step could change a balance without anyone knowing the outcome
+     */
+    private static <T> T awaitUninterruptibly(Future<T> future) throws LedgerException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    LOG.error("Error in ledger execution", e.getCause());
+                    throw new LedgerException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void prepareUnsuccessfulResponse(CompositeResponseBuilder compositeResponseBuilder, String message) {
+        compositeResponseBuilder.setError(true).setMessage(message);
+        LOG.warn(message);
+    }
+
+    private static class LedgerException extends Exception {
+        LedgerException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Accounts of a shard are only touched from its writer thread.
+     * Account with id is kept in slot id / stride of the arrays, present marks taken slots.
+     */
+    private static class Shard {
+        private static final int INITIAL_CAPACITY = 1024;
+        private final int index;
+        private final int stride;
+        private final ExecutorService writer;
+        private long[] balances = new long[INITIAL_CAPACITY];
+        private String[] names = new String[INITIAL_CAPACITY];
+        private String[] currencies = new String[INITIAL_CAPACITY];
+        private final BitSet present = new BitSet();
+
+        Shard(int index, int stride) {
+            this.index = index;
+            this.stride = stride;
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ledger-shard-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        <T> Future<T> submit(Callable<T> task) {
+            return writer.submit(task);
+        }
+
+        <T> T execute(Callable<T> task) throws LedgerException {
+            return await(writer.submit(task));
+        }
+
+        <T> T executeUninterruptibly(Callable<T> task) throws LedgerException {
+            return awaitUninterruptibly(writer.submit(task));
+        }
+
+        private int slotOf(int id) {
+            return id > 0 && id / stride < balances.length && present.get(id / stride) ? id / stride : -1;
+        }
+
+        void put(int id, String name, long balance, String currency) {
+            int slot = id / stride;
+            if (slot >= balances.length) {
+                int capacity = Math.max(slot + 1, balances.length * 2);
+                balances = Arrays.copyOf(balances, capacity);
+                names = Arrays.copyOf(names, capacity);
+                currencies = Arrays.copyOf(currencies, capacity);
+            }
+            balances[slot] = balance;
+            names[slot] = name;
+            currencies[slot] = currency;
+            present.set(slot);
+        }
+
+        /**
+         * @return id of an account which is already present, nothing is put then; 0 when all accounts were put
+         */
+        int insert(List<Account> accounts, String base) {
+            for (int i = 0; i < accounts.size(); i++) {
+                Account account = accounts.get(i);
+                if (slotOf(account.getId()) >= 0) {
+                    remove(accounts.subList(0, i));
+                    return account.getId();
+                }
+                put(account.getId(), account.getName(), account.getBalance().getMinorUnits(),
+                        account.getCurrency() == null ? base : account.getCurrency());
+            }
+            return 0;
+        }
+
+        void remove(List<Account> accounts) {
+            for (Account account : accounts) {
+                int slot = account.getId() / stride;
+                present.clear(slot);
+                names[slot] = null;
+                currencies[slot] = null;
+            }
+        }
+
+        void setBalance(int id, long balance) {
+            balances[id / stride] = balance;
+        }
+
+        void clear() {
+            balances = new long[INITIAL_CAPACITY];
+            names = new String[INITIAL_CAPACITY];
+            currencies = new String[INITIAL_CAPACITY];
+            present.clear();
+        }
+
+        Account toAccount(int id) {
+            int slot = slotOf(id);
+            return slot < 0 ? null : new Account(id, names[slot], Money.ofMinor(balances[slot]), currencies[slot]);
+        }
+
+        List<Account> toAccounts() {
+            return toAccounts(0, Integer.MAX_VALUE);
+        }
+
+        List<Account> toAccounts(int afterId, int limit) {
+            List<Account> accounts = new ArrayList<>(Math.min(limit, present.cardinality()));
+            // first slot holding an id greater than afterId
+            int from = afterId < 0 ? 0 : afterId / stride + (afterId / stride * stride + index <= afterId ? 1 : 0);
+            for (int slot = present.nextSetBit(from); slot >= 0 && accounts.size() < limit; slot = present.nextSetBit(slot + 1)) {
+                accounts.add(new Account(slot * stride + index, names[slot], Money.ofMinor(balances[slot]), currencies[slot]));
+            }
+            return accounts;
+        }
+
+        String transfer(int fromId, int toId, long amount, FxRates rates, long[] credited) {
+            int from = slotOf(fromId);
+            if (from < 0) {
+                return "No accounts found for id " + fromId;
+            }
+            int to = slotOf(toId);
+            if (to < 0) {
+                return "No accounts found for id " + toId;
+            }
+            long credit = rates.convert(amount, currencies[from], currencies[to]);
+            String conversionFailure = ExchangeBatch.conversionFailure(credit, Money.ofMinor(amount), currencies[from], currencies[to]);
+            if (conversionFailure != null) {
+                return conversionFailure;
+            }
+            if (amount > balances[from]) {
+                return notEnoughMoney(names[from], amount);
+            }
+            balances[from] -= amount;
+            balances[to] += credit;
+            credited[0] = credit;
+            return null;
+        }
+
+        String reserve(int id, long amount) {
+            int slot = slotOf(id);
+            if (slot < 0) {
+                return "No accounts found for id " + id;
+            }
+            if (amount > balances[slot]) {
+                return notEnoughMoney(names[slot], amount);
+            }
+            balances[slot] -= amount;
+            return null;
+        }
+
+        String commit(int id, long amount) {
+            return commit(id, amount, null, null, new long[1]);
+        }
+
+        /**
+         * @param fromCurrency currency of amount, null if it's in currency of the account
+         */
+        String commit(int id, long amount, String fromCurrency, FxRates rates, long[] credited) {
+            int slot = slotOf(id);
+            if (slot < 0) {
+                return "No accounts found for id " + id;
+            }
+            long credit = fromCurrency == null ? amount : rates.convert(amount, fromCurrency, currencies[slot]);
+            String conversionFailure = ExchangeBatch.conversionFailure(credit, Money.ofMinor(amount), fromCurrency, currencies[slot]);
+            if (conversionFailure != null) {
+                return conversionFailure;
+            }
+            balances[slot] += credit;
+            credited[0] = credit;
+            return null;
+        }
+
+        private static String notEnoughMoney(String name, long amount) {
+            return "Not enough money to perform operation for " + name + ". Requested amount - " + Money.ofMinor(amount);
+        }
+    }
+}
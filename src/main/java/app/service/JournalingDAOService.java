@@ -0,0 +1,171 @@
+package app.service;
+
+import app.journal.Journal;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Makes successful writes of another DAOService durable by appending them to a {@link Journal}.
+ * A write is answered only after its record is forced to disk, concurrent writes share one force.
+ * Failed writes are not journaled, so replaying the journal gives the state of the wrapped service.
+ * Exchanges are journaled with the amounts their receivers were credited, replay doesn't depend on rates.
+ * An exchange answered as a replay of its idempotency key was journaled when it was applied and isn't journaled again.
+ */
+public class JournalingDAOService extends ForwardingDAOService {
+    private static Logger LOG = LoggerFactory.getLogger(JournalingDAOService.class);
+    private final Journal journal;
+
+    public JournalingDAOService(DAOService delegate, Journal journal) {
+        super(delegate);
+        this.journal = journal;
+    }
+
+    @Override
+    public CompositeResponse insertAccount(Account account) {
+        CompositeResponse compositeResponse = delegate.insertAccount(account);
+        if (compositeResponse.getError()) {
+            return compositeResponse;
+        }
+        try {
+            journal.awaitDurable(journal.appendAccount(compositeResponse.getAccount()));
+        } catch (IOException e) {
+            return notJournaled(e);
+        }
+        return compositeResponse;
+    }
+
+    /*
+        every created account is appended as it comes, the import waits only once, for the force covering the last of them
+     */
+    @Override
+    public CompositeResponse insertAccounts(Iterator<Account> accounts, int batchSize, Consumer<Account> created) {
+        AtomicLong position = new AtomicLong(-1);
+        AtomicReference<UncheckedIOException> failure = new AtomicReference<>();
+        CompositeResponse compositeResponse;
+        try {
+            compositeResponse = delegate.insertAccounts(accounts, batchSize, account -> {
+                try {
+                    position.set(journal.appendAccount(account));
+                } catch (IOException e) {
+                    failure.set(new UncheckedIOException(e));
+                    throw failure.get();
+                }
+                created.accept(account);
+            });
+            if (position.get() >= 0) {
+                journal.awaitDurable(position.get());
+            }
+        } catch (IOException e) {
+            return notJournaled(e);
+        } catch (UncheckedIOException e) {
+            // failure of the caller's consumer isn't about journal
+            if (e != failure.get()) {
+                throw e;
+            }
+            return notJournaled(e.getCause());
+        }
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse insertAccountsWithIds(List<Account> accounts) {
+        CompositeResponse compositeResponse = delegate.insertAccountsWithIds(accounts);
+        if (compositeResponse.getError() || accounts.isEmpty()) {
+            return compositeResponse;
+        }
+        try {
+            long position = -1;
+            for (Account account : accounts) {
+                position = journal.appendAccount(account);
+            }
+            journal.awaitDurable(position);
+        } catch (IOException e) {
+            return notJournaled(e);
+        }
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse performExchange(ExchangeRequest exchangeRequest) {
+        CompositeResponse compositeResponse = delegate.performExchange(exchangeRequest);
+        if (compositeResponse.getError() || compositeResponse.isReplayed()) {
+            return compositeResponse;
+        }
+        try {
+            journal.awaitDurable(journal.appendExchanges(Collections.singletonList(exchangeRequest),
+                    Collections.singletonList(creditedOf(compositeResponse, exchangeRequest))));
+        } catch (IOException e) {
+            return notJournaled(e);
+        }
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse performExchanges(List<ExchangeRequest> exchangeRequests, boolean atomic) {
+        CompositeResponse compositeResponse = delegate.performExchanges(exchangeRequests, atomic);
+        List<CompositeResponse> results = compositeResponse.getResults();
+        if (compositeResponse.getError() || results == null) {
+            return compositeResponse;
+        }
+        // only exchanges applied by the batch are journaled, all of them in one record
+        List<ExchangeRequest> applied = new ArrayList<>(results.size());
+        List<Money> credited = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            if (!results.get(i).getError()) {
+                applied.add(exchangeRequests.get(i));
+                credited.add(creditedOf(results.get(i), exchangeRequests.get(i)));
+            }
+        }
+        if (applied.isEmpty()) {
+            return compositeResponse;
+        }
+        try {
+            journal.awaitDurable(journal.appendExchanges(applied, credited));
+        } catch (IOException e) {
+            return notJournaled(e);
+        }
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse drop() {
+        CompositeResponse compositeResponse = delegate.drop();
+        try {
+            journal.reset();
+        } catch (IOException e) {
+            return notJournaled(e);
+        }
+        return compositeResponse;
+    }
+
+    /*
+        an answer without credited amount is of a service that doesn't convert
+     */
+    private static Money creditedOf(CompositeResponse compositeResponse, ExchangeRequest exchangeRequest) {
+        return compositeResponse.getCredited() != null ? compositeResponse.getCredited() : exchangeRequest.getAmount();
+    }
+
+    /*
+        change is already applied but may be lost on restart, so caller can't treat it as done
+     */
+    private CompositeResponse notJournaled(IOException e) {
+        LOG.error("Couldn't write journal " + journal.getPath(), e);
+        return new CompositeResponseBuilder().setError(true)
+                .setMessage("Change was applied but couldn't be made durable").createCompositeResponse();
+    }
+}
@@ -0,0 +1,316 @@
+package app.service;
+
+import app.metrics.MetricsRegistry;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Read model of all accounts in front of the service that writes them. getAccount, getAllAccounts and getAccounts
+ * are answered from an in-memory index by id without locks and without calling the wrapped service,
+ * so reads take neither connections nor account locks from transfers.
+ * <p>
+ * Index is loaded on start and every write puts accounts as it left them before the write answers,
+ * so a client always reads its own writes and a read is behind the wrapped service at most by writes still in flight.
+ * Answers of concurrent writes of one account may come in another order than their commits,
+ * so while writes of an account overlap none of them is published, the last one to finish reads the account again.
+ * A write whose answer doesn't carry an account it touched (failed exchange, replay, exception) reads it again too.
+ * All writes have to go through this service.
+ */
+public class ReadModelDAOService extends ForwardingDAOService {
+    private static Logger LOG = LoggerFactory.getLogger(ReadModelDAOService.class);
+
+    private final ConcurrentSkipListMap<Integer, Account> accounts = new ConcurrentSkipListMap<>();
+    // writes in flight by account id, readers never look at it
+    private final ConcurrentHashMap<Integer, Writes> writes = new ConcurrentHashMap<>();
+    // accounts which couldn't be read again after a write, read through until their next write
+    private final Set<Integer> unknown = ConcurrentHashMap.newKeySet();
+    // stamps writes, an entry of writes may be removed and created again, its stamps have to go on
+    private final AtomicLong generations = new AtomicLong();
+    private final LongAdder rereads = new LongAdder();
+
+    public ReadModelDAOService(DAOService delegate) {
+        super(delegate);
+        CompositeResponse compositeResponse = delegate.streamAllAccounts(account -> accounts.put(account.getId(), account));
+        if (compositeResponse.getError()) {
+            throw new IllegalStateException("Couldn't load read model: " + compositeResponse.getMessage());
+        }
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("read_model_accounts", "", "Accounts in read model", accounts::size);
+        registry.counter("read_model_rereads_total", "", "Accounts read again after a write", rereads::sum);
+    }
+
+    @Override
+    public CompositeResponse getAccount(int id) {
+        if (!unknown.isEmpty() && unknown.contains(id)) {
+            return delegate.getAccount(id);
+        }
+        Account account = accounts.get(id);
+        if (account == null) {
+            return new CompositeResponseBuilder().setError(true).setMessage("No accounts found for id " + id)
+                    .createCompositeResponse();
+        }
+        return new CompositeResponseBuilder().setError(false).setAccount(account).createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse getAllAccounts() {
+        List<Account> all = new ArrayList<>(accounts.values());
+        if (all.isEmpty()) {
+            return new CompositeResponseBuilder().setError(true).setMessage("No accounts in system yet.")
+                    .setAccounts(all).createCompositeResponse();
+        }
+        return new CompositeResponseBuilder().setError(false).setAccounts(all).createCompositeResponse();
+    }
+
+    @Override
+    public CompositeResponse getAccounts(int afterId, int limit) {
+        List<Account> page = new ArrayList<>(Math.min(limit, 1024));
+        for (Account account : accounts.tailMap(afterId, false).values()) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(account);
+        }
+        return new CompositeResponseBuilder().setError(false).setAccounts(page).createCompositeResponse();
+    }
+
+    /*
+        nobody else knows the id before it's answered, but a transfer to it may be published first - it's newer
+     */
+    @Override
+    public CompositeResponse insertAccount(Account account) {
+        CompositeResponse compositeResponse = delegate.insertAccount(account);
+        if (!compositeResponse.getError() && compositeResponse.getAccount() != null) {
+            accounts.putIfAbsent(compositeResponse.getAccount().getId(), compositeResponse.getAccount());
+        }
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse insertAccounts(Iterator<Account> accounts, int batchSize, Consumer<Account> created) {
+        return delegate.insertAccounts(accounts, batchSize, account -> {
+            this.accounts.putIfAbsent(account.getId(), account);
+            created.accept(account);
+        });
+    }
+
+    @Override
+    public CompositeResponse insertAccountsWithIds(List<Account> accounts) {
+        CompositeResponse compositeResponse = delegate.insertAccountsWithIds(accounts);
+        if (!compositeResponse.getError()) {
+            accounts.forEach(account -> this.accounts.putIfAbsent(account.getId(), account));
+        }
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse restoreAccounts(Collection<Account> accounts) {
+        Set<Integer> ids = new LinkedHashSet<>();
+        accounts.forEach(account -> ids.add(account.getId()));
+        begin(ids);
+        CompositeResponse compositeResponse = null;
+        try {
+            compositeResponse = delegate.restoreAccounts(accounts);
+        } finally {
+            Map<Integer, Account> restored = new HashMap<>();
+            if (compositeResponse != null && !compositeResponse.getError()) {
+                accounts.forEach(account -> restored.put(account.getId(), account));
+            }
+            end(ids, restored);
+        }
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse drop() {
+        CompositeResponse compositeResponse = delegate.drop();
+        accounts.clear();
+        unknown.clear();
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse performExchange(ExchangeRequest exchangeRequest) {
+        Set<Integer> ids = idsOf(Collections.singletonList(exchangeRequest));
+        begin(ids);
+        CompositeResponse compositeResponse = null;
+        try {
+            compositeResponse = delegate.performExchange(exchangeRequest);
+        } finally {
+            end(ids, accountsOf(compositeResponse));
+        }
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse performExchanges(List<ExchangeRequest> exchangeRequests, boolean atomic) {
+        Set<Integer> ids = idsOf(exchangeRequests);
+        begin(ids);
+        CompositeResponse compositeResponse = null;
+        try {
+            compositeResponse = delegate.performExchanges(exchangeRequests, atomic);
+        } finally {
+            end(ids, accountsOf(compositeResponse));
+        }
+        return compositeResponse;
+    }
+
+    @Override
+    public CompositeResponse performExchangeSide(ExchangeRequest exchangeRequest, boolean sending) {
+        Set<Integer> ids = Collections.singleton((sending ? exchangeRequest.getFrom() : exchangeRequest.getTo()).getId());
+        begin(ids);
+        CompositeResponse compositeResponse = null;
+        try {
+            compositeResponse = delegate.performExchangeSide(exchangeRequest, sending);
+        } finally {
+            end(ids, accountsOf(compositeResponse));
+        }
+        return compositeResponse;
+    }
+
+    public long getRereads() {
+        return rereads.sum();
+    }
+
+    private void begin(Set<Integer> ids) {
+        for (int id : ids) {
+            writes.compute(id, (key, current) -> {
+                Writes inFlight = current == null ? new Writes() : current;
+                // a write started when no other is in flight commits after all of them, its answer is the latest
+                inFlight.overlapped = inFlight.count > 0;
+                inFlight.count++;
+                inFlight.generation = generations.incrementAndGet();
+                return inFlight;
+            });
+        }
+    }
+
+    private void end(Set<Integer> ids, Map<Integer, Account> written) {
+        for (int id : ids) {
+            long[] reread = {-1};
+            writes.compute(id, (key, inFlight) -> {
+                if (--inFlight.count > 0) {
+                    return inFlight;
+                }
+                Account account = written.get(id);
+                if (inFlight.overlapped || account == null) {
+                    reread[0] = inFlight.generation;
+                    return inFlight;
+                }
+                publish(id, account);
+                return null;
+            });
+            if (reread[0] >= 0) {
+                reread(id, reread[0]);
+            }
+        }
+    }
+
+    /*
+        outside of compute - a read of the wrapped service may be slow, writes of other accounts in the bin shouldn't wait;
+        a write started meanwhile publishes the account itself, this read may be older than its commit
+     */
+    private void reread(int id, long generation) {
+        rereads.increment();
+        CompositeResponse compositeResponse;
+        try {
+            compositeResponse = delegate.getAccount(id);
+        } catch (RuntimeException e) {
+            LOG.error("Couldn't read account {} for read model", id, e);
+            compositeResponse = null;
+        }
+        CompositeResponse current = compositeResponse;
+        writes.computeIfPresent(id, (key, inFlight) -> {
+            if (inFlight.generation != generation) {
+                return inFlight;
+            }
+            if (current == null || current.getError() || current.getAccount() == null) {
+                unknown.add(id);
+            } else {
+                publish(id, current.getAccount());
+            }
+            return null;
+        });
+    }
+
+    private void publish(int id, Account account) {
+        accounts.put(id, account);
+        if (!unknown.isEmpty()) {
+            unknown.remove(id);
+        }
+    }
+
+    private static Set<Integer> idsOf(List<ExchangeRequest> exchangeRequests) {
+        Set<Integer> ids = new LinkedHashSet<>();
+        for (ExchangeRequest exchangeRequest : exchangeRequests) {
+            if (exchangeRequest == null) {
+                continue;
+            }
+            if (exchangeRequest.getFrom() != null) {
+                ids.add(exchangeRequest.getFrom().getId());
+            }
+            if (exchangeRequest.getTo() != null) {
+                ids.add(exchangeRequest.getTo().getId());
+            }
+        }
+        return ids;
+    }
+
+    /*
+        results of a batch are in the order exchanges were applied, a later one has the later state of an account
+     */
+    private static Map<Integer, Account> accountsOf(CompositeResponse compositeResponse) {
+        Map<Integer, Account> written = new HashMap<>();
+        if (compositeResponse == null) {
+            return written;
+        }
+        addAccounts(compositeResponse, written);
+        if (compositeResponse.getResults() != null) {
+            for (CompositeResponse result : compositeResponse.getResults()) {
+                addAccounts(result, written);
+            }
+        }
+        return written;
+    }
+
+    private static void addAccounts(CompositeResponse compositeResponse, Map<Integer, Account> written) {
+        if (Boolean.TRUE.equals(compositeResponse.getError())) {
+            return;
+        }
+        if (compositeResponse.getAccount() != null) {
+            written.put(compositeResponse.getAccount().getId(), compositeResponse.getAccount());
+        }
+        if (compositeResponse.getAccounts() != null) {
+            for (Account account : compositeResponse.getAccounts()) {
+                written.put(account.getId(), account);
+            }
+        }
+    }
+
+    private static class Writes {
+        private int count;
+        private boolean overlapped;
+        private long generation;
+    }
+}
@@ -1,27 +1,64 @@
 package app.service;
 
 import app.Bootstrap;
+import app.cluster.RemoteDAOService;
+import app.json.JsonCodec;
+import app.metrics.Metrics;
 import app.model.Account;
 import app.model.CompositeResponse;
 import app.model.CompositeResponseBuilder;
 import app.model.ExchangeRequest;
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+import spark.embeddedserver.jetty.HttpRequestWrapper;
 
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static spark.Spark.get;
 import static spark.Spark.post;
 
 public class RestService {
-    ReentrantLock lock = new ReentrantLock();
+    private final AccountLockManager lockManager = new AccountLockManager();
     private static Logger LOG = LoggerFactory.getLogger(RestService.class);
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
     private final DAOService daoService;
+    private final JsonCodec codec = new JsonCodec();
+    // null unless hot account transfers are coalesced
+    private final HotAccountCoalescer coalescer;
+    private final int importBatchSize = Integer.getInteger("import.batchSize", 1000);
+    private final boolean clusterNode = "node".equals(System.getProperty("cluster.role"));
+    private final byte[] clusterSecret = System.getProperty("cluster.secret", "").getBytes(StandardCharsets.UTF_8);
 
     public RestService(DAOService daoService) {
         this.daoService = daoService;
+        this.coalescer = Boolean.getBoolean("hotAccounts.enabled")
+                ? new HotAccountCoalescer(daoService, lockManager, Integer.getInteger("hotAccounts.threshold"),
+                        Integer.getInteger("hotAccounts.maxBatchSize"))
+                : null;
+        if (importBatchSize <= 0) {
+            throw new IllegalArgumentException("Import batch size should be positive, was " + importBatchSize);
+        }
         initRouting();
     }
 
@@ -30,17 +67,45 @@ public class RestService {
             response.type("application/json");
             Account account;
             try {
-                account = new Gson().fromJson(request.body(), Account.class);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return new Gson().toJsonTree(new CompositeResponseBuilder().setError(true).setMessage(e.getMessage()));
+                account = codec.read(request.raw().getInputStream(), Account.class);
+            } catch (JsonParseException e) {
+                LOG.error(e.getMessage());
+                return respondError(response, e.getMessage());
             }
-            return new Gson().toJsonTree(daoService.insertAccount(account));
+            if (account == null) {
+                return respondError(response, "Empty request body");
+            }
+            return respond(response, daoService.insertAccount(account));
+        });
+
+        post("/createAccounts", (request, response) -> {
+            response.type("application/json");
+            return createAccounts(request, response);
         });
 
         get("/getAllAccounts", ((request, response) -> {
             response.type("application/json");
-            return new Gson().toJsonTree(daoService.getAllAccounts());
+            if (Boolean.parseBoolean(request.queryParams("stream"))) {
+                return streamAllAccounts(response);
+            }
+            String afterId = request.queryParams("afterId");
+            String limit = request.queryParams("limit");
+            if (afterId == null && limit == null) {
+                return respond(response, daoService.getAllAccounts());
+            }
+            int after;
+            int size;
+            try {
+                after = afterId == null ? 0 : Integer.parseInt(afterId);
+                size = limit == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limit);
+            } catch (NumberFormatException e) {
+                LOG.error(e.getMessage());
+                return respondError(response, "Invalid Number. " + e.getMessage());
+            }
+            if (size <= 0) {
+                return respondError(response, "Limit should be positive");
+            }
+            return respond(response, daoService.getAccounts(after, Math.min(size, MAX_PAGE_SIZE)));
         }));
 
         get("/getAccount/:id", ((request, response) -> {
@@ -50,27 +115,233 @@ public class RestService {
                 id = Integer.parseInt(request.params(":id"));
             } catch (NumberFormatException e) {
                 LOG.error(e.getMessage());
-                e.printStackTrace();
-                return new Gson().toJson(new CompositeResponseBuilder().setError(true).setMessage("Invalid Number. " + e.getMessage()));
+                return respondError(response, "Invalid Number. " + e.getMessage());
             }
-            return new Gson().toJsonTree(daoService.getAccount(id));
+            return respond(response, daoService.getAccount(id));
+        }));
+
+        get("/getTransfers/:accountId", ((request, response) -> {
+            response.type("application/json");
+            String afterSeq = request.queryParams("afterSeq");
+            String limit = request.queryParams("limit");
+            int accountId;
+            long after;
+            int size;
+            try {
+                accountId = Integer.parseInt(request.params(":accountId"));
+                after = afterSeq == null ? 0 : Long.parseLong(afterSeq);
+                size = limit == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limit);
+            } catch (NumberFormatException e) {
+                LOG.error(e.getMessage());
+                return respondError(response, "Invalid Number. " + e.getMessage());
+            }
+            if (size <= 0) {
+                return respondError(response, "Limit should be positive");
+            }
+            return respond(response, daoService.getTransfers(accountId, after, Math.min(size, MAX_PAGE_SIZE)));
         }));
 
 
         post("/performExchange", (request, response) -> {
-            ExchangeRequest exchangeRequest = new Gson().fromJson(request.body(), ExchangeRequest.class);
-            return new Gson().toJsonTree(performExchange(exchangeRequest));
+            response.type("application/json");
+            ExchangeRequest exchangeRequest;
+            try {
+                exchangeRequest = codec.read(request.raw().getInputStream(), ExchangeRequest.class);
+            } catch (JsonParseException e) {
+                LOG.error(e.getMessage());
+                return respondError(response, e.getMessage());
+            }
+            if (exchangeRequest == null || exchangeRequest.getFrom() == null
+                    || exchangeRequest.getTo() == null || exchangeRequest.getAmount() == null) {
+                return respondError(response, "Invalid exchange request: " + exchangeRequest);
+            }
+            if (exchangeRequest.getIdempotencyKey() != null
+                    && exchangeRequest.getIdempotencyKey().length() > ExchangeRequest.MAX_IDEMPOTENCY_KEY_LENGTH) {
+                return respondError(response, "Idempotency key is longer than "
+                        + ExchangeRequest.MAX_IDEMPOTENCY_KEY_LENGTH + " characters");
+            }
+            return respond(response, performExchange(exchangeRequest));
         });
+
+        post("/performExchanges", (request, response) -> {
+            response.type("application/json");
+            ExchangeRequest[] exchangeRequests;
+            try {
+                exchangeRequests = codec.read(request.raw().getInputStream(), ExchangeRequest[].class);
+            } catch (JsonParseException e) {
+                LOG.error(e.getMessage());
+                return respondError(response, e.getMessage());
+            }
+            if (exchangeRequests == null || exchangeRequests.length == 0) {
+                return respondError(response, "No exchanges in batch");
+            }
+            if (exchangeRequests.length > ExchangeRequest.MAX_BATCH_SIZE) {
+                return respondError(response, "Batch of " + exchangeRequests.length + " exchanges is larger than "
+                        + ExchangeRequest.MAX_BATCH_SIZE);
+            }
+            // all-or-nothing unless told otherwise by request or batch.atomic property
+            String atomic = request.queryParams("atomic");
+            return respond(response, daoService.performExchanges(Arrays.asList(exchangeRequests),
+                    Boolean.parseBoolean(atomic != null ? atomic : System.getProperty("batch.atomic"))));
+        });
+
+        // one side of an exchange between cluster nodes, sent by the router; takes no account lock, a side is one
+        // guarded update and a router waiting on this node may hold the locks of the accounts.
+        // A receiving side credits money debited on another node, so only nodes have the route and only the router may call it
+        if (clusterNode) {
+            post("/performExchangeSide", (request, response) -> {
+                response.type("application/json");
+                if (!isFromRouter(request)) {
+                    LOG.warn("Exchange side from {} without cluster secret was refused", request.ip());
+                    return respondError(response, "Exchange sides are accepted only from the router");
+                }
+                ExchangeRequest exchangeRequest;
+                try {
+                    exchangeRequest = codec.read(request.raw().getInputStream(), ExchangeRequest.class);
+                } catch (JsonParseException e) {
+                    LOG.error(e.getMessage());
+                    return respondError(response, e.getMessage());
+                }
+                if (exchangeRequest == null || exchangeRequest.getFrom() == null
+                        || exchangeRequest.getTo() == null || exchangeRequest.getAmount() == null) {
+                    return respondError(response, "Invalid exchange request: " + exchangeRequest);
+                }
+                return respond(response, daoService.performExchangeSide(exchangeRequest,
+                        Boolean.parseBoolean(request.queryParams("sending"))));
+            });
+        }
+
+        get("/metrics", (request, response) -> {
+            response.type("text/plain; version=0.0.4");
+            Writer writer = new BufferedWriter(new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8));
+            Metrics.REGISTRY.write(writer);
+            writer.flush();
+            return "";
+        });
+    }
+
+    /*
+        compared in constant time, so time of a refusal doesn't tell how much of the secret was right
+     */
+    private boolean isFromRouter(Request request) {
+        String secret = request.headers(RemoteDAOService.SECRET_HEADER);
+        return clusterSecret.length > 0 && secret != null
+                && MessageDigest.isEqual(clusterSecret, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+        responses are written straight to the servlet stream, route returns empty body
+     */
+    private String respond(Response response, CompositeResponse compositeResponse) throws IOException {
+        codec.write(response.raw().getOutputStream(), compositeResponse);
+        return "";
+    }
+
+    private String respondError(Response response, String message) throws IOException {
+        return respond(response, new CompositeResponseBuilder().setError(true).setMessage(message).createCompositeResponse());
+    }
+
+    /*
+        accounts are written to response one by one as they are read,
+        status goes after them as it's known only when all of them are written
+     */
+    private String streamAllAccounts(Response response) throws IOException {
+        JsonWriter writer = codec.newJsonWriter(new BufferedWriter(
+                new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8)));
+        writer.beginObject().name("accounts").beginArray();
+        CompositeResponse status = daoService.streamAllAccounts(account -> codec.write(writer, account));
+        writer.endArray();
+        writer.name("message").value(status.getMessage());
+        writer.name("error").value(status.getError());
+        writer.endObject();
+        writer.flush();
+        return "";
+    }
+
+    /*
+        accounts are parsed from the body while they are inserted, generated ids are spooled to a temporary file
+        and written to response only when the whole body is read - clients commonly don't read response before
+        they have sent the request, ids written meanwhile would fill socket buffers and block both sides;
+        a malformed account stops the import, accounts created before it keep their ids
+     */
+    private String createAccounts(Request request, Response response) throws IOException {
+        Iterator<Account> accounts = codec.readAccounts(streamedBody(request));
+        Path spool = Files.createTempFile("created-ids", ".bin");
+        try {
+            AtomicInteger created = new AtomicInteger();
+            long start = System.nanoTime();
+            CompositeResponse status;
+            try (DataOutputStream ids = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spool)))) {
+                status = daoService.insertAccounts(accounts, importBatchSize, account -> {
+                    try {
+                        ids.writeInt(account.getId());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    created.incrementAndGet();
+                });
+            } catch (JsonParseException e) {
+                LOG.error(e.getMessage());
+                status = new CompositeResponseBuilder().setError(true)
+                        .setMessage(e.getMessage() + ", created " + created.get() + " accounts before it").createCompositeResponse();
+            }
+            long rowsPerSecond = (long) (created.get() / Math.max((System.nanoTime() - start) / 1e9, 1e-9));
+            LOG.info("Imported {} accounts, {} rows/s", created.get(), rowsPerSecond);
+            JsonWriter writer = codec.newJsonWriter(new BufferedWriter(
+                    new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8)));
+            writer.beginObject().name("ids").beginArray();
+            try (DataInputStream ids = new DataInputStream(new BufferedInputStream(Files.newInputStream(spool)))) {
+                for (int i = 0; i < created.get(); i++) {
+                    writer.value(ids.readInt());
+                }
+            }
+            writer.endArray();
+            writer.name("created").value(created.get());
+            writer.name("rowsPerSecond").value(rowsPerSecond);
+            writer.name("message").value(status.getMessage());
+            writer.name("error").value(status.getError());
+            writer.endObject();
+            writer.flush();
+            return "";
+        } finally {
+            Files.deleteIfExists(spool);
+        }
+    }
+
+    /*
+        Spark's embedded server reads the whole body into memory once its stream is asked for,
+        the request it wraps gives the body as it comes from the connection
+     */
+    private static InputStream streamedBody(Request request) throws IOException {
+        if (request.raw() instanceof HttpRequestWrapper) {
+            return ((HttpRequestWrapper) request.raw()).getRequest().getInputStream();
+        }
+        return request.raw().getInputStream();
+    }
+
+    /**
+     * Exchange as the route runs it, under the account locks of the routes, for other front ends.
+     */
+    public CompositeResponse performExchange(ExchangeRequest exchangeRequest) {
+        if (coalescer != null) {
+            return coalescer.performExchange(exchangeRequest, this::performLockedExchange);
+        }
+        return performLockedExchange(exchangeRequest);
     }
 
-    private CompositeResponse performExchange(ExchangeRequest exchangeRequest) {
+    private CompositeResponse performLockedExchange(ExchangeRequest exchangeRequest) {
+        int fromId = exchangeRequest.getFrom().getId();
+        int toId = exchangeRequest.getTo().getId();
+//        only transfers sharing an account are serialized,
+//        the optimistic update in DAO still guards against other writers
+        long start = System.nanoTime();
+        lockManager.lock(fromId, toId);
+        Metrics.TRANSFER_LOCK_WAIT.recordSince(start);
         try {
-//            no need to use locks here as far H2 handles multithreading well
-//            to think up about transactional locks for other DBs
-            lock.lock();
             return daoService.performExchange(exchangeRequest);
         } finally {
-            lock.unlock();
+            lockManager.unlock(fromId, toId);
+            Metrics.TRANSFER.recordSince(start);
         }
     }
 }
@@ -0,0 +1,247 @@
+package app.cluster;
+
+import app.json.JsonCodec;
+import app.metrics.Metrics;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import app.service.DAOService;
+import app.service.IdempotentDAOService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+    two nodes run as separate processes started the way they are deployed - JDBC, cache and idempotency as configured
+    by app.properties - and are called over HTTP; the router runs here so answers of its nodes can be lost on the way back
+ */
+class ClusterDAOServiceTest {
+    private static final String SECRET = "test-secret";
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final List<Process> processes = new ArrayList<>();
+    private static final List<String> uris = new ArrayList<>();
+    private static HashRing ring;
+    private static HttpClient httpClient;
+
+    @TempDir
+    static Path directory;
+
+    private final List<LossyNode> nodes = new ArrayList<>();
+    private DAOService cluster;
+
+    @BeforeAll
+    static void startNodes() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                uris.add("http://localhost:" + socket.getLocalPort());
+            }
+        }
+        for (int i = 0; i < uris.size(); i++) {
+            Path workDir = Files.createDirectories(directory.resolve("node" + i));
+            processes.add(new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"),
+                    "-Dcluster.role=node", "-Dcluster.nodeId=" + i, "-Dcluster.nodes=" + String.join(",", uris),
+                    "-Dcluster.secret=" + SECRET, "-Dservice.port=" + URI.create(uris.get(i)).getPort(),
+                    "app.Bootstrap")
+                    .directory(workDir.toFile())
+                    .redirectErrorStream(true)
+                    .redirectOutput(workDir.resolve("out.log").toFile())
+                    .start());
+        }
+        ring = new HashRing(uris, 128);
+        httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(TIMEOUT).build();
+        for (String uri : uris) {
+            awaitStarted(uri);
+        }
+    }
+
+    @AfterAll
+    static void stopNodes() throws InterruptedException {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    @BeforeEach
+    void init() {
+        for (String uri : uris) {
+            nodes.add(new LossyNode(uri, SECRET));
+        }
+        cluster = new IdempotentDAOService(new ClusterDAOService(nodes, ring, 3), 1000, 60);
+    }
+
+    /*
+        both nodes apply their side but the first answer of each is lost, the retry with the same key is answered
+        with the side applied the first time
+     */
+    @Test
+    void sideWithoutAnswerIsRetriedAndAppliedOnce() {
+        Account from = createAccountOf(0);
+        Account to = createAccountOf(1);
+        nodes.get(0).answersToLose.set(1);
+        nodes.get(1).answersToLose.set(1);
+
+        CompositeResponse response = cluster.performExchange(exchange(from, to, "10"));
+        Assertions.assertFalse(response.getError(), response.getMessage());
+        assertEquals(2, nodes.get(0).sides.get());
+        assertEquals(2, nodes.get(1).sides.get());
+        assertEquals(Money.of("90"), response.getAccounts().get(0).getBalance());
+        assertEquals(Money.of("110"), response.getAccounts().get(1).getBalance());
+        assertEquals(Money.of("90"), balance(from));
+        assertEquals(Money.of("110"), balance(to));
+    }
+
+    /*
+        receiver's node applies the side but none of the answers comes back - the router can't tell whether
+        the money arrived, so it neither gives it back nor reports success
+     */
+    @Test
+    void receiverWithoutAnswerLeavesTransferInDoubt() throws IOException {
+        Account from = createAccountOf(0);
+        Account to = createAccountOf(1);
+        double inDoubt = inDoubtExchanges();
+        nodes.get(1).answersToLose.set(3);
+
+        CompositeResponse response = cluster.performExchange(exchange(from, to, "10"));
+        Assertions.assertTrue(response.getError());
+        Assertions.assertTrue(response.getMessage().contains("is in doubt, receiver's node 1 didn't answer"), response.getMessage());
+        assertEquals(3, nodes.get(1).sides.get());
+        assertEquals(inDoubt + 1, inDoubtExchanges());
+        assertEquals(Money.of("90"), balance(from));
+        assertEquals(Money.of("110"), balance(to));
+    }
+
+    @Test
+    void failedReceivingSideGivesMoneyBack() {
+        Account from = createAccountOf(0);
+        int missing = 1_000_000;
+        while (ring.ownerOf(missing) != 1) {
+            missing++;
+        }
+
+        CompositeResponse response = cluster.performExchange(exchange(from, new Account(missing, null, null), "10"));
+        Assertions.assertTrue(response.getError());
+        Assertions.assertTrue(response.getMessage().startsWith("No accounts found for id " + missing), response.getMessage());
+        // send, receive and return
+        assertEquals(2, nodes.get(0).sides.get());
+        assertEquals(1, nodes.get(1).sides.get());
+        assertEquals(Money.of("100"), balance(from));
+    }
+
+    @Test
+    void sideWithoutSecretIsRefused() throws Exception {
+        Account to = createAccountOf(1);
+        ExchangeRequest side = new ExchangeRequest(new Account(0, null, null), new Account(to.getId(), null, null),
+                Money.of("50"), "forged/receive");
+
+        CompositeResponse wrongSecret = new RemoteDAOService(uris.get(1), httpClient, TIMEOUT, new JsonCodec(), "guess")
+                .performExchangeSide(side, false);
+        Assertions.assertTrue(wrongSecret.getError());
+        assertEquals("Exchange sides are accepted only from the router", wrongSecret.getMessage());
+
+        HttpResponse<String> noSecret = httpClient.send(HttpRequest.newBuilder(URI.create(uris.get(1) + "/performExchangeSide?sending=false"))
+                .timeout(TIMEOUT).header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(new JsonCodec().toJson(side))).build(), HttpResponse.BodyHandlers.ofString());
+        Assertions.assertTrue(noSecret.body().contains("Exchange sides are accepted only from the router"), noSecret.body());
+        assertEquals(Money.of("100"), balance(to));
+
+        Assertions.assertTrue(cluster.performExchangeSide(side, false).getError());
+        assertEquals(Money.of("100"), balance(to));
+    }
+
+    /*
+        the router gives new accounts to nodes in turn, an account of the wanted node comes within a few of them
+     */
+    private Account createAccountOf(int node) {
+        while (true) {
+            CompositeResponse response = cluster.insertAccount(new Account(0, "test", Money.of("100")));
+            Assertions.assertFalse(response.getError(), response.getMessage());
+            if (ring.ownerOf(response.getAccount().getId()) == node) {
+                return response.getAccount();
+            }
+        }
+    }
+
+    private Money balance(Account account) {
+        return cluster.getAccount(account.getId()).getAccount().getBalance();
+    }
+
+    private static double inDoubtExchanges() throws IOException {
+        StringBuilder metrics = new StringBuilder();
+        Metrics.REGISTRY.write(metrics);
+        for (String line : metrics.toString().split("\n")) {
+            if (line.startsWith("cluster_in_doubt_exchanges_total ")) {
+                return Double.parseDouble(line.substring(line.indexOf(' ') + 1));
+            }
+        }
+        throw new AssertionError("No cluster_in_doubt_exchanges_total in " + metrics);
+    }
+
+    private static ExchangeRequest exchange(Account from, Account to, String amount) {
+        return new ExchangeRequest(new Account(from.getId(), null, null), new Account(to.getId(), null, null), Money.of(amount));
+    }
+
+    private static void awaitStarted(String uri) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (true) {
+            try {
+                httpClient.send(HttpRequest.newBuilder(URI.create(uri + "/getAllAccounts")).timeout(TIMEOUT).GET().build(),
+                        HttpResponse.BodyHandlers.discarding());
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("Node " + uri + " didn't start, see its out.log", e);
+                }
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    /*
+        node whose answers to sides can be lost on the way back after it applied them, as when the router times out
+     */
+    private static class LossyNode extends RemoteDAOService {
+        private final AtomicInteger answersToLose = new AtomicInteger();
+        private final AtomicInteger sides = new AtomicInteger();
+
+        LossyNode(String uri, String secret) {
+            super(uri, httpClient, TIMEOUT, new JsonCodec(), secret);
+        }
+
+        @Override
+        public CompositeResponse performExchangeSide(ExchangeRequest exchangeRequest, boolean sending) {
+            sides.incrementAndGet();
+            CompositeResponse compositeResponse = super.performExchangeSide(exchangeRequest, sending);
+            if (answersToLose.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+                throw new UncheckedIOException(new IOException("Answer of " + getBaseUri() + " was lost"));
+            }
+            return compositeResponse;
+        }
+    }
+}
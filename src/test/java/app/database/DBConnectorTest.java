@@ -0,0 +1,93 @@
+package app.database;
+
+import app.Application;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DBConnectorTest {
+    private DBConnector pool;
+
+    @BeforeEach
+    void init() throws SQLException {
+        Application.initProperties();
+        System.setProperty("db.pool.maxConnections", "1");
+        System.setProperty("db.pool.timeoutMillis", "100");
+        try {
+            pool = new DBConnector();
+        } finally {
+            System.clearProperty("db.pool.maxConnections");
+            System.clearProperty("db.pool.timeoutMillis");
+        }
+        try (PooledConnection connection = pool.getDbConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS POOL_TEST (ID INT PRIMARY KEY)");
+        }
+    }
+
+    @AfterEach
+    void cleanUp() throws SQLException {
+        try (PooledConnection connection = pool.getDbConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS POOL_TEST");
+        }
+    }
+
+    @Test
+    void checkoutTimesOutWhenPoolIsExhausted() throws SQLException {
+        try (PooledConnection ignored = pool.getDbConnection()) {
+            assertEquals(1, pool.getActiveConnections());
+            long start = System.nanoTime();
+            SQLException e = Assertions.assertThrows(SQLException.class, pool::getDbConnection);
+            Assertions.assertTrue(e.getMessage().startsWith("No free connection"), e.getMessage());
+            Assertions.assertTrue(System.nanoTime() - start >= 100_000_000L);
+        }
+        assertEquals(0, pool.getActiveConnections());
+        try (PooledConnection connection = pool.getDbConnection()) {
+            Assertions.assertNotNull(connection);
+        }
+    }
+
+    /*
+        a transaction left open is rolled back on return, the next user gets an auto-commit connection
+     */
+    @Test
+    void returnedConnectionIsResetAndKeepsItsStatements() throws SQLException {
+        PreparedStatement first;
+        try (PooledConnection connection = pool.getDbConnection()) {
+            connection.setAutoCommit(false);
+            first = connection.prepareStatement("INSERT INTO POOL_TEST (ID) VALUES(?)");
+            first.setInt(1, 1);
+            first.executeUpdate();
+        }
+        try (PooledConnection connection = pool.getDbConnection()) {
+            PreparedStatement insert = connection.prepareStatement("INSERT INTO POOL_TEST (ID) VALUES(?)");
+            Assertions.assertSame(first, insert);
+            insert.setInt(1, 2);
+            insert.executeUpdate();
+            try (ResultSet resultSet = connection.prepareStatement("SELECT COUNT(*) FROM POOL_TEST").executeQuery()) {
+                resultSet.next();
+                assertEquals(1, resultSet.getInt(1));
+            }
+        }
+        assertEquals(1, pool.getIdleConnections());
+    }
+
+    @Test
+    void closingTwiceReturnsConnectionOnce() throws SQLException {
+        PooledConnection connection = pool.getDbConnection();
+        connection.close();
+        connection.close();
+        assertEquals(0, pool.getActiveConnections());
+        try (PooledConnection ignored = pool.getDbConnection()) {
+            // a second permit would let this one through instead of timing out
+            Assertions.assertThrows(SQLException.class, pool::getDbConnection);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package app.fx;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FxRatesTest {
+    private final FxRates rates = FxRates.of("EUR", Collections.singletonMap("USD", new BigDecimal("1.0842")));
+
+    @Test
+    void convertsWithRoundingHalfEven() {
+        assertEquals(10842, rates.convert(10000, "EUR", "USD"));
+        assertEquals(10000, rates.convert(10842, "USD", "EUR"));
+        assertEquals(5, rates.convert(5, "USD", "USD"));
+    }
+
+    @Test
+    void tellsMissingRateFromOverflow() {
+        assertEquals(FxRates.NO_RATE, rates.convert(100, "EUR", "JPY"));
+        assertEquals(FxRates.TOO_LARGE, rates.convert(Long.MAX_VALUE, "EUR", "USD"));
+    }
+
+    @Test
+    void rejectsNonPositiveAmounts() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> rates.convert(0, "EUR", "USD"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> rates.convert(-100, "EUR", "EUR"));
+    }
+}
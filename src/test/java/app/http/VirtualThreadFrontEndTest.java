@@ -0,0 +1,207 @@
+package app.http;
+
+import app.Application;
+import app.metrics.Metrics;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.Money;
+import app.service.DAOService;
+import app.service.ForwardingDAOService;
+import app.service.InMemoryLedgerService;
+import app.service.RestService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+    runs in its own surefire execution - once routes are served through a filter Spark won't start its embedded server
+    in this JVM, and other tests need that server
+ */
+class VirtualThreadFrontEndTest {
+    private static final int LIMIT = 2;
+    private static final int BLOCKED = 1;
+    private static final int FAILING = 2;
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static VirtualThreadFrontEnd frontEnd;
+    private static String uri;
+    private static HttpClient httpClient;
+    private static volatile CountDownLatch release;
+
+    @BeforeAll
+    static void startFrontEnd() throws IOException {
+        Application.initProperties();
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        uri = "http://localhost:" + port;
+        DAOService daoService = new BlockingDAOService(new InMemoryLedgerService(2));
+        daoService.insertAccount(new Account(0, "blocked", Money.of("100")));
+        daoService.insertAccount(new Account(0, "failing", Money.of("100")));
+        frontEnd = new VirtualThreadFrontEnd(port, LIMIT, 4);
+        frontEnd.registerMetrics(Metrics.REGISTRY);
+        frontEnd.start(() -> new RestService(daoService));
+        httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(TIMEOUT).build();
+    }
+
+    @AfterAll
+    static void stopFrontEnd() {
+        frontEnd.stop();
+    }
+
+    @BeforeEach
+    void init() {
+        release = new CountDownLatch(1);
+    }
+
+    /*
+        routes registered by the application reach this server through its filter, Spark's own server never starts
+     */
+    @Test
+    void routesAreServedByFrontEndInsteadOfEmbeddedSpark() throws Exception {
+        HttpResponse<String> response = getAccount(3);
+        assertEquals(200, response.statusCode());
+        Assertions.assertTrue(response.body().contains("No accounts found for id 3"), response.body());
+
+        Assertions.assertThrows(ConnectException.class, () -> httpClient.send(HttpRequest.newBuilder(
+                URI.create("http://localhost:4567/getAccount/3")).timeout(TIMEOUT).GET().build(), HttpResponse.BodyHandlers.discarding()));
+    }
+
+    @Test
+    void requestAboveLimitIsRejectedWhileOthersAreBlocked() throws Exception {
+        long rejected = frontEnd.getRejectedRequests();
+        double rejectedMetric = rejectedRequestsMetric();
+        List<CompletableFuture<HttpResponse<String>>> blocked = saturate();
+
+        HttpResponse<String> tooMany = getAccount(3);
+        assertEquals(429, tooMany.statusCode());
+        assertEquals("1", tooMany.headers().firstValue("Retry-After").orElse(null));
+        assertEquals("{\"message\":\"Too many requests\",\"error\":true}", tooMany.body());
+        assertEquals(rejected + 1, frontEnd.getRejectedRequests());
+        assertEquals(rejectedMetric + 1, rejectedRequestsMetric());
+        assertEquals(LIMIT, frontEnd.getInFlightRequests());
+
+        release.countDown();
+        for (CompletableFuture<HttpResponse<String>> future : blocked) {
+            HttpResponse<String> response = future.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+            assertEquals(200, response.statusCode());
+            Assertions.assertTrue(response.body().contains("\"name\":\"blocked\""), response.body());
+        }
+        awaitInFlight(0);
+        assertEquals(200, getAccount(3).statusCode());
+    }
+
+    /*
+        a route throwing as many times as the limit would take every permit if a failure kept its own
+     */
+    @Test
+    void failedRoutesGiveTheirPermitsBack() throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> failing = new ArrayList<>();
+        for (int i = 0; i < LIMIT; i++) {
+            failing.add(getAccountAsync(FAILING));
+        }
+        for (CompletableFuture<HttpResponse<String>> future : failing) {
+            assertEquals(500, future.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS).statusCode());
+        }
+        awaitInFlight(0);
+        long rejected = frontEnd.getRejectedRequests();
+
+        List<CompletableFuture<HttpResponse<String>>> blocked = saturate();
+        release.countDown();
+        for (CompletableFuture<HttpResponse<String>> future : blocked) {
+            assertEquals(200, future.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS).statusCode());
+        }
+        assertEquals(rejected, frontEnd.getRejectedRequests());
+        awaitInFlight(0);
+    }
+
+    /*
+        takes every permit with requests blocked in the DAO until release
+     */
+    private List<CompletableFuture<HttpResponse<String>>> saturate() throws InterruptedException {
+        List<CompletableFuture<HttpResponse<String>>> blocked = new ArrayList<>();
+        for (int i = 0; i < LIMIT; i++) {
+            blocked.add(getAccountAsync(BLOCKED));
+        }
+        awaitInFlight(LIMIT);
+        return blocked;
+    }
+
+    private static void awaitInFlight(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (frontEnd.getInFlightRequests() != expected) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Expected " + expected + " requests in flight, was " + frontEnd.getInFlightRequests());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static HttpResponse<String> getAccount(int id) throws IOException, InterruptedException {
+        return httpClient.send(request(id), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static CompletableFuture<HttpResponse<String>> getAccountAsync(int id) {
+        return httpClient.sendAsync(request(id), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static HttpRequest request(int id) {
+        return HttpRequest.newBuilder(URI.create(uri + "/getAccount/" + id)).timeout(TIMEOUT).GET().build();
+    }
+
+    private static double rejectedRequestsMetric() throws IOException {
+        StringBuilder metrics = new StringBuilder();
+        Metrics.REGISTRY.write(metrics);
+        for (String line : metrics.toString().split("\n")) {
+            if (line.startsWith("http_rejected_requests_total ")) {
+                return Double.parseDouble(line.substring(line.indexOf(' ') + 1));
+            }
+        }
+        throw new AssertionError("No http_rejected_requests_total in " + metrics);
+    }
+
+    /*
+        reads of the blocked account wait for release, reads of the failing one throw out of the route
+     */
+    private static class BlockingDAOService extends ForwardingDAOService {
+        BlockingDAOService(DAOService delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public CompositeResponse getAccount(int id) {
+            if (id == FAILING) {
+                throw new IllegalStateException("Account " + id + " can't be read");
+            }
+            if (id == BLOCKED) {
+                try {
+                    if (!release.await(TIMEOUT.toSeconds(), TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("Blocked read was never released");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            }
+            return super.getAccount(id);
+        }
+    }
+}
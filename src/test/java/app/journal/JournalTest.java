@@ -0,0 +1,122 @@
+package app.journal;
+
+import app.model.Account;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JournalTest {
+
+    @Test
+    void replayAfterReopenGivesFinalBalances(@TempDir Path directory) throws IOException {
+        Path path = directory.resolve("transfers.journal");
+        try (Journal journal = new Journal(path, 0)) {
+            writeAccountsAndExchanges(journal);
+        }
+        try (Journal journal = new Journal(path, 0)) {
+            List<Account> accounts = new ArrayList<>(journal.replay());
+            assertEquals(3, accounts.size());
+            assertEquals(new Account(1, "test1", Money.of("75")), accounts.get(0));
+            assertEquals(new Account(2, "test2", Money.of("115")), accounts.get(1));
+            assertEquals(new Account(3, "usd", Money.of("115"), "USD"), accounts.get(2));
+        }
+    }
+
+    /*
+        a crash in the middle of a write leaves part of a record, it's cut on open and next records follow the last complete one
+     */
+    @Test
+    void tornTailIsCutOnOpen(@TempDir Path directory) throws IOException {
+        Path path = directory.resolve("transfers.journal");
+        long end;
+        try (Journal journal = new Journal(path, 0)) {
+            end = writeAccountsAndExchanges(journal);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            // header of a record of 40 bytes with only 3 of them written
+            channel.write(ByteBuffer.allocate(Journal.RECORD_HEADER_SIZE + 3).putInt(40).putInt(12345).put(new byte[3]).flip());
+        }
+        Assertions.assertTrue(Files.size(path) > end);
+
+        try (Journal journal = new Journal(path, 0)) {
+            assertEquals(end, Files.size(path));
+            journal.awaitDurable(journal.appendExchanges(Collections.singletonList(exchange(2, 1, "15"))));
+            List<Account> accounts = new ArrayList<>(journal.replay());
+            assertEquals(Money.of("90"), accounts.get(0).getBalance());
+            assertEquals(Money.of("100"), accounts.get(1).getBalance());
+        }
+    }
+
+    @Test
+    void corruptedRecordEndsReplay(@TempDir Path directory) throws IOException {
+        Path path = directory.resolve("transfers.journal");
+        long accountsEnd;
+        try (Journal journal = new Journal(path, 0)) {
+            journal.appendAccount(new Account(1, "test1", Money.of("100")));
+            accountsEnd = journal.appendAccount(new Account(2, "test2", Money.of("100")));
+            journal.awaitDurable(journal.appendExchanges(Collections.singletonList(exchange(1, 2, "10"))));
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            // last byte of the amount of the exchange, CRC no longer matches
+            channel.write(ByteBuffer.wrap(new byte[]{1}), Files.size(path) - 1);
+        }
+
+        try (Journal journal = new Journal(path, 0)) {
+            assertEquals(accountsEnd, Files.size(path));
+            List<Account> accounts = new ArrayList<>(journal.replay());
+            assertEquals(Money.of("100"), accounts.get(0).getBalance());
+            assertEquals(Money.of("100"), accounts.get(1).getBalance());
+        }
+    }
+
+    @Test
+    void replayFromPositionFoldsLaterRecordsIntoBase(@TempDir Path directory) throws IOException {
+        try (Journal journal = new Journal(directory.resolve("transfers.journal"), 0)) {
+            journal.appendAccount(new Account(1, "test1", Money.of("100")));
+            long position = journal.appendAccount(new Account(2, "test2", Money.of("100")));
+            journal.awaitDurable(journal.appendExchanges(Collections.singletonList(exchange(1, 2, "10"))));
+
+            List<Account> base = Arrays.asList(new Account(1, "test1", Money.of("50")), new Account(2, "test2", Money.of("150")));
+            List<Account> accounts = new ArrayList<>(journal.replay(base, position, Long.MAX_VALUE));
+            assertEquals(Money.of("40"), accounts.get(0).getBalance());
+            assertEquals(Money.of("160"), accounts.get(1).getBalance());
+
+            journal.reset();
+            Assertions.assertFalse(journal.hasRecords());
+            Assertions.assertTrue(journal.replay().isEmpty());
+        }
+    }
+
+    /*
+        accounts 1 and 2 in the base currency, 3 in USD credited with converted amounts
+     */
+    private static long writeAccountsAndExchanges(Journal journal) throws IOException {
+        journal.appendAccount(new Account(1, "test1", Money.of("100")));
+        journal.appendAccount(new Account(2, "test2", Money.of("100")));
+        journal.appendAccount(new Account(3, "usd", Money.of("100"), "USD"));
+        journal.appendExchanges(Arrays.asList(exchange(1, 2, "20"), exchange(2, 1, "5")));
+        long position = journal.appendExchanges(Collections.singletonList(exchange(1, 3, "10")),
+                Collections.singletonList(Money.of("15")));
+        journal.awaitDurable(position);
+        return position;
+    }
+
+    private static ExchangeRequest exchange(int from, int to, String amount) {
+        return new ExchangeRequest(new Account(from, null, null), new Account(to, null, null), Money.of(amount));
+    }
+}
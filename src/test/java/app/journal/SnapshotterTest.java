@@ -0,0 +1,125 @@
+package app.journal;
+
+import app.model.Account;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import app.service.InMemoryLedgerService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SnapshotterTest {
+
+    /*
+        balances of the snapshot differ from the journal, so only records after its position can have been replayed on them
+     */
+    @Test
+    void restoreReplaysOnlyRecordsWrittenAfterSnapshot(@TempDir Path directory) throws IOException {
+        Path snapshotPath = directory.resolve("accounts.snapshot");
+        try (Journal journal = new Journal(directory.resolve("transfers.journal"), 0)) {
+            journal.appendAccount(new Account(1, "test1", Money.of("100")));
+            long position = journal.appendAccount(new Account(2, "test2", Money.of("100")));
+            journal.awaitDurable(journal.appendExchanges(Collections.singletonList(exchange(1, 2, "10"))));
+            writeSnapshot(snapshotPath, journal.getId(), position,
+                    new Account(1, "test1", Money.of("50")), new Account(2, "test2", Money.of("150")));
+
+            InMemoryLedgerService ledger = new InMemoryLedgerService(2);
+            assertEquals(2, Snapshotter.restore(snapshotPath, journal, ledger));
+            assertEquals(Money.of("40"), ledger.getAccount(1).getAccount().getBalance());
+            assertEquals(Money.of("160"), ledger.getAccount(2).getAccount().getBalance());
+        }
+    }
+
+    @Test
+    void snapshotOfAnotherJournalIsIgnored(@TempDir Path directory) throws IOException {
+        Path snapshotPath = directory.resolve("accounts.snapshot");
+        try (Journal journal = new Journal(directory.resolve("transfers.journal"), 0)) {
+            journal.awaitDurable(journal.appendAccount(new Account(1, "test1", Money.of("100"))));
+            writeSnapshot(snapshotPath, journal.getId() + 1, journal.getDurablePosition(),
+                    new Account(1, "test1", Money.of("50")), new Account(2, "test2", Money.of("150")));
+
+            InMemoryLedgerService ledger = new InMemoryLedgerService(2);
+            assertEquals(1, Snapshotter.restore(snapshotPath, journal, ledger));
+            assertEquals(Money.of("100"), ledger.getAccount(1).getAccount().getBalance());
+            Assertions.assertTrue(ledger.getAccount(2).getError());
+        }
+    }
+
+    /*
+        a journal started next to an existing snapshot takes it as its starting point
+     */
+    @Test
+    void emptyJournalAdoptsSnapshot(@TempDir Path directory) throws IOException {
+        Path snapshotPath = directory.resolve("accounts.snapshot");
+        writeSnapshot(snapshotPath, 0, 0, new Account(1, "test1", Money.of("50")), new Account(2, "usd", Money.of("150"), "USD"));
+        try (Journal journal = new Journal(directory.resolve("transfers.journal"), 0)) {
+            InMemoryLedgerService ledger = new InMemoryLedgerService(2);
+            assertEquals(2, Snapshotter.restore(snapshotPath, journal, ledger));
+            assertEquals(new Account(2, "usd", Money.of("150"), "USD"), ledger.getAccount(2).getAccount());
+
+            Snapshot adopted = Snapshot.load(snapshotPath);
+            assertEquals(journal.getId(), adopted.getJournalId());
+            assertEquals(journal.getDurablePosition(), adopted.getJournalPosition());
+        }
+    }
+
+    /*
+        the second snapshot folds only records after the first one into it
+     */
+    @Test
+    void snapshotsFromJournalFollowItsRecords(@TempDir Path directory) throws IOException {
+        Path snapshotPath = directory.resolve("accounts.snapshot");
+        try (Journal journal = new Journal(directory.resolve("transfers.journal"), 0);
+             Snapshotter snapshotter = new Snapshotter(snapshotPath, journal, null)) {
+            journal.appendAccount(new Account(1, "test1", Money.of("100")));
+            journal.awaitDurable(journal.appendAccount(new Account(2, "test2", Money.of("100"))));
+            snapshotter.snapshot();
+            assertEquals(journal.getDurablePosition(), Snapshot.load(snapshotPath).getJournalPosition());
+
+            journal.appendExchanges(Collections.singletonList(exchange(1, 2, "10")));
+            journal.awaitDurable(journal.appendAccount(new Account(3, "test3", Money.of("100"))));
+            snapshotter.snapshot();
+
+            Snapshot snapshot = Snapshot.load(snapshotPath);
+            assertEquals(journal.getId(), snapshot.getJournalId());
+            assertEquals(journal.getDurablePosition(), snapshot.getJournalPosition());
+            assertEquals(new ArrayList<>(journal.replay()), new ArrayList<>(snapshot.accounts()));
+        }
+    }
+
+    @Test
+    void corruptedSnapshotIsNotLoaded(@TempDir Path directory) throws IOException {
+        Path snapshotPath = directory.resolve("accounts.snapshot");
+        writeSnapshot(snapshotPath, 0, 0, new Account(1, "test1", Money.of("50")));
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.WRITE)) {
+            // first byte of the balance of the account
+            channel.write(ByteBuffer.wrap(new byte[]{1}), 36);
+        }
+        IOException e = Assertions.assertThrows(IOException.class, () -> Snapshot.load(snapshotPath));
+        Assertions.assertTrue(e.getMessage().endsWith("is corrupted"), e.getMessage());
+        Assertions.assertNull(Snapshot.load(directory.resolve("missing.snapshot")));
+    }
+
+    private static void writeSnapshot(Path path, long journalId, long journalPosition, Account... accounts) throws IOException {
+        try (Snapshot.Writer writer = Snapshot.writer(path, journalId, journalPosition)) {
+            for (Account account : accounts) {
+                writer.write(account);
+            }
+            writer.commit();
+        }
+    }
+
+    private static ExchangeRequest exchange(int from, int to, String amount) {
+        return new ExchangeRequest(new Account(from, null, null), new Account(to, null, null), Money.of(amount));
+    }
+}
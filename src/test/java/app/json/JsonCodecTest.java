@@ -0,0 +1,62 @@
+package app.json;
+
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.CompositeResponseBuilder;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import com.google.gson.JsonParseException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JsonCodecTest {
+    private final JsonCodec codec = new JsonCodec();
+
+    @Test
+    void readsExchangeRequest() {
+        ExchangeRequest exchangeRequest = codec.read(json("{\"from\":{\"id\":1},\"to\":{\"id\":2},\"amount\":\"35.5\"}"), ExchangeRequest.class);
+        assertEquals(1, exchangeRequest.getFrom().getId());
+        assertEquals(2, exchangeRequest.getTo().getId());
+        assertEquals(Money.of("35.5"), exchangeRequest.getAmount());
+    }
+
+    /*
+        routes answer JsonParseException as a bad request, anything else would be a 500
+     */
+    @Test
+    void malformedIdsAreParseErrors() {
+        for (String id : new String[]{"1.5", "99999999999", "\"one\""}) {
+            Assertions.assertThrows(JsonParseException.class,
+                    () -> codec.read(json("{\"id\":" + id + ",\"name\":\"Jon\",\"balance\":100}"), Account.class), id);
+            Assertions.assertThrows(JsonParseException.class,
+                    () -> codec.read(json("{\"from\":{\"id\":" + id + "},\"to\":{\"id\":2},\"amount\":1}"), ExchangeRequest.class), id);
+        }
+    }
+
+    @Test
+    void writesWhatItReads() throws IOException {
+        CompositeResponse compositeResponse = new CompositeResponseBuilder().setError(false).setMessage("ok")
+                .setAccounts(Arrays.asList(new Account(1, "Jon", Money.of("100.1")), new Account(2, "Ann", Money.of("0.01"), "USD")))
+                .setCredited(Money.of("3")).createCompositeResponse();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(out, compositeResponse);
+        CompositeResponse read = codec.read(new ByteArrayInputStream(out.toByteArray()), CompositeResponse.class);
+        assertEquals(compositeResponse.getAccounts(), read.getAccounts());
+        assertEquals(compositeResponse.getCredited(), read.getCredited());
+        assertEquals("ok", read.getMessage());
+        Assertions.assertFalse(read.getError());
+    }
+
+    private static InputStream json(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,69 @@
+package app.model;
+
+import app.json.JsonCodec;
+import com.google.gson.JsonParseException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MoneyTest {
+
+    @Test
+    void keepsAmountsAsMinorUnits() {
+        assertEquals(10050, Money.of("100.5").getMinorUnits());
+        assertEquals(Money.of("1.5"), Money.of("1.50"));
+        assertEquals(Money.of("1.5"), Money.of(new BigDecimal("1.500")));
+        assertEquals(-1, Money.of("-0.01").getMinorUnits());
+        Assertions.assertSame(Money.ZERO, Money.of("0.00"));
+        assertEquals("100.50", Money.of("100.5").toString());
+        assertEquals(new BigDecimal("0.07"), Money.ofMinor(7).toBigDecimal());
+    }
+
+    /*
+        no silent rounding - an amount finer than a cent or larger than a long is refused
+     */
+    @Test
+    void refusesAmountsItCantHoldExactly() {
+        Assertions.assertThrows(ArithmeticException.class, () -> Money.of("1.005"));
+        Assertions.assertThrows(ArithmeticException.class, () -> Money.of("92233720368547758.08"));
+        Assertions.assertThrows(ArithmeticException.class, () -> Money.ofMinor(Long.MAX_VALUE).add(Money.ofMinor(1)));
+        Assertions.assertThrows(ArithmeticException.class, () -> Money.ofMinor(Long.MIN_VALUE).subtract(Money.ofMinor(1)));
+    }
+
+    @Test
+    void addsAndComparesExactly() {
+        Money sum = Money.ZERO;
+        for (int i = 0; i < 10; i++) {
+            sum = sum.add(Money.of("0.1"));
+        }
+        assertEquals(Money.of("1"), sum);
+        assertEquals(Money.of("0.9"), sum.subtract(Money.of("0.1")));
+        Assertions.assertTrue(Money.of("0.01").compareTo(Money.ZERO) > 0);
+    }
+
+    @Test
+    void jsonTakesNumbersAndStringsAndWritesNumbers() throws IOException {
+        JsonCodec codec = new JsonCodec();
+        Account fromNumber = codec.read(json("{\"id\":1,\"balance\":100.1}"), Account.class);
+        Account fromString = codec.read(json("{\"id\":1,\"balance\":\"100.10\"}"), Account.class);
+        assertEquals(Money.of("100.1"), fromNumber.getBalance());
+        assertEquals(fromNumber.getBalance(), fromString.getBalance());
+        Assertions.assertThrows(JsonParseException.class,
+                () -> codec.read(json("{\"id\":1,\"balance\":0.001}"), Account.class));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(out, new Account(1, "Jon", Money.of("100.1")));
+        Assertions.assertTrue(out.toString(StandardCharsets.UTF_8).contains("\"balance\":100.10"), out.toString(StandardCharsets.UTF_8));
+    }
+
+    private static ByteArrayInputStream json(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,112 @@
+package app.service;
+
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CachingDAOServiceTest {
+
+    @Test
+    void readsAreCachedUntilAWriteOfTheAccount() {
+        InMemoryLedgerService ledger = new InMemoryLedgerService(2);
+        CachingDAOService cache = new CachingDAOService(ledger, 100);
+        cache.insertAccount(new Account(0, "test1", Money.of("100")));
+        cache.insertAccount(new Account(0, "test2", Money.of("100")));
+
+        cache.getAccount(1);
+        cache.getAccount(1);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        cache.performExchange(exchange(1, 2, "10"));
+        assertEquals(Money.of("90"), cache.getAccount(1).getAccount().getBalance());
+        assertEquals(2, cache.getMisses());
+    }
+
+    /*
+        a read of the balance before the transfer finishes after it, its stale value must not be cached
+     */
+    @Test
+    void readOverlappingAWriteIsNotCached() throws Exception {
+        CountDownLatch read = new CountDownLatch(1);
+        CountDownLatch written = new CountDownLatch(1);
+        InMemoryLedgerService ledger = new InMemoryLedgerService(2);
+        DAOService slowReads = new ForwardingDAOService(ledger) {
+            @Override
+            public CompositeResponse getAccount(int id) {
+                CompositeResponse compositeResponse = delegate.getAccount(id);
+                read.countDown();
+                try {
+                    written.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return compositeResponse;
+            }
+        };
+        CachingDAOService cache = new CachingDAOService(slowReads, 100);
+        cache.insertAccount(new Account(0, "test1", Money.of("100")));
+        cache.insertAccount(new Account(0, "test2", Money.of("100")));
+
+        CompletableFuture<CompositeResponse> stale = CompletableFuture.supplyAsync(() -> cache.getAccount(1));
+        Assertions.assertTrue(read.await(10, TimeUnit.SECONDS));
+        Assertions.assertFalse(cache.performExchange(exchange(1, 2, "10")).getError());
+        written.countDown();
+        assertEquals(Money.of("100"), stale.get(10, TimeUnit.SECONDS).getAccount().getBalance());
+
+        assertEquals(0, cache.getSize());
+        assertEquals(Money.of("90"), cache.getAccount(1).getAccount().getBalance());
+    }
+
+    @Test
+    void concurrentReadsAndTransfersLeaveCacheMatchingStorage() throws Exception {
+        InMemoryLedgerService ledger = new InMemoryLedgerService(4);
+        CachingDAOService cache = new CachingDAOService(ledger, 16);
+        int accountsCount = 32;
+        for (int i = 0; i < accountsCount; i++) {
+            cache.insertAccount(new Account(0, "test" + i, Money.of("1000")));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            long seed = t;
+            tasks.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 2000; i++) {
+                    int from = random.nextInt(accountsCount) + 1;
+                    if (seed % 2 == 0) {
+                        cache.getAccount(from);
+                    } else {
+                        cache.performExchange(exchange(from, from % accountsCount + 1, "1"));
+                    }
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get(1, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+        for (int id = 1; id <= accountsCount; id++) {
+            assertEquals(ledger.getAccount(id).getAccount(), cache.getAccount(id).getAccount());
+        }
+    }
+
+    private static ExchangeRequest exchange(int from, int to, String amount) {
+        return new ExchangeRequest(new Account(from, null, null), new Account(to, null, null), Money.of(amount));
+    }
+}
@@ -0,0 +1,232 @@
+package app.service;
+
+import app.Application;
+import app.database.DBConnector;
+import app.fx.FxRateTable;
+import app.fx.FxRates;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DAOServiceImplTest {
+    DAOService daoService;
+    private String mode;
+
+    @BeforeEach
+    void init() {
+        Application.initProperties();
+        mode = System.getProperty("dao.exchange.mode");
+    }
+
+    @AfterEach
+    void cleanUp() {
+        daoService.drop();
+        System.setProperty("dao.exchange.mode", mode);
+    }
+
+    /*
+        every engine and mode follows one rule - the whole balance can be sent, a cent more can't
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"atomic", "optimistic", "memory"})
+    void wholeBalanceIsTheLimitOfATransfer(String engine) {
+        daoService = create(engine);
+        createAccounts(3);
+
+        assertRejected(daoService.performExchange(exchange(1, 2, "0")), "Amount should be positive");
+        assertRejected(daoService.performExchange(exchange(1, 2, "-1")), "Amount should be positive");
+        assertRejected(daoService.performExchange(exchange(1, 2, "100.01")), "Not enough money");
+        assertEquals(Money.of("100"), balance(1));
+
+        CompositeResponse whole = daoService.performExchange(exchange(1, 2, "100"));
+        Assertions.assertFalse(whole.getError(), whole.getMessage());
+        assertEquals(Money.ZERO, balance(1));
+        assertEquals(Money.of("200"), balance(2));
+        assertRejected(daoService.performExchange(exchange(1, 2, "0.01")), "Not enough money");
+
+        CompositeResponse batch = daoService.performExchanges(Collections.singletonList(exchange(3, 2, "100")), true);
+        Assertions.assertFalse(batch.getError(), batch.getMessage());
+        assertEquals(Money.ZERO, balance(3));
+        assertEquals(Money.of("300"), balance(2));
+    }
+
+    /*
+        the second exchange spends money the first one brings, the third one can't be covered
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"atomic", "optimistic", "memory"})
+    void atomicBatchIsAllOrNothing(String engine) {
+        daoService = create(engine);
+        createAccounts(3);
+        List<ExchangeRequest> batch = Arrays.asList(exchange(1, 2, "60"), exchange(2, 3, "160"), exchange(3, 1, "500"));
+
+        CompositeResponse rolledBack = daoService.performExchanges(batch, true);
+        Assertions.assertTrue(rolledBack.getError());
+        assertEquals(3, rolledBack.getResults().size());
+        assertEquals("Batch was rolled back", rolledBack.getResults().get(0).getMessage());
+        assertRejected(rolledBack.getResults().get(2), "Not enough money");
+        for (int id = 1; id <= 3; id++) {
+            assertEquals(Money.of("100"), balance(id));
+        }
+
+        CompositeResponse partial = daoService.performExchanges(batch, false);
+        Assertions.assertFalse(partial.getError());
+        Assertions.assertFalse(partial.getResults().get(0).getError());
+        Assertions.assertFalse(partial.getResults().get(1).getError());
+        Assertions.assertTrue(partial.getResults().get(2).getError());
+        // accounts as every exchange left them
+        assertEquals(Money.of("0"), partial.getResults().get(1).getAccounts().get(0).getBalance());
+        assertEquals(Money.of("40"), balance(1));
+        assertEquals(Money.ZERO, balance(2));
+        assertEquals(Money.of("260"), balance(3));
+    }
+
+    /*
+        pages follow each other by the last id without gaps or repeats, the ledger merges pages of its shards
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"atomic", "memory"})
+    void keysetPagesAndStreamCoverAllAccountsInIdOrder(String engine) {
+        daoService = create(engine);
+        createAccounts(23);
+
+        List<Integer> paged = new ArrayList<>();
+        int afterId = 0;
+        while (true) {
+            List<Account> page = daoService.getAccounts(afterId, 5).getAccounts();
+            Assertions.assertTrue(page.size() <= 5);
+            page.forEach(account -> paged.add(account.getId()));
+            if (page.size() < 5) {
+                break;
+            }
+            afterId = page.get(page.size() - 1).getId();
+        }
+        List<Integer> streamed = new ArrayList<>();
+        CompositeResponse stream = daoService.streamAllAccounts(account -> streamed.add(account.getId()));
+        Assertions.assertFalse(stream.getError());
+
+        List<Integer> expected = new ArrayList<>();
+        for (int id = 1; id <= 23; id++) {
+            expected.add(id);
+        }
+        assertEquals(expected, paged);
+        assertEquals(expected, streamed);
+        Assertions.assertTrue(daoService.getAccounts(23, 5).getAccounts().isEmpty());
+        assertEquals(Arrays.asList(21, 22, 23), ids(daoService.getAccounts(20, 100).getAccounts()));
+    }
+
+    /*
+        import stops at an account without balance, the batch it was in is dropped, batches before it keep their ids
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"atomic", "memory"})
+    void importStopsAtInvalidAccountKeepingCommittedBatches(String engine) {
+        daoService = create(engine);
+        List<Account> accounts = Arrays.asList(new Account(0, "test1", Money.of("100")), new Account(0, "test2", Money.of("100")),
+                new Account(0, "test3", Money.of("100")), new Account(0, "test4", null), new Account(0, "test5", Money.of("100")));
+        List<Account> created = new ArrayList<>();
+
+        CompositeResponse response = daoService.insertAccounts(accounts.iterator(), 2, created::add);
+        assertRejected(response, "Couldn't insert");
+        Assertions.assertTrue(response.getMessage().endsWith("created 2 accounts before it"), response.getMessage());
+        assertEquals(Arrays.asList(1, 2), ids(created));
+        assertEquals(Arrays.asList(1, 2), ids(daoService.getAccounts(0, 100).getAccounts()));
+
+        List<Account> unknownCurrency = Arrays.asList(new Account(0, "test6", Money.of("100")),
+                new Account(0, "test7", Money.of("100"), "XXX"));
+        assertRejected(daoService.insertAccounts(unknownCurrency.iterator(), 2, created::add), "Couldn't insert");
+        assertEquals(2, daoService.getAccounts(0, 100).getAccounts().size());
+
+        CompositeResponse imported = daoService.insertAccounts(accounts.subList(0, 3).iterator(), 2, created::add);
+        Assertions.assertFalse(imported.getError(), imported.getMessage());
+        assertEquals(5, created.size());
+        assertEquals(5, daoService.getAccounts(0, 100).getAccounts().size());
+    }
+
+    /*
+        7 and 6 are kept by different shards of the ledger, the shard of 7 takes it back when 6 turns out to be taken
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"atomic", "memory"})
+    void insertWithIdsIsAllOrNothing(String engine) {
+        daoService = create(engine);
+        CompositeResponse inserted = daoService.insertAccountsWithIds(Arrays.asList(
+                new Account(5, "test5", Money.of("100")), new Account(6, "test6", Money.of("100"), "USD")));
+        Assertions.assertFalse(inserted.getError(), inserted.getMessage());
+        assertEquals(new Account(6, "test6", Money.of("100"), "USD"), daoService.getAccount(6).getAccount());
+
+        assertRejected(daoService.insertAccountsWithIds(Arrays.asList(
+                new Account(7, "test7", Money.of("100")), new Account(6, "other", Money.of("1")))), "Couldn't insert");
+        assertRejected(daoService.insertAccountsWithIds(Arrays.asList(new Account(9, "test9", Money.of("100")),
+                new Account(12, "test12", Money.of("100")), new Account(9, "other", Money.of("1")))), "Couldn't insert");
+        assertEquals(Arrays.asList(5, 6), ids(daoService.getAccounts(0, 100).getAccounts()));
+        assertEquals(new Account(6, "test6", Money.of("100"), "USD"), daoService.getAccount(6).getAccount());
+
+        CompositeResponse generated = daoService.insertAccount(new Account(0, "test1", Money.of("100")));
+        Assertions.assertFalse(generated.getError(), generated.getMessage());
+        assertEquals(3, daoService.getAccounts(0, 100).getAccounts().size());
+    }
+
+    @Test
+    void atomicExchangeConvertsToCurrencyOfReceiver() {
+        System.setProperty("dao.exchange.mode", "atomic");
+        daoService = new DAOServiceImpl(new DBConnector(),
+                new FxRateTable(FxRates.of("EUR", Collections.singletonMap("USD", new BigDecimal("1.5")))));
+        daoService.insertAccount(new Account(0, "eur", Money.of("100")));
+        daoService.insertAccount(new Account(0, "usd", Money.of("100"), "USD"));
+
+        CompositeResponse response = daoService.performExchange(exchange(1, 2, "10"));
+        Assertions.assertFalse(response.getError(), response.getMessage());
+        assertEquals(Money.of("15"), response.getCredited());
+        assertEquals(Money.of("115"), balance(2));
+        assertRejected(daoService.performExchange(exchange(1, 3, "10")), "No accounts found for id 3");
+    }
+
+    private DAOService create(String engine) {
+        if ("memory".equals(engine)) {
+            return new InMemoryLedgerService(3);
+        }
+        System.setProperty("dao.exchange.mode", engine);
+        return new DAOServiceImpl(new DBConnector());
+    }
+
+    private void createAccounts(int count) {
+        for (int i = 1; i <= count; i++) {
+            daoService.insertAccount(new Account(0, "test" + i, Money.of("100")));
+        }
+    }
+
+    private static List<Integer> ids(List<Account> accounts) {
+        List<Integer> ids = new ArrayList<>();
+        accounts.forEach(account -> ids.add(account.getId()));
+        return ids;
+    }
+
+    private Money balance(int id) {
+        return daoService.getAccount(id).getAccount().getBalance();
+    }
+
+    private static void assertRejected(CompositeResponse response, String message) {
+        Assertions.assertTrue(response.getError());
+        Assertions.assertTrue(response.getMessage().startsWith(message), response.getMessage());
+    }
+
+    static ExchangeRequest exchange(int from, int to, String amount) {
+        return new ExchangeRequest(new Account(from, null, null), new Account(to, null, null), Money.of(amount));
+    }
+}
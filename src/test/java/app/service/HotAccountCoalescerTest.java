@@ -0,0 +1,153 @@
+package app.service;
+
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static app.service.DAOServiceImplTest.exchange;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HotAccountCoalescerTest {
+
+    @Test
+    void coldTransfersAndTransfersWithKeyGoRegularPath() {
+        InMemoryLedgerService ledger = ledger(2);
+        AtomicInteger regular = new AtomicInteger();
+        Function<ExchangeRequest, CompositeResponse> regularPath = exchangeRequest -> {
+            regular.incrementAndGet();
+            return ledger.performExchange(exchangeRequest);
+        };
+
+        HotAccountCoalescer cold = new HotAccountCoalescer(ledger, new AccountLockManager(), 10, 100);
+        Assertions.assertFalse(cold.performExchange(exchange(1, 2, "10"), regularPath).getError());
+        assertEquals(1, regular.get());
+
+        HotAccountCoalescer hot = new HotAccountCoalescer(ledger, new AccountLockManager(), 0, 100);
+        ExchangeRequest withKey = new ExchangeRequest(new Account(1, null, null), new Account(2, null, null),
+                Money.of("10"), "key-1");
+        Assertions.assertFalse(hot.performExchange(withKey, regularPath).getError());
+        assertEquals(2, regular.get());
+
+        CompositeResponse coalesced = hot.performExchange(exchange(1, 2, "10"), regularPath);
+        assertEquals(2, regular.get());
+        Assertions.assertFalse(coalesced.getError(), coalesced.getMessage());
+        assertEquals(Money.of("70"), coalesced.getAccounts().get(0).getBalance());
+        assertEquals(Money.of("130"), coalesced.getAccounts().get(1).getBalance());
+    }
+
+    /*
+        every transfer gets the result of its own exchange in the batch, not the one of the batch
+     */
+    @Test
+    void everyTransferGetsItsOwnResult() {
+        InMemoryLedgerService ledger = ledger(2);
+        HotAccountCoalescer coalescer = new HotAccountCoalescer(ledger, new AccountLockManager(), 0, 100);
+        Function<ExchangeRequest, CompositeResponse> regularPath = exchangeRequest -> {
+            throw new AssertionError("Hot transfer went regular path");
+        };
+
+        CompositeResponse refused = coalescer.performExchange(exchange(1, 2, "100.01"), regularPath);
+        Assertions.assertTrue(refused.getError());
+        Assertions.assertTrue(refused.getMessage().startsWith("Not enough money"), refused.getMessage());
+        Assertions.assertFalse(coalescer.performExchange(exchange(1, 2, "100"), regularPath).getError());
+        Assertions.assertTrue(coalescer.performExchange(exchange(1, 3, "1"), regularPath).getError());
+        assertEquals(Money.ZERO, ledger.getAccount(1).getAccount().getBalance());
+    }
+
+    @Test
+    void failedBatchFailsEveryTransfer() {
+        InMemoryLedgerService ledger = ledger(2);
+        DAOService failing = new ForwardingDAOService(ledger) {
+            @Override
+            public CompositeResponse performExchanges(List<ExchangeRequest> exchangeRequests, boolean atomic) {
+                throw new IllegalStateException("storage is down");
+            }
+        };
+        HotAccountCoalescer coalescer = new HotAccountCoalescer(failing, new AccountLockManager(), 0, 100);
+
+        CompositeResponse response = coalescer.performExchange(exchange(1, 2, "10"), failing::performExchange);
+        Assertions.assertTrue(response.getError());
+        assertEquals("Couldn't perform exchange: storage is down", response.getMessage());
+        assertEquals(Money.of("100"), ledger.getAccount(1).getAccount().getBalance());
+    }
+
+    /*
+        many senders pay into one hot account that spends as it receives, money is neither lost nor created
+        and the hot account spends only what it has
+     */
+    @Test
+    void concurrentTransfersOfHotAccountConserveMoney() throws Exception {
+        int senders = 8;
+        InMemoryLedgerService ledger = ledger(senders + 1);
+        HotAccountCoalescer coalescer = new HotAccountCoalescer(ledger, new AccountLockManager(), 1, 16);
+        AccountLockManager lockManager = new AccountLockManager();
+        Function<ExchangeRequest, CompositeResponse> regularPath = exchangeRequest -> {
+            lockManager.lock(exchangeRequest.getFrom().getId(), exchangeRequest.getTo().getId());
+            try {
+                return ledger.performExchange(exchangeRequest);
+            } finally {
+                lockManager.unlock(exchangeRequest.getFrom().getId(), exchangeRequest.getTo().getId());
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(senders + 1);
+        List<Future<Integer>> tasks = new ArrayList<>();
+        for (int sender = 2; sender <= senders + 1; sender++) {
+            int from = sender;
+            tasks.add(executor.submit(() -> {
+                int succeeded = 0;
+                for (int i = 0; i < 100; i++) {
+                    CompositeResponse response = coalescer.performExchange(exchange(from, 1, "1"), regularPath);
+                    Assertions.assertFalse(response.getError(), response.getMessage());
+                    assertEquals(from, response.getAccounts().get(0).getId());
+                    succeeded++;
+                }
+                return succeeded;
+            }));
+        }
+        tasks.add(executor.submit(() -> {
+            int succeeded = 0;
+            for (int i = 0; i < 1000; i++) {
+                CompositeResponse response = coalescer.performExchange(exchange(1, 2, "1"), regularPath);
+                if (!response.getError()) {
+                    Assertions.assertTrue(response.getAccounts().get(0).getBalance().getMinorUnits() >= 0);
+                    succeeded++;
+                }
+            }
+            return succeeded;
+        }));
+        for (Future<Integer> task : tasks) {
+            task.get(1, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+        int spent = tasks.get(senders).get();
+
+        long total = 0;
+        for (int id = 1; id <= senders + 1; id++) {
+            Money balance = ledger.getAccount(id).getAccount().getBalance();
+            Assertions.assertTrue(balance.getMinorUnits() >= 0);
+            total += balance.getMinorUnits();
+        }
+        assertEquals(Money.of("100").getMinorUnits() * (senders + 1), total);
+        assertEquals(Money.of(String.valueOf(100 + senders * 100 - spent)), ledger.getAccount(1).getAccount().getBalance());
+    }
+
+    private static InMemoryLedgerService ledger(int accountsCount) {
+        InMemoryLedgerService ledger = new InMemoryLedgerService(2);
+        for (int i = 1; i <= accountsCount; i++) {
+            ledger.insertAccount(new Account(0, "test" + i, Money.of("100")));
+        }
+        return ledger;
+    }
+}
@@ -0,0 +1,121 @@
+package app.service;
+
+import app.Application;
+import app.database.DBConnector;
+import app.journal.Journal;
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IdempotencyTest {
+    DAOService daoService;
+
+    @BeforeEach
+    void init() {
+        Application.initProperties();
+    }
+
+    @AfterEach
+    void cleanUp() {
+        if (daoService != null) {
+            daoService.drop();
+        }
+    }
+
+    @Test
+    void repeatedKeyIsAnsweredWithFirstResponseWithoutTransferringAgain() {
+        daoService = new IdempotentDAOService(new InMemoryLedgerService(2), 100, 60);
+        createAccounts();
+
+        CompositeResponse first = daoService.performExchange(exchange(1, 2, "10", "key-1"));
+        CompositeResponse second = daoService.performExchange(exchange(1, 2, "10", "key-1"));
+        Assertions.assertFalse(second.getError());
+        Assertions.assertSame(first, second);
+        assertEquals(Money.of("90"), daoService.getAccount(1).getAccount().getBalance());
+
+        CompositeResponse conflict = daoService.performExchange(exchange(1, 2, "20", "key-1"));
+        Assertions.assertTrue(conflict.getError());
+        Assertions.assertTrue(conflict.getMessage().contains("was used for another exchange"), conflict.getMessage());
+        assertEquals(Money.of("90"), daoService.getAccount(1).getAccount().getBalance());
+    }
+
+    @Test
+    void failedExchangeGivesItsKeyUp() {
+        daoService = new IdempotentDAOService(new InMemoryLedgerService(2), 100, 60);
+        createAccounts();
+
+        Assertions.assertTrue(daoService.performExchange(exchange(1, 2, "1000", "key-1")).getError());
+        Assertions.assertFalse(daoService.performExchange(exchange(1, 2, "10", "key-1")).getError());
+        assertEquals(Money.of("90"), daoService.getAccount(1).getAccount().getBalance());
+    }
+
+    @Test
+    void dropForgetsKeysAndTheirCount() {
+        IdempotentDAOService idempotent = new IdempotentDAOService(new InMemoryLedgerService(2), 2, 60);
+        daoService = idempotent;
+        createAccounts();
+        daoService.performExchange(exchange(1, 2, "10", "key-1"));
+        daoService.performExchange(exchange(1, 2, "10", "key-2"));
+        assertEquals(2, idempotent.getSize());
+
+        daoService.drop();
+        assertEquals(0, idempotent.getSize());
+
+        createAccounts();
+        CompositeResponse first = daoService.performExchange(exchange(1, 2, "10", "key-1"));
+        CompositeResponse second = daoService.performExchange(exchange(1, 2, "10", "key-3"));
+        assertEquals(2, idempotent.getSize());
+        Assertions.assertSame(first, daoService.performExchange(exchange(1, 2, "10", "key-1")));
+        Assertions.assertSame(second, daoService.performExchange(exchange(1, 2, "10", "key-3")));
+        assertEquals(Money.of("80"), daoService.getAccount(1).getAccount().getBalance());
+    }
+
+    /*
+        a key evicted from memory is still found in the table, its replay must not be journaled a second time
+     */
+    @Test
+    void persistedKeyReplayIsNotJournaledAgain(@TempDir Path directory) throws IOException {
+        String persist = System.getProperty("idempotency.persist");
+        System.setProperty("idempotency.persist", "true");
+        try (Journal journal = new Journal(directory.resolve("transfers.journal"), 0)) {
+            daoService = new JournalingDAOService(new DAOServiceImpl(new DBConnector()), journal);
+            createAccounts();
+
+            Assertions.assertFalse(daoService.performExchange(exchange(1, 2, "10", "key-1")).getError());
+            CompositeResponse replay = daoService.performExchange(exchange(1, 2, "10", "key-1"));
+            Assertions.assertFalse(replay.getError());
+            Assertions.assertTrue(replay.isReplayed());
+
+            List<Account> replayed = new ArrayList<>(journal.replay());
+            assertEquals(Money.of("90"), replayed.get(0).getBalance());
+            assertEquals(Money.of("110"), replayed.get(1).getBalance());
+            // the journal is closed before cleanUp runs
+            daoService.drop();
+            daoService = null;
+        } finally {
+            System.setProperty("idempotency.persist", persist);
+        }
+    }
+
+    private void createAccounts() {
+        daoService.insertAccount(new Account(0, "test1", Money.of("100")));
+        daoService.insertAccount(new Account(0, "test2", Money.of("100")));
+    }
+
+    private static ExchangeRequest exchange(int from, int to, String amount, String idempotencyKey) {
+        return new ExchangeRequest(new Account(from, null, null), new Account(to, null, null), Money.of(amount), idempotencyKey);
+    }
+}
@@ -0,0 +1,77 @@
+package app.service;
+
+import app.model.Account;
+import app.model.CompositeResponse;
+import app.model.ExchangeRequest;
+import app.model.Money;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class InMemoryLedgerServiceTest {
+    // two shards - odd ids on one, even ids on the other
+    InMemoryLedgerService ledger;
+
+    @BeforeEach
+    void init() {
+        ledger = new InMemoryLedgerService(2);
+        for (int i = 1; i <= 3; i++) {
+            ledger.insertAccount(new Account(0, "test" + i, Money.of("100")));
+        }
+    }
+
+    @Test
+    void rejectsNonPositiveAndOverdraftAmounts() {
+        for (String amount : new String[]{"-5", "0", "100.01"}) {
+            // same shard and across shards
+            for (int to : new int[]{3, 2}) {
+                CompositeResponse response = ledger.performExchange(exchange(1, to, amount));
+                Assertions.assertTrue(response.getError(), amount + " to " + to);
+            }
+        }
+        Assertions.assertTrue(ledger.performExchange(exchange(1, 2, "-5")).getMessage().startsWith("Amount should be positive"));
+        for (int id = 1; id <= 3; id++) {
+            assertEquals(Money.of("100"), ledger.getAccount(id).getAccount().getBalance());
+        }
+    }
+
+    @Test
+    void crossShardTransferMovesMoneyAndReturnsAccounts() {
+        CompositeResponse response = ledger.performExchange(exchange(1, 2, "30.5"));
+        Assertions.assertFalse(response.getError());
+        assertEquals(Money.of("69.5"), response.getAccounts().get(0).getBalance());
+        assertEquals(Money.of("130.5"), response.getAccounts().get(1).getBalance());
+        assertEquals(Money.of("69.5"), ledger.getAccount(1).getAccount().getBalance());
+        assertEquals(Money.of("130.5"), ledger.getAccount(2).getAccount().getBalance());
+    }
+
+    @Test
+    void crossShardTransferToMissingAccountReturnsReservation() {
+        CompositeResponse response = ledger.performExchange(exchange(1, 4, "30"));
+        Assertions.assertTrue(response.getError());
+        assertEquals(Money.of("100"), ledger.getAccount(1).getAccount().getBalance());
+    }
+
+    /*
+        an interrupted caller still waits for both steps, money never stays reserved
+     */
+    @Test
+    void interruptedCrossShardTransferKeepsTotalBalance() {
+        Thread.currentThread().interrupt();
+        CompositeResponse response;
+        try {
+            response = ledger.performExchange(exchange(1, 2, "30"));
+        } finally {
+            Assertions.assertTrue(Thread.interrupted());
+        }
+        Assertions.assertFalse(response.getError());
+        assertEquals(Money.of("70"), ledger.getAccount(1).getAccount().getBalance());
+        assertEquals(Money.of("130"), ledger.getAccount(2).getAccount().getBalance());
+    }
+
+    private static ExchangeRequest exchange(int from, int to, String amount) {
+        return new ExchangeRequest(new Account(from, null, null), new Account(to, null, null), Money.of(amount));
+    }
+}
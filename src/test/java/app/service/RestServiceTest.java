@@ -1,11 +1,24 @@
 package app.service;
 
 import app.Application;
+import app.binary.BinaryClient;
+import app.binary.BinaryFrontEnd;
+import app.cluster.ClusterDAOService;
+import app.cluster.HashRing;
+import app.cluster.PartitionDAOService;
 import app.database.DBConnector;
+import app.fx.FxRateTable;
+import app.fx.FxRates;
+import app.json.JsonCodec;
+import app.metrics.Metrics;
 import app.model.Account;
 import app.model.CompositeResponse;
 import app.model.ExchangeRequest;
+import app.model.Money;
+import app.model.Transfer;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
@@ -25,10 +38,18 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -70,7 +91,7 @@ class RestServiceTest {
     @Test
     void checkDeserialization() throws IOException {
         CloseableHttpClient httpClient = HttpClients.createDefault();
-        Account jon = new Account(1, "Jon", BigDecimal.valueOf(100.1));
+        Account jon = new Account(1, "Jon", Money.of(BigDecimal.valueOf(100.1)));
         createAndExecute(jon, CREATE_ACCOUNT, httpClient);
         Account account = getAccountFromRestForId(1, httpClient);
         assertEquals(account, jon);
@@ -90,7 +111,7 @@ class RestServiceTest {
         int initialAmount = 100;
 // also checked for 100_000
         int transfersCount = 1000;
-        BigDecimal ant = BigDecimal.valueOf(initialAmount);
+        Money ant = Money.of(BigDecimal.valueOf(initialAmount));
         Random random = new Random();
 
         for (int i = 0; i < accountsCount; i++) {
@@ -104,7 +125,7 @@ class RestServiceTest {
                 int from = random.nextInt(accountsCount - 1) + 1;
                 int amt = random.nextInt(initialAmount - 1) + 1;
                 int to = accountsCount - from + 1;
-                HttpUriRequest postRequest = createPostRequestForExchange(getAccountFromRestForId(from, httpClient), getAccountFromRestForId(to, httpClient), EXCHANGE, BigDecimal.valueOf(amt));
+                HttpUriRequest postRequest = createPostRequestForExchange(getAccountFromRestForId(from, httpClient), getAccountFromRestForId(to, httpClient), EXCHANGE, Money.of(BigDecimal.valueOf(amt)));
                 CloseableHttpResponse response = httpClient.execute(postRequest);
                 handleResponse(response);
                 return 0;
@@ -112,9 +133,408 @@ class RestServiceTest {
         }
         executorService.invokeAll(tasks);
         List<Account> allAccounts = getAllAccounts(httpClient);
-        BigDecimal reduce = allAccounts.stream().map(Account::getBalance).reduce(BigDecimal.ZERO, BigDecimal::add);
+        Money reduce = allAccounts.stream().map(Account::getBalance).reduce(Money.ZERO, Money::add);
         LOG.debug("Total amount {} ", reduce);
-        Assertions.assertEquals(reduce, BigDecimal.valueOf(initialAmount * accountsCount));
+        Assertions.assertEquals(reduce, Money.of(BigDecimal.valueOf(initialAmount * accountsCount)));
+    }
+
+    /*
+        transfers go straight through RestService locking without HTTP overhead,
+        so thousands of random transfers between any accounts can run in parallel
+        total amount of money in system has to stay the same
+     */
+    @Test
+    void transferMoneyConcurrentlyKeepsTotalBalance() throws InterruptedException {
+        ExecutorService executorService = Executors.newFixedThreadPool(16);
+        int accountsCount = 50;
+        int initialAmount = 100;
+        int transfersCount = 5000;
+        Random random = new Random();
+
+        for (int i = 0; i < accountsCount; i++) {
+            daoService.insertAccount(new Account(0, "test" + i, Money.of(BigDecimal.valueOf(initialAmount))));
+        }
+
+        List<Callable<CompositeResponse>> tasks = new ArrayList<>();
+        for (int i = 0; i < transfersCount; i++) {
+            int from = random.nextInt(accountsCount) + 1;
+            int to = (from + random.nextInt(accountsCount - 1)) % accountsCount + 1;
+            int amt = random.nextInt(initialAmount - 1) + 1;
+            tasks.add(() -> restService.performExchange(new ExchangeRequest(
+                    new Account(from, null, null), new Account(to, null, null), Money.of(BigDecimal.valueOf(amt)))));
+        }
+        executorService.invokeAll(tasks);
+        executorService.shutdown();
+
+        List<Account> allAccounts = daoService.getAllAccounts().getAccounts();
+        assertEquals(accountsCount, allAccounts.size());
+        Money reduce = allAccounts.stream().map(Account::getBalance).reduce(Money.ZERO, Money::add);
+        LOG.debug("Total amount {} ", reduce);
+        assertEquals(Money.of(BigDecimal.valueOf(initialAmount * accountsCount)), reduce);
+    }
+
+    /*
+        nodes of a cluster in one process, wrapped as they are deployed - a transfer between nodes is reserved on one
+        and committed on the other, money is neither lost nor created and every account stays on the node the ring gives it to
+     */
+    @Test
+    void clusterTransfersBetweenNodesKeepTotalBalance() throws InterruptedException {
+        HashRing ring = new HashRing(Arrays.asList("node0", "node1", "node2"), 64);
+        List<DAOService> nodes = new ArrayList<>();
+        for (int i = 0; i < ring.size(); i++) {
+            nodes.add(new IdempotentDAOService(new PartitionDAOService(new InMemoryLedgerService(2), ring, i), 10000, 60));
+        }
+        DAOService cluster = new IdempotentDAOService(new ClusterDAOService(nodes, ring, 3), 10000, 60);
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        int accountsCount = 30;
+        int initialAmount = 100;
+        int transfersCount = 3000;
+        Random random = new Random();
+
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < accountsCount; i++) {
+            Account account = cluster.insertAccount(new Account(0, "test" + i, Money.of(BigDecimal.valueOf(initialAmount)))).getAccount();
+            assertEquals(account, nodes.get(ring.ownerOf(account.getId())).getAccount(account.getId()).getAccount());
+            ids.add(account.getId());
+        }
+
+        List<Callable<CompositeResponse>> tasks = new ArrayList<>();
+        for (int i = 0; i < transfersCount; i++) {
+            int from = random.nextInt(accountsCount);
+            int to = (from + 1 + random.nextInt(accountsCount - 1)) % accountsCount;
+            int amt = random.nextInt(initialAmount - 1) + 1;
+            tasks.add(() -> cluster.performExchange(new ExchangeRequest(new Account(ids.get(from), null, null),
+                    new Account(ids.get(to), null, null), Money.of(BigDecimal.valueOf(amt)))));
+        }
+        executorService.invokeAll(tasks);
+        executorService.shutdown();
+
+        List<Account> allAccounts = cluster.getAllAccounts().getAccounts();
+        assertEquals(accountsCount, allAccounts.size());
+        Money reduce = allAccounts.stream().map(Account::getBalance).reduce(Money.ZERO, Money::add);
+        assertEquals(Money.of(BigDecimal.valueOf(initialAmount * accountsCount)), reduce);
+    }
+
+    /*
+        read model answers from memory, concurrent transfers of the same accounts may answer in another order
+        than they were committed, after them it has to show exactly what the database has
+     */
+    @Test
+    void readModelFollowsConcurrentTransfers() throws InterruptedException {
+        DAOService readModel = new ReadModelDAOService(daoService);
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        int accountsCount = 10;
+        int initialAmount = 100;
+        int transfersCount = 3000;
+        Random random = new Random();
+
+        for (int i = 0; i < accountsCount; i++) {
+            readModel.insertAccount(new Account(0, "test" + i, Money.of(BigDecimal.valueOf(initialAmount))));
+        }
+
+        List<Callable<CompositeResponse>> tasks = new ArrayList<>();
+        for (int i = 0; i < transfersCount; i++) {
+            int from = random.nextInt(accountsCount) + 1;
+            int to = (from + random.nextInt(accountsCount - 1)) % accountsCount + 1;
+            int amt = random.nextInt(initialAmount - 1) + 1;
+            tasks.add(() -> readModel.performExchange(new ExchangeRequest(
+                    new Account(from, null, null), new Account(to, null, null), Money.of(BigDecimal.valueOf(amt)))));
+        }
+        executorService.invokeAll(tasks);
+        executorService.shutdown();
+
+        assertEquals(daoService.getAllAccounts().getAccounts(), readModel.getAllAccounts().getAccounts());
+        assertEquals(daoService.getAccount(1).getAccount(), readModel.getAccount(1).getAccount());
+    }
+
+    @Test
+    void crossCurrencyTransferCreditsConvertedAmount() {
+        FxRateTable fxRateTable = new FxRateTable(FxRates.of("EUR", Collections.singletonMap("USD", new BigDecimal("1.25"))));
+        DAOService fxService = new DAOServiceImpl(new DBConnector(), fxRateTable);
+        Account jon = fxService.insertAccount(new Account(0, "Jon", Money.of("100"))).getAccount();
+        Account snow = fxService.insertAccount(new Account(0, "Snow", Money.of("100"), "USD")).getAccount();
+        assertEquals("EUR", jon.getCurrency());
+        Assertions.assertTrue(fxService.insertAccount(new Account(0, "Arya", Money.of("100"), "GBP")).getError());
+
+        // 12.5125 rounded to cents
+        CompositeResponse exchanged = fxService.performExchange(new ExchangeRequest(jon, snow, Money.of("10.01")));
+        assertEquals(Money.of("12.51"), exchanged.getCredited());
+        assertEquals(Money.of("89.99"), fxService.getAccount(jon.getId()).getAccount().getBalance());
+        assertEquals(Money.of("112.51"), fxService.getAccount(snow.getId()).getAccount().getBalance());
+
+        // next exchange converts with the new rates, 6.255 rounded half even
+        fxRateTable.publish(FxRates.of("EUR", Collections.singletonMap("USD", new BigDecimal("2"))));
+        exchanged = fxService.performExchange(new ExchangeRequest(snow, jon, Money.of("12.51")));
+        assertEquals(Money.of("6.26"), exchanged.getCredited());
+        assertEquals(Money.of("96.25"), exchanged.getAccounts().get(1).getBalance());
+    }
+
+    /*
+        binary protocol - transfers are sent without waiting for answers on one connection,
+        answers are matched by correlation id and all of them take the account locks of the routes
+     */
+    @Test
+    void binaryClientPipelinesTransfersKeepingTotalBalance() throws IOException {
+        BinaryFrontEnd frontEnd = new BinaryFrontEnd(0, 1000, 1, daoService, restService::performExchange);
+        frontEnd.start();
+        int accountsCount = 20;
+        int initialAmount = 100;
+        int transfersCount = 3000;
+        Random random = new Random();
+        try (BinaryClient client = BinaryClient.connect("localhost", frontEnd.getPort())) {
+            for (int i = 0; i < accountsCount; i++) {
+                Account account = client.insertAccount(new Account(0, "test" + i, Money.of(BigDecimal.valueOf(initialAmount))))
+                        .join().getAccount();
+                assertEquals("test" + i, account.getName());
+            }
+            Assertions.assertTrue(client.getAccount(accountsCount + 1).join().getError());
+            CompositeResponse batch = client.performExchanges(Arrays.asList(
+                    new ExchangeRequest(new Account(1, null, null), new Account(2, null, null), Money.of("0.01")),
+                    new ExchangeRequest(new Account(2, null, null), new Account(1, null, null), Money.of("0.01"))), true).join();
+            assertEquals(2, batch.getResults().size());
+            List<ExchangeRequest> oversized = Collections.nCopies(ExchangeRequest.MAX_BATCH_SIZE + 1,
+                    new ExchangeRequest(new Account(1, null, null), new Account(2, null, null), Money.of("0.01")));
+            Assertions.assertTrue(client.performExchanges(oversized, true).join().getError());
+
+            List<CompletableFuture<CompositeResponse>> answers = new ArrayList<>();
+            for (int i = 0; i < transfersCount; i++) {
+                int from = random.nextInt(accountsCount) + 1;
+                int to = (from + random.nextInt(accountsCount - 1)) % accountsCount + 1;
+                int amt = random.nextInt(initialAmount - 1) + 1;
+                answers.add(client.performExchange(new ExchangeRequest(
+                        new Account(from, null, null), new Account(to, null, null), Money.of(BigDecimal.valueOf(amt)))));
+            }
+            answers.forEach(CompletableFuture::join);
+
+            List<Account> allAccounts = client.getAccounts(0, 1000).join().getAccounts();
+            assertEquals(daoService.getAllAccounts().getAccounts(), allAccounts);
+            Money reduce = allAccounts.stream().map(Account::getBalance).reduce(Money.ZERO, Money::add);
+            assertEquals(Money.of(BigDecimal.valueOf(initialAmount * accountsCount)), reduce);
+        } finally {
+            frontEnd.close();
+        }
+    }
+
+    @Test
+    void batchLargerThanLimitIsRefused() throws IOException {
+        Account jon = daoService.insertAccount(new Account(0, "Jon", Money.of(BigDecimal.valueOf(100)))).getAccount();
+        Account snow = daoService.insertAccount(new Account(0, "Snow", Money.of(BigDecimal.valueOf(100)))).getAccount();
+        List<ExchangeRequest> batch = Collections.nCopies(ExchangeRequest.MAX_BATCH_SIZE + 1,
+                new ExchangeRequest(new Account(jon.getId(), null, null), new Account(snow.getId(), null, null), Money.of("0.01")));
+        try (CloseableHttpClient httpClient = HttpClients.createDefault();
+             CloseableHttpResponse response = httpClient.execute(RequestBuilder.create("POST")
+                     .setUri("http://localhost:4567/performExchanges")
+                     .setEntity(new StringEntity(new Gson().toJson(batch), ContentType.APPLICATION_JSON))
+                     .build())) {
+            CompositeResponse compositeResponse = new Gson().fromJson(EntityUtils.toString(response.getEntity()), CompositeResponse.class);
+            Assertions.assertTrue(compositeResponse.getError());
+            Assertions.assertTrue(compositeResponse.getMessage().contains("larger than"), compositeResponse.getMessage());
+        }
+        assertEquals(Money.of(BigDecimal.valueOf(100)), daoService.getAccount(jon.getId()).getAccount().getBalance());
+    }
+
+    /*
+        a receiving side credits money nobody was debited for, an instance which isn't a cluster node doesn't have the route
+     */
+    @Test
+    void standaloneHasNoExchangeSideRoute() throws IOException {
+        Account jon = daoService.insertAccount(new Account(0, "Jon", Money.of(BigDecimal.valueOf(100)))).getAccount();
+        ExchangeRequest side = new ExchangeRequest(new Account(0, null, null), new Account(jon.getId(), null, null), Money.of("50"));
+        try (CloseableHttpClient httpClient = HttpClients.createDefault();
+             CloseableHttpResponse response = httpClient.execute(RequestBuilder.create("POST")
+                     .setUri("http://localhost:4567/performExchangeSide?sending=false")
+                     .setEntity(new StringEntity(new Gson().toJson(side), ContentType.APPLICATION_JSON))
+                     .build())) {
+            assertEquals(404, response.getStatusLine().getStatusCode());
+        }
+        assertEquals(Money.of(BigDecimal.valueOf(100)), daoService.getAccount(jon.getId()).getAccount().getBalance());
+    }
+
+    /*
+        statement of an account holds transfers it sent and received, in seq order, failed transfers aren't in it
+     */
+    @Test
+    void transfersOfAccountArePagedInSeqOrder() throws IOException {
+        for (int i = 1; i <= 3; i++) {
+            daoService.insertAccount(new Account(0, "test" + i, Money.of(BigDecimal.valueOf(100))));
+        }
+        int[][] exchanges = {{1, 2, 10}, {2, 3, 5}, {3, 1, 7}, {1, 2, 1000}, {1, 3, 1}, {2, 1, 2}};
+        for (int[] exchange : exchanges) {
+            restService.performExchange(new ExchangeRequest(new Account(exchange[0], null, null),
+                    new Account(exchange[1], null, null), Money.of(BigDecimal.valueOf(exchange[2]))));
+        }
+
+        List<Transfer> statement = new ArrayList<>();
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            long afterSeq = 0;
+            while (true) {
+                List<Transfer> page = getTransfersFromRest(1, afterSeq, 3, httpClient).getTransfers();
+                Assertions.assertTrue(page.size() <= 3);
+                statement.addAll(page);
+                if (page.size() < 3) {
+                    break;
+                }
+                afterSeq = page.get(page.size() - 1).getSeq();
+            }
+            CompositeResponse invalid = getTransfersFromRest(1, 0, 0, httpClient);
+            Assertions.assertTrue(invalid.getError());
+            assertEquals("Limit should be positive", invalid.getMessage());
+        }
+
+        assertEquals(4, statement.size());
+        int[][] expected = {{1, 2, 10}, {3, 1, 7}, {1, 3, 1}, {2, 1, 2}};
+        for (int i = 0; i < expected.length; i++) {
+            Transfer transfer = statement.get(i);
+            assertEquals(expected[i][0], transfer.getFromId());
+            assertEquals(expected[i][1], transfer.getToId());
+            assertEquals(Money.of(BigDecimal.valueOf(expected[i][2])), transfer.getAmount());
+            if (i > 0) {
+                Assertions.assertTrue(statement.get(i - 1).getSeq() < transfer.getSeq());
+            }
+        }
+    }
+
+    /*
+        pages read after concurrent transfers hold every committed transfer of the account exactly once,
+        so the statement adds up to the balance
+     */
+    @Test
+    void statementOfConcurrentTransfersAddsUpToBalance() throws InterruptedException {
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        int accountsCount = 5;
+        int initialAmount = 100;
+        int transfersCount = 2000;
+        Random random = new Random();
+
+        for (int i = 0; i < accountsCount; i++) {
+            daoService.insertAccount(new Account(0, "test" + i, Money.of(BigDecimal.valueOf(initialAmount))));
+        }
+        List<Callable<CompositeResponse>> tasks = new ArrayList<>();
+        for (int i = 0; i < transfersCount; i++) {
+            int from = random.nextInt(accountsCount) + 1;
+            int to = (from + random.nextInt(accountsCount - 1)) % accountsCount + 1;
+            int amt = random.nextInt(initialAmount / 2) + 1;
+            tasks.add(() -> restService.performExchange(new ExchangeRequest(
+                    new Account(from, null, null), new Account(to, null, null), Money.of(BigDecimal.valueOf(amt)))));
+        }
+        executorService.invokeAll(tasks);
+        executorService.shutdown();
+
+        for (int id = 1; id <= accountsCount; id++) {
+            Money balance = Money.of(BigDecimal.valueOf(initialAmount));
+            long afterSeq = 0;
+            while (true) {
+                List<Transfer> page = daoService.getTransfers(id, afterSeq, 100).getTransfers();
+                for (Transfer transfer : page) {
+                    Assertions.assertTrue(afterSeq < transfer.getSeq());
+                    afterSeq = transfer.getSeq();
+                    balance = transfer.getFromId() == id ? balance.subtract(transfer.getAmount()) : balance.add(transfer.getAmount());
+                }
+                if (page.size() < 100) {
+                    break;
+                }
+            }
+            assertEquals(daoService.getAccount(id).getAccount().getBalance(), balance);
+        }
+    }
+
+    /*
+        a malformed line stops the import in the second batch of import.batchSize, the answer still lists ids of the first one
+     */
+    @Test
+    void createAccountsAnswersIdsCreatedBeforeMalformedAccount() throws IOException {
+        int batchSize = Integer.getInteger("import.batchSize");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < batchSize + 10; i++) {
+            body.append("{\"name\":\"test").append(i).append("\",\"balance\":\"100\"}\n");
+        }
+        body.append("{\"name\":\"broken\",\"balance\":\"1x\"}\n");
+        body.append("{\"name\":\"after\",\"balance\":\"100\"}\n");
+
+        JsonObject answer;
+        try (CloseableHttpClient httpClient = HttpClients.createDefault();
+             CloseableHttpResponse response = httpClient.execute(RequestBuilder.create("POST")
+                     .setUri("http://localhost:4567/createAccounts")
+                     .setEntity(new StringEntity(body.toString(), ContentType.create("application/x-ndjson")))
+                     .build())) {
+            answer = new Gson().fromJson(EntityUtils.toString(response.getEntity()), JsonObject.class);
+        }
+        Assertions.assertTrue(answer.get("error").getAsBoolean());
+        assertEquals(batchSize, answer.get("created").getAsInt());
+        Assertions.assertTrue(answer.get("message").getAsString().endsWith("created " + batchSize + " accounts before it"),
+                answer.get("message").getAsString());
+        JsonArray ids = answer.getAsJsonArray("ids");
+        assertEquals(batchSize, ids.size());
+        assertEquals(1, ids.get(0).getAsInt());
+        assertEquals(batchSize, ids.get(batchSize - 1).getAsInt());
+        assertEquals(batchSize, daoService.getAllAccounts().getAccounts().size());
+    }
+
+    /*
+        pool gauges follow the pool registered for them, pools created afterwards don't take them over
+     */
+    @Test
+    void metricsAreWrittenInPrometheusFormat() throws IOException, SQLException {
+        DBConnector dbConnector = new DBConnector();
+        dbConnector.registerMetrics(Metrics.REGISTRY);
+        Account jon = daoService.insertAccount(new Account(0, "Jon", Money.of(BigDecimal.valueOf(100)))).getAccount();
+        Account snow = daoService.insertAccount(new Account(0, "Snow", Money.of(BigDecimal.valueOf(100)))).getAccount();
+
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            Map<String, Double> before = scrapeMetrics(httpClient);
+            handleResponse(httpClient.execute(createPostRequestForExchange(jon, snow, EXCHANGE, Money.of("10"))));
+            // a pool of its own, not registered
+            new DAOServiceImpl(new DBConnector()).getAccount(jon.getId());
+            dbConnector.getDbConnection().close();
+            Map<String, Double> after = scrapeMetrics(httpClient);
+
+            String succeeded = "transfers_total{result=\"success\"}";
+            assertEquals(before.get(succeeded) + 1, after.get(succeeded));
+            assertEquals(before.get("transfer_seconds_count") + 1, after.get("transfer_seconds_count"));
+            assertEquals(Integer.getInteger("db.pool.maxConnections").doubleValue(), after.get("db_pool_max_connections"));
+            assertEquals(before.get("db_pool_checkouts_total") + 1, after.get("db_pool_checkouts_total"));
+        }
+    }
+
+    /*
+        every sample belongs to a family whose HELP and TYPE came before it, a family is described once
+     */
+    private static Map<String, Double> scrapeMetrics(CloseableHttpClient httpClient) throws IOException {
+        String body;
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet("http://localhost:4567/metrics"))) {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            Assertions.assertTrue(response.getFirstHeader("Content-Type").getValue().startsWith("text/plain; version=0.0.4"));
+            body = EntityUtils.toString(response.getEntity());
+        }
+        Map<String, Double> samples = new HashMap<>();
+        Set<String> helped = new HashSet<>();
+        Map<String, String> types = new HashMap<>();
+        for (String line : body.split("\n")) {
+            String[] parts = line.split(" ", 4);
+            if (line.startsWith("# HELP ")) {
+                Assertions.assertTrue(helped.add(parts[2]), line);
+            } else if (line.startsWith("# TYPE ")) {
+                Assertions.assertTrue(helped.contains(parts[2]), line);
+                Assertions.assertTrue(Arrays.asList("counter", "gauge", "summary").contains(parts[3]), line);
+                Assertions.assertNull(types.put(parts[2], parts[3]), line);
+            } else {
+                Assertions.assertTrue(line.matches("[a-z_]+(\\{[a-z_]+=\"[^\"]*\"(,[a-z_]+=\"[^\"]*\")*})? \\S+"), line);
+                String series = line.substring(0, line.lastIndexOf(' '));
+                String name = series.contains("{") ? series.substring(0, series.indexOf('{')) : series;
+                String family = types.containsKey(name) ? name : name.replaceAll("_(sum|count)$", "");
+                Assertions.assertTrue(types.containsKey(family), line);
+                Assertions.assertNull(samples.put(series, Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1))), line);
+            }
+        }
+        return samples;
+    }
+
+    private CompositeResponse getTransfersFromRest(int accountId, long afterSeq, int limit, CloseableHttpClient httpClient)
+            throws IOException {
+        HttpUriRequest request = new HttpGet("http://localhost:4567/getTransfers/" + accountId + "?afterSeq=" + afterSeq + "&limit=" + limit);
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            return new JsonCodec().fromJson(EntityUtils.toString(response.getEntity()), CompositeResponse.class);
+        }
     }
 
     private void createAndExecute(Account jon, String uri, CloseableHttpClient httpClient) throws IOException {
@@ -153,13 +573,13 @@ class RestServiceTest {
     @Test
     void checkTransfer() throws IOException {
         CloseableHttpClient httpClient = HttpClients.createDefault();
-        Account jon = new Account(1, "Jon", BigDecimal.valueOf(100));
-        Account snow = new Account(2, "Snow", BigDecimal.valueOf(100));
+        Account jon = new Account(1, "Jon", Money.of(BigDecimal.valueOf(100)));
+        Account snow = new Account(2, "Snow", Money.of(BigDecimal.valueOf(100)));
         createAndExecute(jon, CREATE_ACCOUNT, httpClient);
         createAndExecute(snow, CREATE_ACCOUNT, httpClient);
 
         //makeExchange
-        BigDecimal amt = BigDecimal.valueOf(30);
+        Money amt = Money.of(BigDecimal.valueOf(30));
         HttpUriRequest postRequest = createPostRequestForExchange(jon, snow, EXCHANGE, amt);
         CloseableHttpResponse response = httpClient.execute(postRequest);
         handleResponse(response);
@@ -173,15 +593,31 @@ class RestServiceTest {
         assertEquals(accountSnow.getBalance(), snow.getBalance().add(amt));
     }
 
+    @Test
+    void transferReturnsAccountsAfterIt() {
+        Account jon = daoService.insertAccount(new Account(0, "Jon", Money.of(BigDecimal.valueOf(100)))).getAccount();
+        Account snow = daoService.insertAccount(new Account(0, "Snow", Money.of(BigDecimal.valueOf(100)))).getAccount();
+        Money amt = Money.of(BigDecimal.valueOf(30));
+
+        List<Account> accounts = restService.performExchange(new ExchangeRequest(jon, snow, amt)).getAccounts();
+
+        assertEquals(2, accounts.size());
+        assertEquals(jon.getId(), accounts.get(0).getId());
+        assertEquals(jon.getBalance().subtract(amt), accounts.get(0).getBalance());
+        assertEquals("Snow", accounts.get(1).getName());
+        assertEquals(snow.getBalance().add(amt), accounts.get(1).getBalance());
+        assertEquals(daoService.getAccount(snow.getId()).getAccount().getBalance(), accounts.get(1).getBalance());
+    }
+
     void checkOppositeTransfer() throws IOException {
         CloseableHttpClient httpClient = HttpClients.createDefault();
-        Account jon = new Account(1, "Jon", BigDecimal.valueOf(100));
-        Account snow = new Account(2, "Snow", BigDecimal.valueOf(100));
+        Account jon = new Account(1, "Jon", Money.of(BigDecimal.valueOf(100)));
+        Account snow = new Account(2, "Snow", Money.of(BigDecimal.valueOf(100)));
         createAndExecute(jon, CREATE_ACCOUNT, httpClient);
         createAndExecute(snow, CREATE_ACCOUNT, httpClient);
 
         //makeExchange
-        BigDecimal amt = BigDecimal.valueOf(100);
+        Money amt = Money.of(BigDecimal.valueOf(100));
         HttpUriRequest postRequest = createPostRequestForExchange(jon, snow, EXCHANGE, amt);
         CloseableHttpResponse response = httpClient.execute(postRequest);
         handleResponse(response);
@@ -202,7 +638,7 @@ class RestServiceTest {
                 .build();
     }
 
-    private HttpUriRequest createPostRequestForExchange(Account accountFrom, Account accountTo, String uri, BigDecimal amount) {
+    private HttpUriRequest createPostRequestForExchange(Account accountFrom, Account accountTo, String uri, Money amount) {
         return RequestBuilder.create("POST")
                 .setUri(uri)
                 .setEntity(new StringEntity(new Gson().toJson(new ExchangeRequest(accountFrom, accountTo, amount)), ContentType.APPLICATION_JSON))